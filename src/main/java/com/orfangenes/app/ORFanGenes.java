@@ -1,23 +1,41 @@
 package com.orfangenes.app;
 
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.orfangenes.app.dto.AnalysisEventDto;
+import com.orfangenes.app.dto.AnalysisStatusDto;
 import com.orfangenes.app.service.*;
 import com.orfangenes.app.model.BlastResult;
+import com.orfangenes.app.util.Checkpoints;
+import com.orfangenes.app.util.Checkpoints.Stage;
 import com.orfangenes.app.util.Constants;
+import com.orfangenes.app.util.FileHandler;
+import com.orfangenes.app.util.GeneIndex;
 import com.orfangenes.app.util.ResultsPrinter;
 import com.orfangenes.app.model.Analysis;
 import com.orfangenes.app.model.Gene;
 import com.orfangenes.app.model.User;
 import com.orfangenes.app.util.Utils;
 import lombok.extern.slf4j.Slf4j;
-import org.json.simple.JSONArray;
 import org.junit.Assert;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
 
 import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
 import java.text.SimpleDateFormat;
 import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Predicate;
 import java.util.stream.Collectors;
 
 import static com.orfangenes.app.util.Constants.*;
@@ -29,11 +47,31 @@ public class ORFanGenes {
     @Autowired
     DatabaseService databaseService;
 
+    @Autowired
+    StatusUpdateWriter statusUpdateWriter;
+
+    @Autowired
+    AnalysisEventPublisher analysisEventPublisher;
+
+    @Autowired
+    AnalysisOutputs analysisOutputs;
+
+    @Value("${analysis.partial-results.batch-size:100}")
+    private int partialResultsBatchSize;
+
+    @Value("${analysis.partial-results.flush-interval-ms:30000}")
+    private long partialResultsFlushInterval;
+
+    @Value("${analysis.persistence.gene-chunk-size:500}")
+    private int geneChunkSize;
+
+    @Value("${analysis.persistence.parallelism:2}")
+    private int geneChunkParallelism;
+
     private final ObjectMapper objectMapper = Utils.getJacksonObjectMapper();
 
     public int run(String query, String outputDir, Analysis analysis, String APP_DIR) {
 
-        JSONArray trees;
 //        SimpleDateFormat simpleDateFormat = new SimpleDateFormat("dd/MM/yyyy");
 
         Assert.assertTrue("Failure to open the sequence file!", new File(query).exists());
@@ -41,37 +79,90 @@ public class ORFanGenes {
         final String rankedLineageFilepath = APP_DIR + FILE_RANK_LINEAGE;
         System.out.println("Ranked Lineage File Path : " + rankedLineageFilepath);
 
+        // a redelivered analysis resumes at its first incomplete stage
+        Checkpoints checkpoints = new Checkpoints(Paths.get(outputDir));
+        if (checkpoints.isDone(Stage.PERSISTED)) {
+            log.info("Analysis " + analysis.getAnalysisId() + " was already saved");
+            analysis.setStatus(AnalysisStatus.COMPLETED);
+            statusUpdateWriter.submit(analysis.getAnalysisId(), AnalysisStatus.COMPLETED, 100);
+            return 1;
+        }
+        if (!checkpoints.isDone(Stage.INPUT_STAGED)) {
+            checkpoint(checkpoints, Stage.INPUT_STAGED, Paths.get(query));
+        }
+
         // Generating BLAST file
         SequenceService sequenceService = null;
+        TaxTreeService taxTreeService = null;
+        ClassificationService classificationService = null;
+        List<Gene> genes = null;
         List<BlastResult> blastResults = null;
+        Predicate<BlastResult> identityFilter = blastResult -> blastResult.getPident() >= Double.parseDouble(String.valueOf(analysis.getIdentity()));
+        boolean classified = checkpoints.isDone(Stage.CLASSIFIED);
         try {
             sequenceService = new SequenceService(analysis.getSequenceType(), query, outputDir);
-            sequenceService.findHomology(outputDir, analysis.getMaximumTargetSequences(), analysis.getEvalue());
-            HomologyProcessingService processor = new HomologyProcessingService(outputDir);
-            blastResults = processor.getBlastResults();
-            blastResults = blastResults.stream()
-                    .filter(blastResult -> blastResult.getPident() >= Double.parseDouble(String.valueOf(analysis.getIdentity())))
-                    .collect(Collectors.toList());
+            genes = sequenceService.getGenes(analysis.getTaxonomyId());
+            if (!classified) {
+                taxTreeService = new TaxTreeService(rankedLineageFilepath, analysis.getTaxonomyId());
+                // one classifier for the partial and the final results, so they share memoised classifications
+                classificationService = new ClassificationService(taxTreeService, analysis.getTaxonomyId());
+                if (checkpoints.isDone(Stage.BLAST_DONE)) {
+                    log.info("Resuming analysis " + analysis.getAnalysisId() + " after BLAST");
+                } else {
+                    runBlastWithPartialResults(sequenceService, taxTreeService, classificationService, genes, identityFilter, outputDir, analysis);
+                    checkpoint(checkpoints, Stage.BLAST_DONE, Paths.get(outputDir, BLAST_RESULTS_FILE));
+                }
+                HomologyProcessingService processor = new HomologyProcessingService(outputDir);
+                blastResults = processor.getBlastResults();
+                blastResults = blastResults.stream()
+                        .filter(identityFilter)
+                        .collect(Collectors.toList());
+                if (!checkpoints.isDone(Stage.HITS_PARSED) && prepareBlastResultsDownload(outputDir)) {
+                    checkpoint(checkpoints, Stage.HITS_PARSED, Paths.get(outputDir, BLAST_RESULTS_INDEX_FILE),
+                            Paths.get(outputDir, BLAST_RESULTS_FILE + GZIP_EXT));
+                }
+            }
         } catch (Exception e) {
             log.error("Blast file generation issue: " + e.getMessage());
             e.printStackTrace();
             throw e;
         }
-            Set<Integer> blastHitsTaxIDs = null;
-            // Getting unique taxonomy IDs from BLAST result
-            List<Integer> staxids = blastResults.stream()
-                    .map(BlastResult::getStaxid)
-                    .collect(Collectors.toList());
-            blastHitsTaxIDs = new HashSet<>(staxids);
-            blastHitsTaxIDs.add(analysis.getTaxonomyId());
 
         try {
-            // classification
-            TaxTreeService taxTreeService = new TaxTreeService(rankedLineageFilepath, blastHitsTaxIDs, analysis.getTaxonomyId());
-            ClassificationService classificationService = new ClassificationService(taxTreeService, analysis.getTaxonomyId(), blastResults);
-            List<Gene> classifiedGenes = classificationService.getGeneClassification(sequenceService.getGenes(analysis.getTaxonomyId()));
-            Map<String, List<List<String>>> taxonomyTreeForGenes = classificationService.getTaxonomyTreeForGenes();
-             trees = ResultsProcessingService.generateBlastTree(taxonomyTreeForGenes);
+            List<Gene> classifiedGenes;
+            if (classified) {
+                log.info("Resuming analysis " + analysis.getAnalysisId() + " after classification");
+                Map<String, String> classification = ResultsProcessingService.readClassification(outputDir);
+                classifiedGenes = genes;
+                classifiedGenes.forEach(gene -> gene.setOrfanLevel(classification.getOrDefault(gene.getGeneId(), STRICT_ORFAN)));
+            } else {
+                Set<Integer> blastHitsTaxIDs = null;
+                // Getting unique taxonomy IDs from BLAST result
+                List<Integer> staxids = blastResults.stream()
+                        .map(BlastResult::getStaxid)
+                        .collect(Collectors.toList());
+                blastHitsTaxIDs = new HashSet<>(staxids);
+                blastHitsTaxIDs.add(analysis.getTaxonomyId());
+
+                // classification
+                // most lineages were already loaded while BLAST was running
+                taxTreeService.loadLineages(blastHitsTaxIDs);
+                classificationService.setBlastResults(blastResults);
+                classifiedGenes = classificationService.getGeneClassification(genes);
+                Map<String, List<List<String>>> taxonomyTreeForGenes = classificationService.getTaxonomyTreeForGenes();
+                try {
+                    // trees are served per gene from the analysis directory
+                    ResultsProcessingService.saveBlastTrees(taxonomyTreeForGenes, outputDir);
+                    ResultsProcessingService.saveClassification(classifiedGenes, outputDir);
+                    checkpoint(checkpoints, Stage.CLASSIFIED, Paths.get(outputDir, CLASSIFICATION_FILE),
+                            Paths.get(outputDir, BLAST_TREES_FILE), Paths.get(outputDir, BLAST_TREES_INDEX_FILE),
+                            Paths.get(outputDir, BLAST_TREES_COMPACT_FILE), Paths.get(outputDir, BLAST_TREES_COMPACT_INDEX_FILE),
+                            Paths.get(outputDir, BLAST_TREE_NAMES_FILE));
+                } catch (IOException e) {
+                    log.warn("Could not save Blast trees, keeping them with the analysis: " + e.getMessage());
+                    analysis.setBlastResults(ResultsProcessingService.generateBlastTree(taxonomyTreeForGenes));
+                }
+            }
             ResultsPrinter.displayFinding(classifiedGenes);
 
             // save results to the database with default user(orfanid). If user saves the dataset with their information, then the
@@ -90,34 +181,263 @@ public class ORFanGenes {
 
 //            analysis.setAnalysisDate(simpleDateFormat.parse(simpleDateFormat.format(new Date())));
             analysis.setSaved(false);
-            analysis.setBlastResults(String.valueOf(trees));
 //            analysis.setUser(user);
 
-            classifiedGenes.forEach(gene -> {
-                gene.setAnalysis(analysis);
-            });
-
-            analysis.setGeneList(classifiedGenes);
-            analysis.setStatus(AnalysisStatus.COMPLETED);
-
-            Analysis savedAnalysis = objectMapper.readValue(databaseService.getAnalysisJsonById(analysis.getAnalysisId()), Analysis.class);
-            if (savedAnalysis.getStatus().equals(Constants.AnalysisStatus.CANCELLED)) {
+            AnalysisStatusDto savedStatus = databaseService.getAnalysisStatus(analysis.getAnalysisId());
+            if (savedStatus != null && Constants.AnalysisStatus.CANCELLED.equals(savedStatus.getStatus())) {
                 return 1;
             }
 
-            databaseService.update(analysis);
+            // served by the web tier from the blob store once the analysis is completed
+            analysisOutputs.publish(analysis.getAnalysisId(), outputDir);
+            if (analysis.getBlastResults() != null || !databaseService.canSaveGenes()) {
+                // trees kept with the analysis, saved with the genes in one update as before
+                saveWithAnalysis(analysis, classifiedGenes);
+            } else {
+                try {
+                    saveGenesInChunks(analysis.getAnalysisId(), classifiedGenes);
+                } catch (UnsupportedOperationException e) {
+                    // the database API has no genes endpoint
+                    saveWithAnalysis(analysis, classifiedGenes);
+                }
+                analysis.setStatus(AnalysisStatus.COMPLETED);
+                statusUpdateWriter.submit(analysis.getAnalysisId(), AnalysisStatus.COMPLETED, 100);
+            }
+            checkpoint(checkpoints, Stage.PERSISTED);
 
         } catch (Exception e) {
             log.error("Results classification issue: " + e.getMessage());
             e.printStackTrace();
+            analysis.setStatus(AnalysisStatus.ERRORED);
+            statusUpdateWriter.submit(analysis.getAnalysisId(), AnalysisStatus.ERRORED);
+        }
+
+        return 1; //todo: change
+    }
+
+    /**
+     * Classifies the genes of one chunk of a fanned-out analysis and saves them. The BLAST output of
+     * the chunk is left in its directory for {@link #aggregate(Analysis, String, List, String)}.
+     */
+    public void runChunk(String query, String chunkDir, Analysis analysis, String APP_DIR) throws Exception {
+        Assert.assertTrue("Failure to open the sequence file!", new File(query).exists());
+
+        SequenceService sequenceService = new SequenceService(analysis.getSequenceType(), query, chunkDir);
+        List<Gene> genes = sequenceService.getGenes(analysis.getTaxonomyId());
+        // BLAST is checkpointed per chunk, a redelivered chunk only classifies again
+        Checkpoints checkpoints = new Checkpoints(Paths.get(chunkDir));
+        if (!checkpoints.isDone(Stage.INPUT_STAGED)) {
+            checkpoint(checkpoints, Stage.INPUT_STAGED, Paths.get(query));
+        }
+        if (!checkpoints.isDone(Stage.BLAST_DONE)) {
+            sequenceService.findHomology(chunkDir, analysis.getMaximumTargetSequences(), analysis.getEvalue());
+            checkpoint(checkpoints, Stage.BLAST_DONE, Paths.get(chunkDir, BLAST_RESULTS_FILE));
+        }
+        List<BlastResult> blastResults = new HomologyProcessingService(chunkDir).getBlastResults().stream()
+                .filter(blastResult -> blastResult.getPident() >= analysis.getIdentity())
+                .collect(Collectors.toList());
+
+        Set<Integer> blastHitsTaxIDs = blastResults.stream()
+                .map(BlastResult::getStaxid)
+                .collect(Collectors.toSet());
+        TaxTreeService taxTreeService = new TaxTreeService(APP_DIR + FILE_RANK_LINEAGE, blastHitsTaxIDs, analysis.getTaxonomyId());
+        ClassificationService classificationService = new ClassificationService(taxTreeService, analysis.getTaxonomyId(), blastResults);
+        List<Gene> classifiedGenes = classificationService.getGeneClassification(genes);
+        saveGenesInChunks(analysis.getAnalysisId(), classifiedGenes);
+    }
+
+    /**
+     * Completes a fanned-out analysis once all of its chunks are classified: combines the BLAST output
+     * of the chunks, prepares it for download, saves the BLAST trees of all the genes and marks the
+     * analysis as completed. The genes were saved by the chunks.
+     */
+    public void aggregate(Analysis analysis, String outputDir, List<Path> chunkDirs, String APP_DIR) throws IOException {
+        Path blastResultsFile = Paths.get(outputDir, BLAST_RESULTS_FILE);
+        Path tmpFile = Paths.get(outputDir, BLAST_RESULTS_FILE + ".tmp");
+        // chunks hold whole genes, so the hits stay grouped by gene
+        try (OutputStream out = Files.newOutputStream(tmpFile)) {
+            for (Path chunkDir : chunkDirs) {
+                Path chunkResultsFile = chunkDir.resolve(BLAST_RESULTS_FILE);
+                if (Files.exists(chunkResultsFile)) {
+                    Files.copy(chunkResultsFile, out);
+                }
+            }
+        }
+        Files.move(tmpFile, blastResultsFile, StandardCopyOption.REPLACE_EXISTING);
+        prepareBlastResultsDownload(outputDir);
+
+        List<BlastResult> blastResults = new HomologyProcessingService(outputDir).getBlastResults().stream()
+                .filter(blastResult -> blastResult.getPident() >= analysis.getIdentity())
+                .collect(Collectors.toList());
+        Set<Integer> blastHitsTaxIDs = blastResults.stream()
+                .map(BlastResult::getStaxid)
+                .collect(Collectors.toSet());
+        TaxTreeService taxTreeService = new TaxTreeService(APP_DIR + FILE_RANK_LINEAGE, blastHitsTaxIDs, analysis.getTaxonomyId());
+        ClassificationService classificationService = new ClassificationService(taxTreeService, analysis.getTaxonomyId(), blastResults);
+        ResultsProcessingService.saveBlastTrees(classificationService.getTaxonomyTreeForGenes(), outputDir);
+        analysisOutputs.publish(analysis.getAnalysisId(), outputDir);
+
+        AnalysisStatusDto savedStatus = databaseService.getAnalysisStatus(analysis.getAnalysisId());
+        if (savedStatus != null && Constants.AnalysisStatus.CANCELLED.equals(savedStatus.getStatus())) {
+            return;
+        }
+        analysis.setStatus(AnalysisStatus.COMPLETED);
+        statusUpdateWriter.submit(analysis.getAnalysisId(), AnalysisStatus.COMPLETED, 100);
+    }
+
+    /**
+     * Runs BLAST while following its output, so that each gene is classified and its ORFan level
+     * saved as soon as all of its hits have been written.
+     */
+    private void runBlastWithPartialResults(SequenceService sequenceService, TaxTreeService taxTreeService,
+                                            ClassificationService classificationService, List<Gene> genes,
+                                            Predicate<BlastResult> identityFilter, String outputDir, Analysis analysis) {
+        File blastResultsFile = new File(outputDir, BLAST_RESULTS_FILE);
+        // output left by an earlier attempt would be read before BLAST truncates it
+        blastResultsFile.delete();
+
+        AtomicInteger classifiedGeneCount = new AtomicInteger();
+        IncrementalClassifier incrementalClassifier = new IncrementalClassifier(taxTreeService, classificationService, genes,
+                partialGenes -> publishPartialResults(analysis, partialGenes,
+                        classifiedGeneCount.addAndGet(partialGenes.size()), genes.size()),
+                partialResultsBatchSize, partialResultsFlushInterval);
+        // same hits as HomologyProcessingService accepts
+        Predicate<BlastResult> hitFilter = identityFilter.and(blastResult -> blastResult.getMultiplesTaxIdCount() == 0);
+        // classified genes are published every flush interval, also while BLAST writes no rows
+        BlastOutputTailer tailer = new BlastOutputTailer(blastResultsFile.toPath(), hitFilter, incrementalClassifier,
+                incrementalClassifier::flushIfDue);
+        Thread tailerThread = new Thread(tailer, "blast-tailer-" + analysis.getAnalysisId());
+        tailerThread.setDaemon(true);
+        tailerThread.start();
+
+        boolean blastCompleted = false;
+        try {
+            sequenceService.findHomology(outputDir, analysis.getMaximumTargetSequences(), analysis.getEvalue());
+            blastCompleted = true;
+        } finally {
+            if (blastCompleted) {
+                tailer.finish();
+            } else {
+                tailer.abort();
+            }
             try {
-                analysis.setStatus(AnalysisStatus.ERRORED);
-                databaseService.update(analysis);
-            } catch (Exception e2) {
-                log.error("Error updating analysis");
+                tailerThread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
             }
         }
+        incrementalClassifier.flush();
+    }
 
-        return 1; //todo: change
+    /**
+     * Saves the genes with the completed analysis in a single update
+     */
+    private void saveWithAnalysis(Analysis analysis, List<Gene> classifiedGenes) throws IOException {
+        if (analysis.getUser() == null) {
+            // queued analyses carry only their parameters
+            Analysis savedAnalysis = databaseService.getAnalysisById(analysis.getAnalysisId());
+            if (savedAnalysis != null) {
+                analysis.setUser(savedAnalysis.getUser());
+                analysis.setAnalysisDate(savedAnalysis.getAnalysisDate());
+            }
+        }
+        classifiedGenes.forEach(gene -> {
+            gene.setAnalysis(analysis);
+        });
+        analysis.setGeneList(classifiedGenes);
+        analysis.setStatus(AnalysisStatus.COMPLETED);
+        databaseService.update(analysis);
+    }
+
+    /**
+     * Upserts the genes in chunks of a fixed size, on up to the configured number of threads, so that
+     * each request and its payload stay small. A failed chunk is retried once on its own.
+     */
+    private void saveGenesInChunks(String analysisId, List<Gene> genes) throws Exception {
+        List<List<Gene>> chunks = new ArrayList<>();
+        for (int from = 0; from < genes.size(); from += geneChunkSize) {
+            chunks.add(genes.subList(from, Math.min(from + geneChunkSize, genes.size())));
+        }
+        log.info("Saving " + genes.size() + " genes of analysis " + analysisId + " in " + chunks.size() + " chunks");
+        if (geneChunkParallelism <= 1 || chunks.size() <= 1) {
+            for (List<Gene> chunk : chunks) {
+                saveGeneChunk(analysisId, chunk);
+            }
+            return;
+        }
+        ExecutorService executor = Executors.newFixedThreadPool(Math.min(geneChunkParallelism, chunks.size()));
+        try {
+            List<Future<?>> futures = new ArrayList<>();
+            for (List<Gene> chunk : chunks) {
+                futures.add(executor.submit(() -> saveGeneChunk(analysisId, chunk)));
+            }
+            for (Future<?> future : futures) {
+                try {
+                    future.get();
+                } catch (ExecutionException e) {
+                    throw (e.getCause() instanceof Exception) ? (Exception) e.getCause() : e;
+                }
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private void saveGeneChunk(String analysisId, List<Gene> chunk) {
+        try {
+            databaseService.saveGenes(analysisId, chunk);
+        } catch (UnsupportedOperationException e) {
+            throw e;
+        } catch (RuntimeException e) {
+            log.warn("Could not save a chunk of " + chunk.size() + " genes of analysis " + analysisId + ", retrying: " + e.getMessage());
+            databaseService.saveGenes(analysisId, chunk);
+        }
+    }
+
+    private void publishPartialResults(Analysis analysis, List<Gene> classifiedGenes, int classifiedGeneCount, int geneCount) {
+        try {
+            // otherwise the genes are only saved with the completed analysis
+            if (databaseService.canSaveGenes()) {
+                databaseService.saveGenes(analysis.getAnalysisId(), classifiedGenes);
+            }
+            Map<String, String> orfanLevels = new LinkedHashMap<>();
+            classifiedGenes.forEach(gene -> orfanLevels.put(gene.getGeneId(), gene.getOrfanLevel()));
+            analysisEventPublisher.publish(AnalysisEventDto.genes(analysis.getAnalysisId(), orfanLevels));
+        } catch (Exception e) {
+            log.warn("Could not save partial results of analysis " + analysis.getAnalysisId() + ": " + e.getMessage());
+        }
+        // 100 is reported once the results are saved
+        int progress = Math.min(99, classifiedGeneCount * 100 / Math.max(1, geneCount));
+        statusUpdateWriter.submitProgress(analysis.getAnalysisId(), progress);
+    }
+
+    /**
+     * Builds the per-gene hit index and a gzip copy of the BLAST output, so downloads can be sliced
+     * by gene and served compressed without reading the file into memory.
+     *
+     * @return whether both were written
+     */
+    private boolean prepareBlastResultsDownload(String outputDir) {
+        Path blastResultsFile = Paths.get(outputDir, BLAST_RESULTS_FILE);
+        try {
+            GeneIndex.load(blastResultsFile, blastResultsFile.resolveSibling(BLAST_RESULTS_INDEX_FILE));
+            FileHandler.compressFile(blastResultsFile);
+            return true;
+        } catch (IOException e) {
+            log.warn("Could not prepare Blast Results for download: " + e.getMessage());
+            return false;
+        }
+    }
+
+    /**
+     * Records the stage as done. Without the checkpoint the stage is only run again on redelivery,
+     * so a failure does not fail the analysis.
+     */
+    private static void checkpoint(Checkpoints checkpoints, Stage stage, Path... files) {
+        try {
+            checkpoints.complete(stage, files);
+        } catch (IOException e) {
+            log.warn("Could not save checkpoint " + stage + ": " + e.getMessage());
+        }
     }
 }
\ No newline at end of file
@@ -0,0 +1,39 @@
+package com.orfangenes.app.config;
+
+import com.orfangenes.app.storage.BlobStore;
+import com.orfangenes.app.storage.LocalBlobStore;
+import com.orfangenes.app.storage.S3BlobStore;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+
+import java.io.IOException;
+import java.nio.file.Paths;
+
+/**
+ * Store of the analysis inputs referenced by the queued analyses and of the outputs served by the web
+ * tier, "local" or "s3" (blob-store.type)
+ */
+@Configuration
+public class BlobStoreConfig {
+
+    @Bean
+    @ConditionalOnProperty(name = "blob-store.type", havingValue = "local", matchIfMissing = true)
+    BlobStore localBlobStore(@Value("${blob-store.local.dir:${data.outputdir}/blobs}") String directory) throws IOException {
+        return new LocalBlobStore(Paths.get(directory));
+    }
+
+    @Bean
+    @ConditionalOnProperty(name = "blob-store.type", havingValue = "s3")
+    BlobStore s3BlobStore(@Value("${blob-store.s3.endpoint}") String endpoint,
+                          @Value("${blob-store.s3.bucket}") String bucket,
+                          @Value("${blob-store.s3.output-bucket}") String outputBucket,
+                          @Value("${blob-store.s3.region:us-east-1}") String region,
+                          @Value("${blob-store.s3.access-key}") String accessKey,
+                          @Value("${blob-store.s3.secret-key}") String secretKey,
+                          @Value("${blob-store.s3.connect-timeout-ms:5000}") int connectTimeout,
+                          @Value("${blob-store.s3.read-timeout-ms:60000}") int readTimeout) {
+        return new S3BlobStore(endpoint, bucket, outputBucket, region, accessKey, secretKey, connectTimeout, readTimeout);
+    }
+}
@@ -1,11 +1,21 @@
 package com.orfangenes.app.config;
 
+import com.orfangenes.app.service.AnalysisReadCache;
+import com.orfangenes.app.service.AnalysisStatusCache;
 import com.orfangenes.app.service.DatabaseService;
+import com.orfangenes.app.service.RestDatabaseService;
 import com.orfangenes.app.util.RestCall;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
+import org.springframework.context.annotation.Profile;
 import org.springframework.context.annotation.PropertySource;
+import org.springframework.http.client.HttpComponentsClientHttpRequestFactory;
+
+import java.util.concurrent.TimeUnit;
 
 /**
  * @author Suresh Hewapathirana
@@ -17,8 +27,48 @@ public class DatabaseApiConfig {
     RestCall restCall(@Value("${db.api.baseUrl}") String baseUrl,
                       @Value("${db.api.keyName}") String apiKeyName,
                       @Value("${db.api.keyValue}") String apiKeyValue,
-                      @Value("${spring.application.name}") String appName){
-        return new RestCall(baseUrl, apiKeyName, apiKeyValue, appName);
+                      @Value("${spring.application.name}") String appName,
+                      HttpComponentsClientHttpRequestFactory databaseApiRequestFactory,
+                      @Value("${db.api.retry.max-attempts:3}") int maxAttempts,
+                      @Value("${db.api.retry.initial-backoff-ms:200}") long initialBackoffMs,
+                      @Value("${db.api.retry.max-backoff-ms:5000}") long maxBackoffMs){
+        return new RestCall(baseUrl, apiKeyName, apiKeyValue, appName, databaseApiRequestFactory,
+                maxAttempts, initialBackoffMs, maxBackoffMs);
+    }
+
+    /**
+     * Pooled keep-alive connections to the database API. Requests wait at most the connection request
+     * timeout for a pooled connection and the read timeout for the response, so a slow API does not
+     * hold worker threads indefinitely. Request bodies are not buffered: the payloads written by the
+     * streaming JSON writers go straight to the connection (chunked), so they are never held in memory
+     * as a whole. Such a body cannot be sent twice, so the client does not retry; retries are done by
+     * {@link RestCall}, GETs only, and callers retrying a POST make a new request that writes it again.
+     */
+    @Bean
+    HttpComponentsClientHttpRequestFactory databaseApiRequestFactory(@Value("${db.api.pool.max-total:50}") int maxTotal,
+                                                                     @Value("${db.api.pool.max-per-route:20}") int maxPerRoute,
+                                                                     @Value("${db.api.connect-timeout-ms:5000}") int connectTimeout,
+                                                                     @Value("${db.api.connection-request-timeout-ms:5000}") int connectionRequestTimeout,
+                                                                     @Value("${db.api.read-timeout-ms:30000}") int readTimeout) {
+        PoolingHttpClientConnectionManager connectionManager = new PoolingHttpClientConnectionManager();
+        connectionManager.setMaxTotal(maxTotal);
+        connectionManager.setDefaultMaxPerRoute(maxPerRoute);
+        // connections closed by the server while idle in the pool
+        connectionManager.setValidateAfterInactivity(2000);
+
+        CloseableHttpClient httpClient = HttpClients.custom()
+                .setConnectionManager(connectionManager)
+                .evictExpiredConnections()
+                .evictIdleConnections(30, TimeUnit.SECONDS)
+                .disableAutomaticRetries()
+                .build();
+
+        HttpComponentsClientHttpRequestFactory requestFactory = new HttpComponentsClientHttpRequestFactory(httpClient);
+        requestFactory.setConnectTimeout(connectTimeout);
+        requestFactory.setConnectionRequestTimeout(connectionRequestTimeout);
+        requestFactory.setReadTimeout(readTimeout);
+        requestFactory.setBufferRequestBody(false);
+        return requestFactory;
     }
 //
 //    @Bean
@@ -31,7 +81,23 @@ public class DatabaseApiConfig {
 
 
     @Bean
-    DatabaseService databaseService(RestCall restCall){
-        return new DatabaseService(restCall);
+    AnalysisReadCache analysisReadCache(@Value("${db.api.cache.maximum-weight:100000000}") long maximumWeight,
+                                        @Value("${db.api.cache.ttl-seconds:10}") long ttlSeconds,
+                                        @Value("${db.api.cache.pinned-ttl-seconds:3600}") long pinnedTtlSeconds){
+        return new AnalysisReadCache(maximumWeight, ttlSeconds, pinnedTtlSeconds);
+    }
+
+    @Bean
+    AnalysisStatusCache analysisStatusCache(@Value("${db.api.status-cache.maximum-size:10000}") long maximumSize,
+                                            @Value("${db.api.status-cache.ttl-seconds:5}") long ttlSeconds){
+        return new AnalysisStatusCache(maximumSize, ttlSeconds);
+    }
+
+    // see EmbeddedDatabaseConfig for the "embedded-db" profile
+    @Bean
+    @Profile("!embedded-db")
+    DatabaseService databaseService(RestCall restCall, AnalysisReadCache analysisReadCache, AnalysisStatusCache analysisStatusCache,
+                                    @Value("${db.api.genes-endpoint:true}") boolean genesEndpoint){
+        return new RestDatabaseService(restCall, analysisReadCache, analysisStatusCache, genesEndpoint);
     }
 }
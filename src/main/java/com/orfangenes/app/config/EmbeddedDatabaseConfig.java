@@ -0,0 +1,26 @@
+package com.orfangenes.app.config;
+
+import com.orfangenes.app.service.AnalysisReadCache;
+import com.orfangenes.app.service.DatabaseService;
+import com.orfangenes.app.service.EmbeddedDatabaseService;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.context.annotation.Profile;
+
+import java.io.IOException;
+import java.nio.file.Paths;
+
+/**
+ * Analyses in local files instead of the database API, for single-node deployments
+ */
+@Configuration
+@Profile("embedded-db")
+public class EmbeddedDatabaseConfig {
+
+    @Bean
+    DatabaseService databaseService(@Value("${embedded-db.dir:${data.outputdir}/embedded-db}") String directory,
+                                    AnalysisReadCache analysisReadCache) throws IOException {
+        return new EmbeddedDatabaseService(Paths.get(directory), analysisReadCache);
+    }
+}
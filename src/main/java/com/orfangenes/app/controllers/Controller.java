@@ -6,11 +6,17 @@ import com.fasterxml.jackson.databind.ObjectMapper;
 import com.orfangenes.app.ORFanGenes;
 import com.orfangenes.app.dto.*;
 import com.orfangenes.app.model.InputSequence;
+import com.orfangenes.app.service.AnalysisEventBroadcaster;
+import com.orfangenes.app.service.AnalysisEventPublisher;
+import com.orfangenes.app.service.AnalysisOutputs;
 import com.orfangenes.app.service.DatabaseService;
 import com.orfangenes.app.service.QueueService;
+import com.orfangenes.app.service.ResultsProcessingService;
+import com.orfangenes.app.service.UserResolver;
 import com.orfangenes.app.util.AccessionSearch;
 import com.orfangenes.app.util.Constants;
 import com.orfangenes.app.util.FileHandler;
+import com.orfangenes.app.util.GeneIndex;
 import com.orfangenes.app.model.Analysis;
 import com.orfangenes.app.model.User;
 import com.orfangenes.app.util.Utils;
@@ -18,24 +24,37 @@ import lombok.extern.slf4j.Slf4j;
 import org.apache.commons.lang3.RandomStringUtils;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
-import org.springframework.core.io.ByteArrayResource;
-import org.springframework.core.io.Resource;
+import org.springframework.core.io.FileSystemResource;
+import org.springframework.http.ContentDisposition;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
 import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.*;
+import org.springframework.web.context.request.WebRequest;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
 
+import javax.servlet.http.HttpServletRequest;
 import javax.validation.Valid;
 import java.io.File;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
 import java.text.SimpleDateFormat;
-import java.util.ArrayList;
-import java.util.Arrays;
-import java.util.Date;
-import java.util.List;
+import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.stream.Collectors;
+import java.util.zip.GZIPOutputStream;
 
 import static com.orfangenes.app.util.Constants.*;
 
@@ -52,32 +71,111 @@ public class Controller {
     @Autowired
     QueueService queueService;
 
+    @Autowired
+    AnalysisEventBroadcaster analysisEventBroadcaster;
+
+    @Autowired
+    AnalysisEventPublisher analysisEventPublisher;
+
+    @Autowired
+    UserResolver userResolver;
+
+    @Autowired
+    AnalysisOutputs analysisOutputs;
+
+    private static final String SENDFILE_SUPPORT = "org.apache.tomcat.sendfile.support";
+    private static final String SENDFILE_FILENAME = "org.apache.tomcat.sendfile.filename";
+    private static final String SENDFILE_START = "org.apache.tomcat.sendfile.start";
+    private static final String SENDFILE_END = "org.apache.tomcat.sendfile.end";
+
     private final ObjectMapper objectMapper = Utils.getJacksonObjectMapper();
 
 
     @Value("${data.outputdir}")
     private String OUTPUT_DIR;
 
+    @Value("${submission.parallelism:8}")
+    private int submissionParallelism;
+
+    /**
+     * Bulk submission: all the sequences are validated before any analysis is created, and a batch with
+     * an invalid sequence is rejected with the errors by index. The analyses are saved in one call, their
+     * input files written concurrently and they are queued in confirmed batches. An analysis whose input
+     * cannot be written, e.g. an accession not found at NCBI, is marked ERRORED instead of queued and its
+     * error is returned at the index of its sequence.
+     */
     @PostMapping("analyse/list")
-    public List<String> analyseList(@RequestBody List<InputSequence> sequences) throws Exception {
-        List<String> analysisIdList = new ArrayList<>();
+    public ResponseEntity<SubmissionDto> analyseList(@RequestBody List<InputSequence> sequences) throws Exception {
+        log.info("Analysis of " + sequences.size() + " sequences started....");
+        Map<Integer, String> errors = new TreeMap<>();
+        for (int i = 0; i < sequences.size(); i++) {
+            String error = validateInputSequence(sequences.get(i));
+            if (error != null) {
+                errors.put(i, error);
+            }
+        }
+        if (!errors.isEmpty()) {
+            log.error("Rejected a submission of " + sequences.size() + " sequences with " + errors.size() + " invalid sequences");
+            return ResponseEntity.badRequest().body(new SubmissionDto(null, errors));
+        }
+
+        Set<String> sessionIDs = new HashSet<>();
+        List<Analysis> analyses = new ArrayList<>();
         for (InputSequence sequence : sequences) {
-            String savedAnalysisId = analyse(sequence);
-            analysisIdList.add(savedAnalysisId);
+            String sessionID = createSessionID();
+            // sessions created within the same millisecond
+            while (!sessionIDs.add(sessionID)) {
+                sessionID = createSessionID();
+            }
+            analyses.add(createAnalysis(sessionID, sequence));
+        }
+        databaseService.savePendingAnalyses(analyses);
+        errors = saveInputSequences(analyses, sequences);
+
+        List<Analysis> queuedAnalyses = new ArrayList<>();
+        List<AnalysisStatusDto> failedStatuses = new ArrayList<>();
+        List<String> analysisIds = new ArrayList<>();
+        for (int i = 0; i < analyses.size(); i++) {
+            String analysisId = analyses.get(i).getAnalysisId();
+            if (errors.containsKey(i)) {
+                failedStatuses.add(new AnalysisStatusDto(analysisId, AnalysisStatus.ERRORED, AnalysisStatusDto.UNKNOWN_PROGRESS, 0));
+                analysisIds.add(null);
+            } else {
+                queuedAnalyses.add(analyses.get(i));
+                analysisIds.add(analysisId);
+            }
+        }
+        if (!failedStatuses.isEmpty()) {
+            databaseService.updateStatuses(failedStatuses);
+        }
+        if (!queuedAnalyses.isEmpty()) {
+            queueService.sendToQueue(queuedAnalyses);
         }
-        return analysisIdList;
+        return ResponseEntity.ok(new SubmissionDto(analysisIds, errors));
     }
 
     @PostMapping("/analyse")
     public String analyse(@RequestBody InputSequence sequence) throws Exception {
 
         log.info("Analysis started....");
-        final String sessionID = System.currentTimeMillis() + "_" + RandomStringUtils.randomAlphanumeric(3);
-        OUTPUT_DIR = (OUTPUT_DIR.endsWith("/"))? OUTPUT_DIR : OUTPUT_DIR + File.separator;
-        String analysisDir = OUTPUT_DIR + sessionID;
-        log.info("########### analysis  Dir: " + analysisDir);
-        String inputFastaFile = analysisDir + File.separator + Constants.INPUT_FASTA;
+        Analysis analysis = createAnalysis(createSessionID(), sequence);
+        databaseService.savePendingAnalysis(analysis);
+        try {
+            saveInputSequence(analysis.getAnalysisId(), sequence);
+        } catch (IOException e) {
+            log.error("Analysis Failed: " + e.getMessage());
+            databaseService.updateStatus(analysis.getAnalysisId(), AnalysisStatus.ERRORED);
+            throw e;
+        }
+        queueService.sendToQueue(analysis);
+        return analysis.getAnalysisId();
+    }
 
+    private static String createSessionID() {
+        return System.currentTimeMillis() + "_" + RandomStringUtils.randomAlphanumeric(3);
+    }
+
+    private Analysis createAnalysis(String sessionID, InputSequence sequence) throws IOException {
         String organismTaxID = sequence.getOrganismName().split("\\(")[1];
         organismTaxID = organismTaxID.substring(0, organismTaxID.length() - 1);
         int organismTax = Integer.parseInt(organismTaxID);
@@ -94,41 +192,102 @@ public class Controller {
 
         User user;
         if (sequence.getEmail() == null) {
-            user = databaseService.getUserByEmail(EMAIL);
-            if (user == null) {
-                user = new User();
-                user.setFirstName(FIRST_NAME);
-                user.setLastName(LAST_NAME);
-                user.setEmail(EMAIL);
-                user = databaseService.saveUser(user);
-            }
+            user = userResolver.resolve(EMAIL, FIRST_NAME, LAST_NAME);
         } else {
-            user = databaseService.getUserByEmail(sequence.getEmail());
-            if(user == null){
-                user = new User();
-                user.setFirstName(sequence.getFirstName());
-                user.setLastName(sequence.getLastName());
-                user.setEmail(sequence.getEmail());
-
-                user = databaseService.saveUser(user);
-            }
+            user = userResolver.resolve(sequence.getEmail(), sequence.getFirstName(), sequence.getLastName());
         }
         analysis.setUser(user);
-        databaseService.savePendingAnalysis(analysis);
+        return analysis;
+    }
 
+    /**
+     * Error of a sequence that cannot be submitted, or null when it is valid. Checks what
+     * {@link #createAnalysis(String, InputSequence)} parses, so that a batch is rejected before any analysis
+     * or user is created.
+     */
+    private static String validateInputSequence(InputSequence sequence) {
+        if (sequence == null) {
+            return "Missing sequence";
+        }
+        String organismName = sequence.getOrganismName();
+        if (organismName == null || !organismName.matches("[^(]+\\(\\d+\\)") || !isInteger(organismName.split("\\(")[1].replace(")", ""))) {
+            return "Organism must be given as name(taxonomy ID): " + organismName;
+        }
+        if (!isInteger(sequence.getMaxEvalue())) {
+            return "Invalid maximum E-value: " + sequence.getMaxEvalue();
+        }
+        if (!isInteger(sequence.getMaxTargetSequence())) {
+            return "Invalid maximum number of target sequences: " + sequence.getMaxTargetSequence();
+        }
+        if (!isInteger(sequence.getIdentity())) {
+            return "Invalid identity: " + sequence.getIdentity();
+        }
+        boolean hasSequence = sequence.getSequence() != null && !sequence.getSequence().trim().isEmpty();
+        boolean hasAccession = sequence.getAccession() != null && !sequence.getAccession().trim().isEmpty();
+        if (!hasSequence && !hasAccession) {
+            return "Either a sequence or an accession is required";
+        }
+        if (!hasSequence && (sequence.getAccessionType() == null || sequence.getAccessionType().trim().isEmpty())) {
+            return "The accession type is required with an accession";
+        }
+        return null;
+    }
+
+    private static boolean isInteger(String value) {
         try {
-            FileHandler.createResultsOutputDir(analysisDir);
-            FileHandler.saveInputSequence(analysisDir, sequence);
-        } catch (Exception e) {
-            log.error("Analysis Failed: " + e.getMessage());
+            Integer.parseInt(value);
+            return true;
+        } catch (NumberFormatException e) {
+            return false;
+        }
+    }
+
+    private void saveInputSequence(String sessionID, InputSequence sequence) throws IOException {
+        String analysisDir = FileHandler.getAnalysisDir(OUTPUT_DIR, sessionID);
+        log.info("########### analysis  Dir: " + analysisDir);
+        FileHandler.createResultsOutputDir(analysisDir);
+        FileHandler.saveInputSequence(analysisDir, sequence);
+    }
+
+    /**
+     * Writes the input files of the analyses on up to the configured number of threads, as sequences
+     * given by accession are fetched from NCBI first
+     *
+     * @return the errors of the analyses whose input could not be written, by index
+     */
+    private Map<Integer, String> saveInputSequences(List<Analysis> analyses, List<InputSequence> sequences) throws InterruptedException {
+        ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, Math.min(submissionParallelism, analyses.size())));
+        try {
+            List<Future<?>> futures = new ArrayList<>();
+            for (int i = 0; i < analyses.size(); i++) {
+                String sessionID = analyses.get(i).getAnalysisId();
+                InputSequence sequence = sequences.get(i);
+                futures.add(executor.submit(() -> {
+                    saveInputSequence(sessionID, sequence);
+                    return null;
+                }));
+            }
+            Map<Integer, String> errors = new TreeMap<>();
+            for (int i = 0; i < futures.size(); i++) {
+                try {
+                    futures.get(i).get();
+                } catch (ExecutionException e) {
+                    log.error("Analysis Failed: " + e.getCause().getMessage());
+                    errors.put(i, e.getCause().getMessage());
+                }
+            }
+            return errors;
+        } finally {
+            executor.shutdownNow();
         }
-        queueService.sendToQueue(analysis);
-        return sessionID;
     }
 
     @GetMapping("/analysis/cancel/{analysisId}")
     public void cancelAnalysis(@PathVariable String analysisId) {
         databaseService.cancelAnalysis(analysisId);
+        // the other instances drop their cached reads of the analysis
+        analysisEventPublisher.publish(AnalysisEventDto.status(
+                new AnalysisStatusDto(analysisId, AnalysisStatus.CANCELLED, AnalysisStatusDto.UNKNOWN_PROGRESS, 0)));
     }
 
     @PostMapping("/data/summary")
@@ -157,14 +316,60 @@ public class Controller {
         return objectMapper.readValue(databaseService.getAnalysisJsonById(analysisId), Analysis.class);
     }
 
+    @PostMapping("/data/status")
+    public AnalysisStatusDto getAnalysisStatus(@RequestBody SessionDto sessionDto) throws IOException {
+        return databaseService.getAnalysisStatus(sessionDto.getSessionId());
+    }
+
+    /**
+     * Statuses of many analyses in one request, e.g. of a list submission
+     */
+    @PostMapping("/data/status/list")
+    public List<AnalysisStatusDto> getAnalysisStatuses(@RequestBody List<String> analysisIds) {
+        return databaseService.getAnalysisStatuses(analysisIds);
+    }
+
+    /**
+     * Server-sent events of the analyses: "status" events with the status and progress, and "genes"
+     * events with the ORFan levels of the genes classified while BLAST is running
+     */
+    @GetMapping(value = "/data/events", produces = MediaType.TEXT_EVENT_STREAM_VALUE)
+    public SseEmitter getAnalysisEvents(@RequestParam("analysisIds") List<String> analysisIds) {
+        return analysisEventBroadcaster.subscribe(analysisIds);
+    }
+
     @PostMapping("/data/blast")
-    public String getBlast(@RequestBody SessionGeneDto sessionGeneDto) {
+    public String getBlast(@RequestBody SessionGeneDto sessionGeneDto) throws IOException {
         final String analysisId = sessionGeneDto.getSessionId();
         final String geneid = sessionGeneDto.getGeneId();
+        // from the blob store when the analysis ran on another instance
+        if (BLAST_TREES_COMPACT_FORMAT.equals(sessionGeneDto.getFormat())) {
+            String analysisDir = analysisOutputs.getAnalysisDir(analysisId, BLAST_TREES_COMPACT_FILE, BLAST_TREES_COMPACT_INDEX_FILE);
+            if (Files.isReadable(Paths.get(analysisDir, BLAST_TREES_COMPACT_FILE))) {
+                return ResultsProcessingService.readCompactBlastTree(analysisDir, geneid);
+            }
+        }
+        String analysisDir = analysisOutputs.getAnalysisDir(analysisId, BLAST_TREES_FILE, BLAST_TREES_INDEX_FILE);
+        if (Files.isReadable(Paths.get(analysisDir, BLAST_TREES_FILE))) {
+            return ResultsProcessingService.readBlastTree(analysisDir, geneid);
+        }
+        // analyses completed before the trees were saved per gene
         String blastResults = databaseService.getDataBlastResults(analysisId);
         return FileHandler.blastToJSON(blastResults, geneid);
     }
 
+    /**
+     * Name table of the compact BLAST trees of an analysis
+     */
+    @PostMapping("/data/blast/names")
+    public ResponseEntity<String> getBlastNames(@RequestBody SessionDto sessionDto) throws IOException {
+        String analysisDir = analysisOutputs.getAnalysisDir(sessionDto.getSessionId(), BLAST_TREE_NAMES_FILE);
+        if (!Files.isReadable(Paths.get(analysisDir, BLAST_TREE_NAMES_FILE))) {
+            return ResponseEntity.notFound().build();
+        }
+        return ResponseEntity.ok(ResultsProcessingService.readBlastTreeNames(analysisDir));
+    }
+
     @PostMapping("/save")
     public void saveResult(@Valid @RequestBody UserDto userFromForm) throws Exception {
         final String analysisId = userFromForm.getAnalysisId();
@@ -174,7 +379,7 @@ public class Controller {
 
         Analysis analysis = databaseService.getAnalysisById(analysisId);
         if(analysis !=null){
-            User user = databaseService.getUserByEmail(email);
+            User user = userResolver.find(email).orElse(null);
             if(user == null){
                 user = new User();
                 user.setId(-1l);
@@ -185,6 +390,8 @@ public class Controller {
             analysis.setUser(user);
             analysis.setSaved(true);
             databaseService.saveAnalysis(analysis);
+            // a new user is saved with the analysis
+            userResolver.invalidate(email);
         }else{
             throw new Exception("Analysis not found for Analysis ID : " + analysisId);
         }
@@ -208,22 +415,153 @@ public class Controller {
     }
 
     @GetMapping("/download/blast/{sessionid}")
-    public ResponseEntity<Resource> downloadBlast(@PathVariable String sessionid) {
-        OUTPUT_DIR = (OUTPUT_DIR.endsWith("/"))? OUTPUT_DIR : OUTPUT_DIR + File.separator;
-        String blastResultsFilePath = OUTPUT_DIR + sessionid + File.separator + Constants.BLAST_RESULTS_FILE;
-        File blastResultsFile = new File(blastResultsFilePath);
-        Path path = Paths.get(blastResultsFile.getAbsolutePath());
-        ByteArrayResource resource = null;
+    public ResponseEntity<?> downloadBlast(@PathVariable String sessionid,
+                                           @RequestParam(value = "geneId", required = false) String geneId,
+                                           @RequestHeader HttpHeaders requestHeaders,
+                                           HttpServletRequest request, WebRequest webRequest) throws IOException {
+        // the hit index and the gzip copy are fetched with the BLAST output when it is not on this instance
+        String analysisDir = analysisOutputs.getAnalysisDir(sessionid, Constants.BLAST_RESULTS_FILE,
+                (geneId != null) ? Constants.BLAST_RESULTS_INDEX_FILE : Constants.BLAST_RESULTS_FILE + GZIP_EXT);
+        Path blastResultsFile = Paths.get(analysisDir, Constants.BLAST_RESULTS_FILE);
+        if (!Files.isReadable(blastResultsFile)) {
+            log.error("Blast Results not found for session: " + sessionid);
+            return ResponseEntity.notFound().build();
+        }
+        // the BLAST output does not change once it is published, the validators let clients revalidate
+        // their copy and resume a download of the same output only
+        long lastModified = Files.getLastModifiedTime(blastResultsFile).toMillis();
+        String etag = "\"" + Long.toHexString(Files.size(blastResultsFile)) + "-" + Long.toHexString(lastModified) + "\"";
+
+        // hits of a single gene, located through the hit index
+        if (geneId != null) {
+            if (webRequest.checkNotModified(etag, lastModified)) {
+                return null;
+            }
+            GeneIndex index = GeneIndex.load(blastResultsFile, blastResultsFile.resolveSibling(Constants.BLAST_RESULTS_INDEX_FILE));
+            long[] ranges = index.getRanges(geneId);
+            if (ranges == null) {
+                return ResponseEntity.notFound().build();
+            }
+            HttpHeaders headers = createDownloadHeaders(sessionid + "_" + geneId + BLAST_EXT, etag, lastModified);
+            headers.setContentLength(index.getLength(geneId));
+            if (ranges.length == 2 && sendFile(request, blastResultsFile, ranges[0], ranges[0] + ranges[1])) {
+                return new ResponseEntity<>(headers, HttpStatus.OK);
+            }
+            StreamingResponseBody body = out -> transferRanges(blastResultsFile, ranges, out);
+            return new ResponseEntity<>(body, headers, HttpStatus.OK);
+        }
+
+        // a Range with an If-Range of an older output is answered with the whole output
+        boolean rangeRequest = requestHeaders.containsKey(HttpHeaders.RANGE);
+        boolean partialRequest = rangeRequest && isIfRangeMatching(requestHeaders, etag, lastModified);
+        String acceptEncoding = requestHeaders.getFirst(HttpHeaders.ACCEPT_ENCODING);
+        boolean gzipped = !rangeRequest && acceptEncoding != null && acceptEncoding.contains("gzip");
+        // the gzip encoding is another representation, with its own entity tag
+        if (gzipped) {
+            etag = etag.substring(0, etag.length() - 1) + "-gzip\"";
+        }
+        if (webRequest.checkNotModified(etag, lastModified)) {
+            return null;
+        }
+        HttpHeaders headers = createDownloadHeaders(sessionid + BLAST_EXT, etag, lastModified);
+        headers.set(HttpHeaders.ACCEPT_RANGES, "bytes");
+
+        if (gzipped) {
+            headers.set(HttpHeaders.CONTENT_ENCODING, "gzip");
+            headers.set(HttpHeaders.VARY, HttpHeaders.ACCEPT_ENCODING);
+            Path compressedFile = Paths.get(blastResultsFile + GZIP_EXT);
+            if (Files.exists(compressedFile)
+                    && Files.getLastModifiedTime(compressedFile).compareTo(Files.getLastModifiedTime(blastResultsFile)) >= 0) {
+                long size = Files.size(compressedFile);
+                headers.setContentLength(size);
+                if (sendFile(request, compressedFile, 0, size)) {
+                    return new ResponseEntity<>(headers, HttpStatus.OK);
+                }
+                return new ResponseEntity<>(new FileSystemResource(compressedFile), headers, HttpStatus.OK);
+            }
+            StreamingResponseBody body = out -> {
+                GZIPOutputStream gzip = new GZIPOutputStream(out, 64 * 1024);
+                Files.copy(blastResultsFile, gzip);
+                gzip.finish();
+            };
+            return new ResponseEntity<>(body, headers, HttpStatus.OK);
+        }
+
+        if (!partialRequest) {
+            long size = Files.size(blastResultsFile);
+            headers.setContentLength(size);
+            if (sendFile(request, blastResultsFile, 0, size)) {
+                return new ResponseEntity<>(headers, HttpStatus.OK);
+            }
+            if (rangeRequest) {
+                // not a resource, which Spring would answer with the requested range
+                StreamingResponseBody body = out -> Files.copy(blastResultsFile, out);
+                return new ResponseEntity<>(body, headers, HttpStatus.OK);
+            }
+        }
+        // Spring answers Range requests for file resources with 206 Partial Content
+        return new ResponseEntity<>(new FileSystemResource(blastResultsFile), headers, HttpStatus.OK);
+    }
+
+    private HttpHeaders createDownloadHeaders(String fileName, String etag, long lastModified) {
+        HttpHeaders headers = new HttpHeaders();
+        headers.setContentType(MediaType.APPLICATION_OCTET_STREAM);
+        headers.setContentDisposition(ContentDisposition.builder("attachment").filename(fileName).build());
+        headers.setETag(etag);
+        headers.setLastModified(lastModified);
+        return headers;
+    }
+
+    /**
+     * Whether the If-Range of the request, an entity tag or a date, is that of the current output, or
+     * the request has none
+     */
+    private static boolean isIfRangeMatching(HttpHeaders requestHeaders, String etag, long lastModified) {
+        String ifRange = requestHeaders.getFirst(HttpHeaders.IF_RANGE);
+        if (ifRange == null) {
+            return true;
+        }
+        if (ifRange.startsWith("\"") || ifRange.startsWith("W/")) {
+            // a weak entity tag never matches
+            return ifRange.equals(etag);
+        }
         try {
-            resource = new ByteArrayResource(Files.readAllBytes(path));
-        } catch (IOException e) {
-            log.error("Error while downloading Blast Results from session: " + sessionid, e);
+            // dates have a precision of seconds
+            return requestHeaders.getFirstDate(HttpHeaders.IF_RANGE) / 1000 == lastModified / 1000;
+        } catch (IllegalArgumentException e) {
+            return false;
         }
+    }
 
-        return ResponseEntity.ok()
-                .contentLength(blastResultsFile.length())
-                .contentType(MediaType.parseMediaType("application/octet-stream"))
-                .body(resource);
+    /**
+     * Hands the file over to Tomcat's sendfile support, which copies it to the socket without
+     * going through the heap. Returns false when the connector does not support sendfile.
+     */
+    private boolean sendFile(HttpServletRequest request, Path file, long start, long end) throws IOException {
+        if (!Boolean.TRUE.equals(request.getAttribute(SENDFILE_SUPPORT))) {
+            return false;
+        }
+        request.setAttribute(SENDFILE_FILENAME, file.toFile().getCanonicalPath());
+        request.setAttribute(SENDFILE_START, start);
+        request.setAttribute(SENDFILE_END, end);
+        return true;
+    }
+
+    private static void transferRanges(Path file, long[] ranges, OutputStream out) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            WritableByteChannel target = Channels.newChannel(out);
+            for (int i = 0; i < ranges.length; i += 2) {
+                long position = ranges[i];
+                long end = ranges[i] + ranges[i + 1];
+                while (position < end) {
+                    long transferred = channel.transferTo(position, end - position, target);
+                    if (transferred <= 0) {
+                        break;
+                    }
+                    position += transferred;
+                }
+            }
+        }
     }
 
     @PostMapping("/clamp")
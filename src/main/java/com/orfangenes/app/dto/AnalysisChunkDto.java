@@ -0,0 +1,24 @@
+package com.orfangenes.app.dto;
+
+import com.orfangenes.app.model.Analysis;
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+/**
+ * Work item of a fanned-out analysis: one chunk of its genes
+ */
+@Data
+@AllArgsConstructor
+@NoArgsConstructor
+public class AnalysisChunkDto {
+
+    private Analysis analysis;
+    // 0 based
+    private int chunkNo;
+    private int chunkCount;
+    // user the chunk is scheduled for, see AnalysisScheduler
+    private String userEmail;
+    // share of the estimated cost of the analysis, see JobSizeEstimator
+    private long estimatedCost;
+}
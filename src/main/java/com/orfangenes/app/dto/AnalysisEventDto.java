@@ -0,0 +1,39 @@
+package com.orfangenes.app.dto;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.orfangenes.app.util.Constants;
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import java.util.Map;
+
+/**
+ * Lifecycle event of an analysis pushed to the clients subscribed to it
+ */
+@Data
+@AllArgsConstructor
+@NoArgsConstructor
+@JsonInclude(JsonInclude.Include.NON_NULL)
+public class AnalysisEventDto {
+
+    public static final String STATUS = "status";
+    public static final String GENES = "genes";
+
+    private String analysisId;
+    // STATUS or GENES
+    private String type;
+    private Constants.AnalysisStatus status;
+    private Integer progress;
+    // ORFan levels of the genes classified since the previous GENES event, by gene ID
+    private Map<String, String> orfanLevels;
+
+    public static AnalysisEventDto status(AnalysisStatusDto status) {
+        Integer progress = status.getProgress() == AnalysisStatusDto.UNKNOWN_PROGRESS ? null : status.getProgress();
+        return new AnalysisEventDto(status.getAnalysisId(), STATUS, status.getStatus(), progress, null);
+    }
+
+    public static AnalysisEventDto genes(String analysisId, Map<String, String> orfanLevels) {
+        return new AnalysisEventDto(analysisId, GENES, null, null, orfanLevels);
+    }
+}
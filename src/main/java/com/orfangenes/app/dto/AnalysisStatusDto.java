@@ -0,0 +1,26 @@
+package com.orfangenes.app.dto;
+
+import com.orfangenes.app.util.Constants;
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+/**
+ * Status of an analysis without its results
+ */
+@Data
+@AllArgsConstructor
+@NoArgsConstructor
+public class AnalysisStatusDto {
+
+    public static final int UNKNOWN_PROGRESS = -1;
+
+    private String analysisId;
+    // null in a progress update, which leaves the status as it is
+    private Constants.AnalysisStatus status;
+    // percentage of the genes classified, or UNKNOWN_PROGRESS
+    private int progress = UNKNOWN_PROGRESS;
+    // incremented by the database API on every change of the analysis, 0 when not known. Only read, status
+    // writes set the status and progress they carry and never send the rest of the analysis.
+    private long version;
+}
@@ -0,0 +1,50 @@
+package com.orfangenes.app.dto;
+
+import com.orfangenes.app.model.Analysis;
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+/**
+ * Queued analysis: its ID, its parameters and the reference of its input in the blob store, instead of
+ * the whole analysis. The worker writes the results to the analysis directory in its data.outputdir and
+ * publishes the outputs served by the web tier to the blob store, see AnalysisOutputs.
+ */
+@Data
+@AllArgsConstructor
+@NoArgsConstructor
+public class AnalysisTask {
+
+    private String analysisId;
+    private String organism;
+    private int taxonomyId;
+    private String sequenceType;
+    private int evalue;
+    private int maximumTargetSequences;
+    private int identity;
+    // see BlobStore, null in messages queued before the inputs were kept in the blob store
+    private String inputRef;
+    // see JobSizeEstimator, 0 in messages queued before the estimates, which are run first
+    private long estimatedCost;
+    // user the analysis is scheduled for, see AnalysisScheduler
+    private String userEmail;
+
+    public static AnalysisTask of(Analysis analysis, String inputRef, long estimatedCost) {
+        return new AnalysisTask(analysis.getAnalysisId(), analysis.getOrganism(), analysis.getTaxonomyId(),
+                analysis.getSequenceType(), analysis.getEvalue(), analysis.getMaximumTargetSequences(),
+                analysis.getIdentity(), inputRef, estimatedCost,
+                (analysis.getUser() != null) ? analysis.getUser().getEmail() : null);
+    }
+
+    public Analysis toAnalysis() {
+        Analysis analysis = new Analysis();
+        analysis.setAnalysisId(analysisId);
+        analysis.setOrganism(organism);
+        analysis.setTaxonomyId(taxonomyId);
+        analysis.setSequenceType(sequenceType);
+        analysis.setEvalue(evalue);
+        analysis.setMaximumTargetSequences(maximumTargetSequences);
+        analysis.setIdentity(identity);
+        return analysis;
+    }
+}
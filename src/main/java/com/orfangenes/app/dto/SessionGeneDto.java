@@ -8,4 +8,6 @@ import lombok.Setter;
 public class SessionGeneDto {
     private String sessionId;
     private String geneId;
+    // "compact" for the dictionary encoded tree, JSON tree otherwise
+    private String format;
 }
@@ -0,0 +1,22 @@
+package com.orfangenes.app.dto;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Outcome of a bulk submission, by the index of the sequences in the request
+ */
+@Data
+@AllArgsConstructor
+@NoArgsConstructor
+public class SubmissionDto {
+
+    // analysis ID of each sequence, null for the sequences that were rejected or whose analysis failed
+    private List<String> analysisIds;
+    // error of each sequence that was rejected or whose analysis failed
+    private Map<Integer, String> errors;
+}
@@ -1,22 +1,44 @@
 package com.orfangenes.app.rabbitmq;
 
+import org.springframework.amqp.core.AnonymousQueue;
 import org.springframework.amqp.core.Binding;
 import org.springframework.amqp.core.BindingBuilder;
+import org.springframework.amqp.core.Declarable;
+import org.springframework.amqp.core.Declarables;
+import org.springframework.amqp.core.FanoutExchange;
 import org.springframework.amqp.core.Queue;
 import org.springframework.amqp.core.TopicExchange;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
+import org.springframework.context.annotation.Profile;
 
+import java.util.ArrayList;
+import java.util.List;
+
+// without a broker with the "embedded-queue" profile, see InProcessQueueService
 @Configuration
+@Profile("!embedded-queue")
 public class RabbitMQConfig {
 
     @Value("${rabbitmq.queue-name}")
     String queueName;
 
+    @Value("${rabbitmq.bulk-queue-count:1}")
+    int bulkQueueCount;
+
     @Value("${rabbitmq.exchange}")
     String exchange;
 
+    @Value("${rabbitmq.interactive-queue-name}")
+    String interactiveQueueName;
+
+    @Value("${rabbitmq.chunk-queue-name}")
+    String chunkQueueName;
+
+    @Value("${rabbitmq.events-exchange}")
+    String eventsExchange;
+
     @Bean
     Queue queue() {
         return new Queue(queueName, true);
@@ -31,4 +53,65 @@ public class RabbitMQConfig {
     Binding binding1(Queue queue, TopicExchange exchange) {
         return BindingBuilder.bind(queue).to(exchange).with(queueName);
     }
+
+    /**
+     * The bulk queues after the first one, see {@link #getBulkQueueNames(String, int)}
+     */
+    @Bean
+    Declarables bulkQueues(TopicExchange exchange) {
+        List<Declarable> declarables = new ArrayList<>();
+        List<String> bulkQueueNames = getBulkQueueNames(queueName, bulkQueueCount);
+        for (String name : bulkQueueNames.subList(1, bulkQueueNames.size())) {
+            Queue bulkQueue = new Queue(name, true);
+            declarables.add(bulkQueue);
+            declarables.add(BindingBuilder.bind(bulkQueue).to(exchange).with(name));
+        }
+        return new Declarables(declarables);
+    }
+
+    /**
+     * Bulk analyses are spread over the queues by user, so that the backlog of one user holds up the
+     * users of one queue only. The first queue is the analysis queue itself.
+     */
+    public static List<String> getBulkQueueNames(String queueName, int bulkQueueCount) {
+        List<String> names = new ArrayList<>();
+        names.add(queueName);
+        for (int queueNo = 1; queueNo < bulkQueueCount; queueNo++) {
+            names.add(queueName + "-" + queueNo);
+        }
+        return names;
+    }
+
+    // small analyses submitted on their own, see AnalysisScheduler
+    @Bean
+    Queue interactiveQueue() {
+        return new Queue(interactiveQueueName, true);
+    }
+
+    @Bean
+    Binding interactiveBinding(Queue interactiveQueue, TopicExchange exchange) {
+        return BindingBuilder.bind(interactiveQueue).to(exchange).with(interactiveQueueName);
+    }
+
+    // gene chunks of fanned-out analyses, see GeneChunkService
+    @Bean
+    Queue analysisChunkQueue() {
+        return new Queue(chunkQueueName, true);
+    }
+
+    @Bean
+    FanoutExchange analysisEventsExchange() {
+        return new FanoutExchange(eventsExchange);
+    }
+
+    // every instance receives all the analysis events, its queue goes away with the instance
+    @Bean
+    AnonymousQueue analysisEventsQueue() {
+        return new AnonymousQueue();
+    }
+
+    @Bean
+    Binding analysisEventsBinding(AnonymousQueue analysisEventsQueue, FanoutExchange analysisEventsExchange) {
+        return BindingBuilder.bind(analysisEventsQueue).to(analysisEventsExchange);
+    }
 }
@@ -0,0 +1,246 @@
+package com.orfangenes.app.service;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.orfangenes.app.dto.AnalysisEventDto;
+import com.orfangenes.app.dto.AnalysisStatusDto;
+import com.orfangenes.app.util.Constants.AnalysisStatus;
+import com.orfangenes.app.util.Utils;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.amqp.rabbit.annotation.RabbitListener;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter.SseEventBuilder;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Registry of the server-sent event streams of the clients, by analysis ID. The events published by
+ * the workers reach every web instance through its own queue bound to the events fanout exchange and
+ * are written to the streams subscribed to the analysis. Streams are asynchronous requests, so an
+ * idle subscriber holds a connection but no thread. A heartbeat comment keeps idle streams open
+ * through proxies and finds the clients that went away.
+ * <p>
+ * Events are queued per stream and written by the sender threads, as a write blocks while the client
+ * does not read. The Rabbit listener and the heartbeat never wait for a client, and a stream with more
+ * than max-pending events not written yet is closed; its client polls the status instead.
+ */
+@Slf4j
+@Service
+public class AnalysisEventBroadcaster {
+
+    // queued to close the stream once the events before it are written
+    private static final SseEventBuilder COMPLETE = SseEmitter.event();
+
+    @Autowired
+    DatabaseService databaseService;
+
+    @Autowired
+    AnalysisReadCache analysisReadCache;
+
+    @Autowired
+    AnalysisStatusCache analysisStatusCache;
+
+    @Value("${analysis.events.timeout-ms:1800000}")
+    private long timeout;
+
+    @Value("${analysis.events.heartbeat-interval-ms:15000}")
+    private long heartbeatInterval;
+
+    @Value("${analysis.events.sender-threads:4}")
+    private int senderThreads;
+
+    @Value("${analysis.events.max-pending:100}")
+    private int maxPending;
+
+    private final Map<String, Set<Subscriber>> subscribersByAnalysis = new ConcurrentHashMap<>();
+    private final ObjectMapper objectMapper = Utils.getJacksonObjectMapper();
+    private ScheduledExecutorService heartbeat;
+    private ExecutorService sender;
+
+    /**
+     * Stream of a client with the events not written to it yet
+     */
+    private class Subscriber {
+        final SseEmitter emitter;
+        final Set<String> analysisIds;
+        final Queue<SseEventBuilder> pending = new ConcurrentLinkedQueue<>();
+        final AtomicInteger pendingCount = new AtomicInteger();
+        // whether a sender thread is writing the pending events
+        final AtomicBoolean draining = new AtomicBoolean();
+        volatile boolean closed;
+
+        Subscriber(SseEmitter emitter, Set<String> analysisIds) {
+            this.emitter = emitter;
+            this.analysisIds = analysisIds;
+        }
+    }
+
+    @PostConstruct
+    public void start() {
+        heartbeat = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "analysis-events-heartbeat");
+            thread.setDaemon(true);
+            return thread;
+        });
+        heartbeat.scheduleWithFixedDelay(this::sendHeartbeat, heartbeatInterval, heartbeatInterval, TimeUnit.MILLISECONDS);
+        AtomicInteger threadCount = new AtomicInteger();
+        sender = Executors.newFixedThreadPool(senderThreads, runnable -> {
+            Thread thread = new Thread(runnable, "analysis-events-sender-" + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    @PreDestroy
+    public void stop() {
+        heartbeat.shutdownNow();
+        sender.shutdownNow();
+        subscribersByAnalysis.values().forEach(subscribers -> subscribers.forEach(subscriber -> subscriber.emitter.complete()));
+    }
+
+    /**
+     * Opens a stream of the events of the analyses. The current status of each analysis is sent first,
+     * and the stream is closed straight away when all of them have finished.
+     */
+    public SseEmitter subscribe(Collection<String> analysisIds) {
+        SseEmitter emitter = new SseEmitter(timeout);
+        Subscriber subscriber = new Subscriber(emitter, new LinkedHashSet<>(analysisIds));
+        emitter.onCompletion(() -> unsubscribe(subscriber));
+        emitter.onTimeout(() -> unsubscribe(subscriber));
+        emitter.onError(e -> unsubscribe(subscriber));
+        for (String analysisId : subscriber.analysisIds) {
+            subscribersByAnalysis.computeIfAbsent(analysisId, id -> ConcurrentHashMap.newKeySet()).add(subscriber);
+        }
+
+        // events published from here on are sent after the current statuses, possibly twice
+        List<AnalysisStatusDto> statuses = databaseService.getAnalysisStatuses(subscriber.analysisIds);
+        boolean allFinished = statuses.size() == subscriber.analysisIds.size();
+        for (AnalysisStatusDto status : statuses) {
+            enqueue(subscriber, toSseEvent(AnalysisEventDto.status(status)));
+            allFinished &= isFinal(status.getStatus());
+        }
+        if (allFinished) {
+            enqueue(subscriber, COMPLETE);
+        }
+        return emitter;
+    }
+
+    /**
+     * Events of every instance, after the change they announce was saved. The cached reads of the
+     * analysis are dropped, so this instance does not serve them until the cache TTLs expire.
+     */
+    // not registered without a broker ("embedded-queue" profile), see AnalysisEventPublisher
+    @RabbitListener(queues = "#{analysisEventsQueue.name}")
+    public void onEvent(String eventObj) throws IOException {
+        AnalysisEventDto event = objectMapper.readValue(eventObj, AnalysisEventDto.class);
+        analysisReadCache.invalidate(event.getAnalysisId());
+        analysisStatusCache.invalidate(event.getAnalysisId());
+        deliver(event);
+    }
+
+    /**
+     * Queues the event to the streams subscribed to its analysis
+     */
+    public void deliver(AnalysisEventDto event) {
+        Set<Subscriber> subscribers = subscribersByAnalysis.get(event.getAnalysisId());
+        if (subscribers == null) {
+            return;
+        }
+        SseEventBuilder sseEvent = toSseEvent(event);
+        for (Subscriber subscriber : subscribers) {
+            enqueue(subscriber, sseEvent);
+        }
+    }
+
+    private static SseEventBuilder toSseEvent(AnalysisEventDto event) {
+        return SseEmitter.event().name(event.getType()).data(event);
+    }
+
+    private void sendHeartbeat() {
+        Set<Subscriber> subscribers = Collections.newSetFromMap(new IdentityHashMap<>());
+        subscribersByAnalysis.values().forEach(subscribers::addAll);
+        for (Subscriber subscriber : subscribers) {
+            enqueue(subscriber, SseEmitter.event().comment("heartbeat"));
+        }
+    }
+
+    private void enqueue(Subscriber subscriber, SseEventBuilder event) {
+        if (subscriber.closed) {
+            return;
+        }
+        if (subscriber.pendingCount.incrementAndGet() > maxPending) {
+            log.warn("Closing the event stream of a client that does not read it, with " + maxPending + " events pending");
+            close(subscriber);
+            return;
+        }
+        subscriber.pending.add(event);
+        if (subscriber.draining.compareAndSet(false, true)) {
+            execute(() -> drain(subscriber));
+        }
+    }
+
+    /**
+     * Writes the pending events of the stream, on a sender thread
+     */
+    private void drain(Subscriber subscriber) {
+        do {
+            SseEventBuilder event;
+            while (!subscriber.closed && (event = subscriber.pending.poll()) != null) {
+                subscriber.pendingCount.decrementAndGet();
+                if (event == COMPLETE) {
+                    subscriber.closed = true;
+                    unsubscribe(subscriber);
+                    subscriber.emitter.complete();
+                    break;
+                }
+                try {
+                    subscriber.emitter.send(event);
+                } catch (IOException | IllegalStateException e) {
+                    subscriber.closed = true;
+                    unsubscribe(subscriber);
+                    subscriber.emitter.completeWithError(e);
+                }
+            }
+            subscriber.draining.set(false);
+            // events queued after the poll above and before draining was cleared
+        } while (!subscriber.closed && !subscriber.pending.isEmpty() && subscriber.draining.compareAndSet(false, true));
+    }
+
+    /**
+     * Closes the stream without waiting for a write in progress, which holds the emitter
+     */
+    private void close(Subscriber subscriber) {
+        subscriber.closed = true;
+        unsubscribe(subscriber);
+        execute(subscriber.emitter::complete);
+    }
+
+    private void execute(Runnable task) {
+        try {
+            sender.execute(task);
+        } catch (RejectedExecutionException e) {
+            // shutting down, the streams are closed by stop
+        }
+    }
+
+    private void unsubscribe(Subscriber subscriber) {
+        for (String analysisId : subscriber.analysisIds) {
+            subscribersByAnalysis.computeIfPresent(analysisId, (id, subscribers) -> {
+                subscribers.remove(subscriber);
+                return subscribers.isEmpty() ? null : subscribers;
+            });
+        }
+    }
+
+    private static boolean isFinal(AnalysisStatus status) {
+        return AnalysisStatus.COMPLETED.equals(status) || AnalysisStatus.CANCELLED.equals(status) || AnalysisStatus.ERRORED.equals(status);
+    }
+}
@@ -0,0 +1,53 @@
+package com.orfangenes.app.service;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.orfangenes.app.dto.AnalysisEventDto;
+import com.orfangenes.app.util.Utils;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.amqp.AmqpException;
+import org.springframework.amqp.core.Message;
+import org.springframework.amqp.core.MessageBuilder;
+import org.springframework.amqp.core.MessageProperties;
+import org.springframework.amqp.rabbit.core.RabbitTemplate;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+/**
+ * Publishes analysis lifecycle events to the events fanout exchange, from which every web instance
+ * pushes them to its subscribed clients. Events are best effort: a failure is logged and the
+ * analysis carries on, clients can still read the status from the database API. Without a broker
+ * ("embedded-queue" profile) the events are handed to the broadcaster of this instance.
+ */
+@Slf4j
+@Service
+public class AnalysisEventPublisher {
+
+    @Autowired(required = false)
+    private RabbitTemplate rabbitTemplate;
+
+    @Autowired
+    private AnalysisEventBroadcaster analysisEventBroadcaster;
+
+    @Value("${rabbitmq.events-exchange}")
+    private String eventsExchange;
+
+    private final ObjectMapper objectMapper = Utils.getJacksonObjectMapper();
+
+    public void publish(AnalysisEventDto event) {
+        if (rabbitTemplate == null) {
+            analysisEventBroadcaster.deliver(event);
+            return;
+        }
+        try {
+            Message message = MessageBuilder
+                    .withBody(objectMapper.writeValueAsBytes(event))
+                    .setContentType(MessageProperties.CONTENT_TYPE_JSON)
+                    .build();
+            rabbitTemplate.send(eventsExchange, "", message);
+        } catch (JsonProcessingException | AmqpException e) {
+            log.warn("Could not publish " + event.getType() + " event of analysis " + event.getAnalysisId() + ": " + e.getMessage());
+        }
+    }
+}
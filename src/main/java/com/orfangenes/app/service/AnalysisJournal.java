@@ -0,0 +1,165 @@
+package com.orfangenes.app.service;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.orfangenes.app.dto.AnalysisTask;
+import com.orfangenes.app.service.AnalysisScheduler.Lane;
+import com.orfangenes.app.util.Utils;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Journal of the analyses taken by this instance and not done yet, so that the analyses waiting or
+ * running when the instance stopped are queued again when it starts. An analysis is appended before it
+ * is handed to the scheduler and marked as done once it has run. Opening the journal rewrites it with
+ * the analyses not done, and it starts over whenever all of them are done.
+ * <p>
+ * Journal lines are "Q TAB lane TAB task" for a queued analysis and "D TAB analysisId" once it has run.
+ */
+@Slf4j
+public class AnalysisJournal {
+
+    private final Path file;
+    private final ObjectMapper objectMapper = Utils.getJacksonObjectMapper();
+    // analyses queued or running, by ID
+    private final Map<String, Entry> pending = new LinkedHashMap<>();
+    private FileChannel journal;
+
+    public AnalysisJournal(Path file) {
+        this.file = file;
+    }
+
+    /**
+     * Reads the analyses not done, rewrites the journal with them and opens it for appending
+     *
+     * @return the analyses not done, in the order they were queued
+     */
+    public synchronized List<Entry> open() throws IOException {
+        Files.createDirectories(file.toAbsolutePath().getParent());
+        Map<String, String> notDone = readJournal(file);
+        Path tmpFile = file.resolveSibling(file.getFileName() + ".tmp");
+        Files.write(tmpFile, String.join("", notDone.values()).getBytes(StandardCharsets.UTF_8));
+        Files.move(tmpFile, file, StandardCopyOption.REPLACE_EXISTING);
+        journal = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+
+        for (String line : notDone.values()) {
+            String[] columns = line.trim().split("\t", 3);
+            AnalysisTask task = objectMapper.readValue(columns[2], AnalysisTask.class);
+            pending.put(task.getAnalysisId(), new Entry(task, Lane.valueOf(columns[1])));
+        }
+        return new ArrayList<>(pending.values());
+    }
+
+    public synchronized void close() throws IOException {
+        if (journal != null) {
+            journal.close();
+        }
+    }
+
+    /**
+     * Appends the analysis, unless it is in the journal already
+     *
+     * @return whether the analysis was appended
+     */
+    public synchronized boolean add(AnalysisTask task, Lane lane) throws IOException {
+        if (pending.containsKey(task.getAnalysisId())) {
+            return false;
+        }
+        write("Q\t" + lane.name() + "\t" + objectMapper.writeValueAsString(task) + "\n");
+        pending.put(task.getAnalysisId(), new Entry(task, lane));
+        return true;
+    }
+
+    /**
+     * Marks the analysis as done, a failure to do so only runs it again after a restart
+     */
+    public synchronized void remove(String analysisId) {
+        if (pending.remove(analysisId) == null) {
+            return;
+        }
+        try {
+            if (pending.isEmpty()) {
+                // every journaled analysis has run, the journal starts over
+                journal.truncate(0);
+            } else {
+                write("D\t" + analysisId + "\n");
+            }
+        } catch (IOException e) {
+            log.warn("Could not mark analysis " + analysisId + " as done in the queue journal: " + e.getMessage());
+        }
+    }
+
+    /**
+     * @return the analyses queued or running
+     */
+    public synchronized int size() {
+        return pending.size();
+    }
+
+    private void write(String line) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(line.getBytes(StandardCharsets.UTF_8));
+        while (buffer.hasRemaining()) {
+            journal.write(buffer);
+        }
+        journal.force(false);
+    }
+
+    /**
+     * @return the journal lines of the analyses queued but not done, by analysis ID
+     */
+    private static Map<String, String> readJournal(Path journalFile) throws IOException {
+        LinkedHashMap<String, String> notDone = new LinkedHashMap<>();
+        if (!Files.exists(journalFile)) {
+            return notDone;
+        }
+        try (BufferedReader reader = Files.newBufferedReader(journalFile, StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] columns = line.split("\t", 3);
+                if (columns[0].equals("D") && columns.length == 2) {
+                    notDone.remove(columns[1]);
+                } else if (columns[0].equals("Q") && columns.length == 3) {
+                    try {
+                        Lane.valueOf(columns[1]);
+                        String analysisId = Utils.getJacksonObjectMapper().readTree(columns[2]).path("analysisId").asText();
+                        notDone.put(analysisId, line + "\n");
+                    } catch (IOException | IllegalArgumentException e) {
+                        // a line cut short by a crash
+                        log.warn("Ignoring unreadable analysis in queue journal: " + line);
+                    }
+                }
+            }
+        }
+        return notDone;
+    }
+
+    public static class Entry {
+        private final AnalysisTask task;
+        private final Lane lane;
+
+        Entry(AnalysisTask task, Lane lane) {
+            this.task = task;
+            this.lane = lane;
+        }
+
+        public AnalysisTask getTask() {
+            return task;
+        }
+
+        public Lane getLane() {
+            return lane;
+        }
+    }
+}
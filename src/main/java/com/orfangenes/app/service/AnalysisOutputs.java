@@ -0,0 +1,133 @@
+package com.orfangenes.app.service;
+
+import com.orfangenes.app.storage.BlobStore;
+import com.orfangenes.app.util.FileHandler;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.FileTime;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import static com.orfangenes.app.util.Constants.*;
+
+/**
+ * Outputs of the analyses served by the web tier: the BLAST output with its hit index and gzip copy, and
+ * the BLAST trees. The worker that completes an analysis publishes them to the {@link BlobStore}, so the
+ * web tier does not need the data.outputdir of the workers. The web tier reads an output from the
+ * analysis directory when it is there, e.g. on the instance that ran the analysis, and otherwise copies it
+ * from the blob store to a cache on its own disk, where outputs not read for the cache retention are deleted.
+ */
+@Slf4j
+@Service
+public class AnalysisOutputs {
+
+    // data files before their indexes, so that an index is not older than its data
+    static final List<String> PUBLISHED_FILES = Arrays.asList(
+            BLAST_RESULTS_FILE, BLAST_RESULTS_FILE + GZIP_EXT, BLAST_RESULTS_INDEX_FILE,
+            BLAST_TREES_FILE, BLAST_TREES_INDEX_FILE, BLAST_TREES_COMPACT_FILE, BLAST_TREES_COMPACT_INDEX_FILE,
+            BLAST_TREE_NAMES_FILE);
+
+    @Autowired
+    BlobStore blobStore;
+
+    @Value("${data.outputdir}")
+    private String OUTPUT_DIR;
+
+    @Value("${analysis.outputs.cache-dir:${data.localdir}outputs}")
+    private String cacheDir;
+
+    @Value("${analysis.outputs.cache-retention-days:7}")
+    private int cacheRetentionDays;
+
+    private ScheduledExecutorService sweeper;
+
+    @PostConstruct
+    public void start() {
+        sweeper = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "analysis-outputs-sweeper");
+            thread.setDaemon(true);
+            return thread;
+        });
+        sweeper.scheduleWithFixedDelay(this::sweep, 1, 24, TimeUnit.HOURS);
+    }
+
+    @PreDestroy
+    public void stop() {
+        sweeper.shutdownNow();
+    }
+
+    /**
+     * Stores the outputs in the analysis directory in the blob store, replacing those published before
+     */
+    public void publish(String analysisId, String analysisDir) throws IOException {
+        for (String fileName : PUBLISHED_FILES) {
+            Path file = Paths.get(analysisDir, fileName);
+            if (Files.exists(file)) {
+                blobStore.putNamed(analysisId + "/" + fileName, file);
+            }
+        }
+    }
+
+    /**
+     * Returns the directory to read the given outputs of the analysis from: the analysis directory when it
+     * has the first of them, the data the others belong to, otherwise the cache, where the outputs not
+     * cached yet are copied to from the blob store. Outputs that were not published are missing from the
+     * returned directory, as are those of analyses completed before the outputs were published.
+     */
+    public String getAnalysisDir(String analysisId, String... fileNames) throws IOException {
+        String analysisDir = FileHandler.getAnalysisDir(OUTPUT_DIR, analysisId);
+        if (Files.isReadable(Paths.get(analysisDir, fileNames[0]))) {
+            return analysisDir;
+        }
+        if (analysisId.contains("/") || analysisId.contains("\\") || analysisId.contains("..")) {
+            throw new IOException("Invalid analysis ID: " + analysisId);
+        }
+        Path cachedDir = Paths.get(FileHandler.getAnalysisDir(cacheDir, analysisId));
+        Files.createDirectories(cachedDir);
+        // in the order published, data files before their indexes
+        for (String fileName : PUBLISHED_FILES) {
+            Path file = cachedDir.resolve(fileName);
+            if (Arrays.asList(fileNames).contains(fileName) && !Files.exists(file)
+                    && !blobStore.getNamed(analysisId + "/" + fileName, file)) {
+                log.debug("Output " + fileName + " of analysis " + analysisId + " was not published");
+            }
+        }
+        // the retention of the cached outputs starts over
+        Files.setLastModifiedTime(cachedDir, FileTime.fromMillis(System.currentTimeMillis()));
+        return cachedDir.toString();
+    }
+
+    private void sweep() {
+        if (cacheRetentionDays <= 0 || !Files.isDirectory(Paths.get(cacheDir))) {
+            return;
+        }
+        long cutoff = System.currentTimeMillis() - TimeUnit.DAYS.toMillis(cacheRetentionDays);
+        try (DirectoryStream<Path> cachedDirs = Files.newDirectoryStream(Paths.get(cacheDir), Files::isDirectory)) {
+            for (Path cachedDir : cachedDirs) {
+                if (Files.getLastModifiedTime(cachedDir).toMillis() < cutoff) {
+                    try (DirectoryStream<Path> files = Files.newDirectoryStream(cachedDir)) {
+                        for (Path file : files) {
+                            Files.deleteIfExists(file);
+                        }
+                    }
+                    Files.deleteIfExists(cachedDir);
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            log.error("Could not sweep the cached analysis outputs: " + e.getMessage());
+        }
+    }
+}
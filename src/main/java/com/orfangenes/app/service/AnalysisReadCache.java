@@ -0,0 +1,103 @@
+package com.orfangenes.app.service;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.Expiry;
+import io.micrometer.core.instrument.Metrics;
+import io.micrometer.core.instrument.binder.cache.CaffeineCacheMetrics;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+/**
+ * Read-through cache of the database API responses of an analysis (analysis, summary, chart, genes...),
+ * keyed by analysis ID. The cache is bounded by the total length of the cached responses, as the
+ * responses of large analyses are much larger than others. Entries of analyses in progress expire after
+ * the TTL. A completed analysis does not change any more, so its entry is kept for the longer pinned TTL
+ * after its last response was loaded, unless it is evicted by weight or invalidated.
+ */
+public class AnalysisReadCache {
+
+    private final Cache<String, AnalysisEntry> cache;
+
+    /**
+     * @param maximumWeight total length (in characters) of the cached responses
+     */
+    public AnalysisReadCache(long maximumWeight, long ttlSeconds, long pinnedTtlSeconds) {
+        long ttlNanos = TimeUnit.SECONDS.toNanos(ttlSeconds);
+        long pinnedTtlNanos = TimeUnit.SECONDS.toNanos(pinnedTtlSeconds);
+        this.cache = Caffeine.newBuilder()
+                .maximumWeight(maximumWeight)
+                .weigher((String analysisId, AnalysisEntry entry) -> entry.getWeight())
+                .expireAfter(new Expiry<String, AnalysisEntry>() {
+                    @Override
+                    public long expireAfterCreate(String analysisId, AnalysisEntry entry, long currentTime) {
+                        return entry.completed ? pinnedTtlNanos : ttlNanos;
+                    }
+
+                    // the entry is put again when it is pinned and when a response is added to it
+                    @Override
+                    public long expireAfterUpdate(String analysisId, AnalysisEntry entry, long currentTime, long currentDuration) {
+                        return entry.completed ? pinnedTtlNanos : currentDuration;
+                    }
+
+                    @Override
+                    public long expireAfterRead(String analysisId, AnalysisEntry entry, long currentTime, long currentDuration) {
+                        return currentDuration;
+                    }
+                })
+                .recordStats()
+                .build();
+        CaffeineCacheMetrics.monitor(Metrics.globalRegistry, cache, "analysis");
+    }
+
+    /**
+     * @param kind   the response of the analysis, e.g. "summary"
+     * @param loader remote call, made when the response is not cached
+     */
+    public String get(String analysisId, String kind, Supplier<String> loader) {
+        AnalysisEntry entry = cache.get(analysisId, id -> new AnalysisEntry());
+        String response = entry.responses.get(kind);
+        if (response == null) {
+            response = loader.get();
+            // a response loaded while the analysis was being invalidated belongs to the old entry only
+            if (response != null) {
+                entry.responses.put(kind, response);
+                // re-weighs the entry
+                cache.asMap().replace(analysisId, entry, entry);
+            }
+        }
+        return response;
+    }
+
+    /**
+     * Keeps the entry of the analysis for the pinned TTL, unless it is evicted by weight or invalidated
+     */
+    public void pin(String analysisId) {
+        AnalysisEntry entry = cache.getIfPresent(analysisId);
+        if (entry != null && !entry.completed) {
+            entry.completed = true;
+            // re-evaluates the expiry of the entry
+            cache.asMap().replace(analysisId, entry, entry);
+        }
+    }
+
+    public void invalidate(String analysisId) {
+        cache.invalidate(analysisId);
+    }
+
+    private static class AnalysisEntry {
+        private final Map<String, String> responses = new ConcurrentHashMap<>();
+        private volatile boolean completed = false;
+
+        private int getWeight() {
+            long length = 1;
+            for (String response : responses.values()) {
+                length += response.length();
+            }
+            return (int) Math.min(length, Integer.MAX_VALUE);
+        }
+    }
+}
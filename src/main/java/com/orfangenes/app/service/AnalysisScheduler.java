@@ -0,0 +1,375 @@
+package com.orfangenes.app.service;
+
+import com.orfangenes.app.storage.ContentHash;
+import io.micrometer.core.instrument.Metrics;
+import io.micrometer.core.instrument.MultiGauge;
+import io.micrometer.core.instrument.Tags;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs the analyses received from the queue, fairly across the users and shortest job first. The
+ * queue services hand over up to a window of analyses per lane, and a window of their own for the users
+ * running as many analyses as they may, and whenever a worker is free the next analysis is chosen in two steps:
+ * <ul>
+ * <li>the user furthest behind: the scheduler keeps the estimated cost of the analyses run for each
+ * user, and the user with the least cost run goes next (start-time fair queuing), so each user gets
+ * about the same share of the workers however many analyses they submit. A user who starts submitting
+ * begins level with the others instead of with the credit of the time they had nothing waiting.</li>
+ * <li>the analysis of that user with the lowest estimated cost, unless some of its analyses have waited
+ * longer than the maximum wait, then the one that has waited longest, so large analyses are not starved
+ * by a stream of small ones</li>
+ * </ul>
+ * Users may run at most the configured number of analyses at the same time. Bulk analyses use at most
+ * the configured number of workers. The reserved workers run only interactive analyses, so these do
+ * not wait for the bulk backlog.
+ */
+@Slf4j
+@Service
+public class AnalysisScheduler {
+
+    public enum Lane {INTERACTIVE, BULK}
+
+    // analyses queued without a user
+    private static final String UNKNOWN_USER = "unknown";
+
+    @Value("${analysis.scheduling.workers:${rabbitmq.concurrent-consumer-count}}")
+    private int workers;
+
+    @Value("${analysis.scheduling.interactive-reserved-workers:1}")
+    private int reservedWorkers;
+
+    // waited before an analysis runs ahead of the cheaper analyses of its user
+    @Value("${analysis.scheduling.max-wait-ms:1800000}")
+    private long maxWait;
+
+    // 0 for no limit
+    @Value("${analysis.scheduling.fair-share.max-running-per-user:2}")
+    private int maxRunningPerUser;
+
+    // users with the most analyses waiting or running, published in the per-user metrics
+    @Value("${analysis.scheduling.fair-share.metrics-top-users:10}")
+    private int metricsTopUsers;
+
+    private final Object lock = new Object();
+    // users with analyses waiting or running
+    private final Map<String, UserQueue> users = new HashMap<>();
+    // analyses waiting or running
+    private final Set<String> analysisIds = new HashSet<>();
+    private final AtomicInteger interactiveWaiting = new AtomicInteger();
+    private final AtomicInteger bulkWaiting = new AtomicInteger();
+    private int running = 0;
+    private int runningBulk = 0;
+    private long sequence = 0;
+    // cost run for the user who ran last, where users who start submitting begin
+    private long virtualTime = 0;
+    private ThreadPoolExecutor executor;
+    private MultiGauge userWaiting;
+    private MultiGauge userRunning;
+
+    @PostConstruct
+    public void start() {
+        AtomicInteger threadNo = new AtomicInteger();
+        executor = new ThreadPoolExecutor(workers + reservedWorkers, workers + reservedWorkers,
+                60, TimeUnit.SECONDS, new LinkedBlockingQueue<>(), runnable -> {
+            Thread thread = new Thread(runnable, "analysis-worker-" + threadNo.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        executor.allowCoreThreadTimeOut(true);
+        Metrics.gauge("analysis.scheduler.waiting", Tags.of("lane", "interactive"), interactiveWaiting);
+        Metrics.gauge("analysis.scheduler.waiting", Tags.of("lane", "bulk"), bulkWaiting);
+        userWaiting = MultiGauge.builder("analysis.scheduler.user.waiting").register(Metrics.globalRegistry);
+        userRunning = MultiGauge.builder("analysis.scheduler.user.running").register(Metrics.globalRegistry);
+    }
+
+    /**
+     * Analyses still waiting are in the journal of the AnalysisWorker, and run again on startup
+     */
+    @PreDestroy
+    public void stop() {
+        executor.shutdown();
+    }
+
+    /**
+     * @param user email of the user who submitted the analysis, may be null
+     * @param cost estimated cost of the analysis, see {@link JobSizeEstimator}
+     * @param work runs the analysis
+     * @return false when the analysis is waiting or running already, it is not submitted again
+     */
+    public boolean submit(String analysisId, String user, Lane lane, long cost, Runnable work) {
+        String userKey = (user == null || user.isEmpty()) ? UNKNOWN_USER : user;
+        synchronized (lock) {
+            if (!analysisIds.add(analysisId)) {
+                return false;
+            }
+            UserQueue userQueue = users.computeIfAbsent(userKey, key -> new UserQueue(key, virtualTime));
+            if (userQueue.waiting.isEmpty()) {
+                userQueue.costRun = Math.max(userQueue.costRun, virtualTime);
+            }
+            userQueue.waiting.add(new Job(analysisId, userKey, lane, cost, work, System.currentTimeMillis(), sequence++));
+            counter(lane).incrementAndGet();
+            dispatch();
+            return true;
+        }
+    }
+
+    /**
+     * Takes back an analysis that has not started, e.g. to return it to the broker
+     *
+     * @return false when the analysis is not waiting, it may be running then
+     */
+    public boolean withdraw(String analysisId) {
+        synchronized (lock) {
+            for (UserQueue userQueue : users.values()) {
+                for (Job job : userQueue.waiting) {
+                    if (job.analysisId.equals(analysisId)) {
+                        userQueue.waiting.remove(job);
+                        counter(job.lane).decrementAndGet();
+                        analysisIds.remove(analysisId);
+                        if (userQueue.running == 0 && userQueue.waiting.isEmpty()) {
+                            users.remove(userQueue.user);
+                        }
+                        return true;
+                    }
+                }
+            }
+            return false;
+        }
+    }
+
+    /**
+     * Changes the number of workers of bulk analyses, running analyses are not interrupted
+     */
+    public void setWorkers(int workers) {
+        synchronized (lock) {
+            int threads = workers + reservedWorkers;
+            if (threads > executor.getMaximumPoolSize()) {
+                executor.setMaximumPoolSize(threads);
+                executor.setCorePoolSize(threads);
+            } else {
+                executor.setCorePoolSize(threads);
+                executor.setMaximumPoolSize(threads);
+            }
+            this.workers = workers;
+            dispatch();
+        }
+    }
+
+    public int getWorkers() {
+        synchronized (lock) {
+            return workers;
+        }
+    }
+
+    public int getWaitingCount() {
+        return interactiveWaiting.get() + bulkWaiting.get();
+    }
+
+    /**
+     * @return the analyses waiting on the lane whose users may run another analysis
+     */
+    public int getRunnableWaitingCount(Lane lane) {
+        return getWaitingCount(lane, false);
+    }
+
+    /**
+     * @return the analyses waiting on the lane whose users run as many analyses as they may
+     */
+    public int getCappedWaitingCount(Lane lane) {
+        return getWaitingCount(lane, true);
+    }
+
+    private int getWaitingCount(Lane lane, boolean capped) {
+        synchronized (lock) {
+            int count = 0;
+            for (UserQueue userQueue : users.values()) {
+                if ((maxRunningPerUser > 0 && userQueue.running >= maxRunningPerUser) != capped) {
+                    continue;
+                }
+                for (Job job : userQueue.waiting) {
+                    if (job.lane == lane) {
+                        count++;
+                    }
+                }
+            }
+            return count;
+        }
+    }
+
+    private void dispatch() {
+        long now = System.currentTimeMillis();
+        while (running < workers + reservedWorkers && !executor.isShutdown()) {
+            Job job = next(now);
+            if (job == null) {
+                break;
+            }
+            UserQueue userQueue = users.get(job.user);
+            userQueue.waiting.remove(job);
+            userQueue.running++;
+            counter(job.lane).decrementAndGet();
+            running++;
+            if (job.lane == Lane.BULK) {
+                runningBulk++;
+            }
+            Metrics.timer("analysis.scheduler.wait", "lane", job.lane.name().toLowerCase())
+                    .record(now - job.submitTime, TimeUnit.MILLISECONDS);
+            executor.execute(() -> run(job));
+        }
+        publishUserMetrics();
+    }
+
+    /**
+     * @return the analysis to run next, or null
+     */
+    private Job next(long now) {
+        UserQueue nextUser = null;
+        Job next = null;
+        for (UserQueue userQueue : users.values()) {
+            if (maxRunningPerUser > 0 && userQueue.running >= maxRunningPerUser) {
+                continue;
+            }
+            Job job = userQueue.next(now);
+            if (job == null) {
+                continue;
+            }
+            // ties go to the user who has waited longest for a worker
+            if (next == null || userQueue.costRun < nextUser.costRun
+                    || (userQueue.costRun == nextUser.costRun && userQueue.lastRun < nextUser.lastRun)) {
+                nextUser = userQueue;
+                next = job;
+            }
+        }
+        if (next == null) {
+            return null;
+        }
+        virtualTime = nextUser.costRun;
+        nextUser.costRun += next.cost;
+        nextUser.lastRun = sequence++;
+        return next;
+    }
+
+    private void run(Job job) {
+        try {
+            job.work.run();
+        } catch (RuntimeException e) {
+            log.error("Analysis " + job.analysisId + " Failed: " + e.getMessage());
+        } finally {
+            synchronized (lock) {
+                analysisIds.remove(job.analysisId);
+                running--;
+                if (job.lane == Lane.BULK) {
+                    runningBulk--;
+                }
+                UserQueue userQueue = users.get(job.user);
+                userQueue.running--;
+                if (userQueue.running == 0 && userQueue.waiting.isEmpty()) {
+                    users.remove(job.user);
+                }
+                dispatch();
+            }
+        }
+    }
+
+    /**
+     * Publishes the users with the most analyses, tagged with a hash of their email so the metrics do
+     * not carry the emails and their series stay few
+     */
+    private void publishUserMetrics() {
+        List<MultiGauge.Row<?>> waitingRows = new ArrayList<>();
+        List<MultiGauge.Row<?>> runningRows = new ArrayList<>();
+        List<UserQueue> topUsers = new ArrayList<>(users.values());
+        topUsers.sort(Comparator.comparingInt((UserQueue userQueue) -> userQueue.waiting.size() + userQueue.running).reversed());
+        for (UserQueue userQueue : topUsers.subList(0, Math.min(metricsTopUsers, topUsers.size()))) {
+            Tags tags = Tags.of("user", userQueue.metricsKey);
+            waitingRows.add(MultiGauge.Row.of(tags, userQueue.waiting.size()));
+            runningRows.add(MultiGauge.Row.of(tags, userQueue.running));
+        }
+        userWaiting.register(waitingRows, true);
+        userRunning.register(runningRows, true);
+    }
+
+    private AtomicInteger counter(Lane lane) {
+        return (lane == Lane.INTERACTIVE) ? interactiveWaiting : bulkWaiting;
+    }
+
+    private class UserQueue {
+        private final String user;
+        private final String metricsKey;
+        private final List<Job> waiting = new ArrayList<>();
+        private int running = 0;
+        // estimated cost of the analyses run for the user
+        private long costRun;
+        private long lastRun = -1;
+
+        UserQueue(String user, long costRun) {
+            this.user = user;
+            this.metricsKey = UNKNOWN_USER.equals(user) ? user : ContentHash.sha256Hex(user).substring(0, 12);
+            this.costRun = costRun;
+        }
+
+        /**
+         * @return the analysis of the user to run next that may run, or null
+         */
+        private Job next(long now) {
+            Job next = null;
+            for (Job job : waiting) {
+                if (job.lane == Lane.BULK && runningBulk >= workers) {
+                    continue;
+                }
+                if (next == null || runsBefore(job, next, now)) {
+                    next = job;
+                }
+            }
+            return next;
+        }
+
+        private boolean runsBefore(Job job, Job other, long now) {
+            boolean overdue = now - job.submitTime >= maxWait;
+            if (overdue != (now - other.submitTime >= maxWait)) {
+                return overdue;
+            }
+            if (overdue) {
+                // the one that has waited longest
+                return job.sequence < other.sequence;
+            }
+            return job.cost < other.cost || (job.cost == other.cost && job.sequence < other.sequence);
+        }
+    }
+
+    private static class Job {
+        private final String analysisId;
+        private final String user;
+        private final Lane lane;
+        private final long cost;
+        private final Runnable work;
+        private final long submitTime;
+        // ties are run in the order received
+        private final long sequence;
+
+        Job(String analysisId, String user, Lane lane, long cost, Runnable work, long submitTime, long sequence) {
+            this.analysisId = analysisId;
+            this.user = user;
+            this.lane = lane;
+            this.cost = cost;
+            this.work = work;
+            this.submitTime = submitTime;
+            this.sequence = sequence;
+        }
+    }
+}
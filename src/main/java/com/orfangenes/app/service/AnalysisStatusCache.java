@@ -0,0 +1,63 @@
+package com.orfangenes.app.service;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.Expiry;
+import com.orfangenes.app.dto.AnalysisStatusDto;
+import com.orfangenes.app.util.Constants.AnalysisStatus;
+import io.micrometer.core.instrument.Metrics;
+import io.micrometer.core.instrument.binder.cache.CaffeineCacheMetrics;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+/**
+ * Statuses of analyses for the status polling of the UI, keyed by analysis ID. Statuses expire after
+ * the TTL, except those of completed and cancelled analyses, which do not change any more.
+ */
+public class AnalysisStatusCache {
+
+    private final Cache<String, AnalysisStatusDto> cache;
+
+    public AnalysisStatusCache(long maximumSize, long ttlSeconds) {
+        long ttlNanos = TimeUnit.SECONDS.toNanos(ttlSeconds);
+        this.cache = Caffeine.newBuilder()
+                .maximumSize(maximumSize)
+                .expireAfter(new Expiry<String, AnalysisStatusDto>() {
+                    @Override
+                    public long expireAfterCreate(String analysisId, AnalysisStatusDto status, long currentTime) {
+                        return isFinal(status) ? Long.MAX_VALUE : ttlNanos;
+                    }
+
+                    @Override
+                    public long expireAfterUpdate(String analysisId, AnalysisStatusDto status, long currentTime, long currentDuration) {
+                        return expireAfterCreate(analysisId, status, currentTime);
+                    }
+
+                    @Override
+                    public long expireAfterRead(String analysisId, AnalysisStatusDto status, long currentTime, long currentDuration) {
+                        return currentDuration;
+                    }
+                })
+                .recordStats()
+                .build();
+        CaffeineCacheMetrics.monitor(Metrics.globalRegistry, cache, "analysisStatus");
+    }
+
+    private static boolean isFinal(AnalysisStatusDto status) {
+        return AnalysisStatus.COMPLETED.equals(status.getStatus()) || AnalysisStatus.CANCELLED.equals(status.getStatus());
+    }
+
+    /**
+     * @param loader loads the statuses that are not cached in one call. Analyses it does not return are left out.
+     */
+    public Map<String, AnalysisStatusDto> getAll(Iterable<String> analysisIds,
+                                                 Function<Iterable<? extends String>, Map<String, AnalysisStatusDto>> loader) {
+        return cache.getAll(analysisIds, loader);
+    }
+
+    public void invalidate(String analysisId) {
+        cache.invalidate(analysisId);
+    }
+}
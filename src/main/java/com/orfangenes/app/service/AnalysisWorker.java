@@ -0,0 +1,225 @@
+package com.orfangenes.app.service;
+
+import com.orfangenes.app.ORFanGenes;
+import com.orfangenes.app.dto.AnalysisChunkDto;
+import com.orfangenes.app.dto.AnalysisStatusDto;
+import com.orfangenes.app.dto.AnalysisTask;
+import com.orfangenes.app.model.Analysis;
+import com.orfangenes.app.service.AnalysisScheduler.Lane;
+import com.orfangenes.app.storage.BlobStore;
+import com.orfangenes.app.storage.ContentHash;
+import com.orfangenes.app.util.Constants;
+import com.orfangenes.app.util.FileHandler;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs the analyses taken from the queue on this instance, whichever {@link QueueService} is used. Without
+ * a broker an analysis is journaled before it is handed to the {@link AnalysisScheduler} and marked as done
+ * once it has run, see {@link AnalysisJournal}. With a broker the broker keeps the analysis until it has
+ * run, see {@link RabbitQueueService}. An analysis that cannot be started, e.g. while the database API
+ * is down, is scheduled again after the retry delay. The input is fetched from the {@link BlobStore}, the
+ * results are written to the analysis directory in data.outputdir, and those served by the web tier are
+ * published to the blob store, see {@link AnalysisOutputs}.
+ */
+@Slf4j
+@Service
+public class AnalysisWorker {
+
+    @Autowired
+    ORFanGenes orFanGenes;
+
+    @Autowired
+    DatabaseService databaseService;
+
+    @Autowired
+    StatusUpdateWriter statusUpdateWriter;
+
+    @Autowired
+    BlobStore blobStore;
+
+    @Autowired
+    AnalysisScheduler analysisScheduler;
+
+    // not available without a broker
+    @Autowired(required = false)
+    GeneChunkService geneChunkService;
+
+    @Value("${taxdump.dir}")
+    private String APP_DIR;
+
+    @Value("${data.outputdir}")
+    private String OUTPUT_DIR;
+
+    // on a disk of this instance, it holds the analyses queued in this instance without a broker
+    @Value("${analysis.worker.journal:${data.localdir}analysis-queue.journal}")
+    private String journalPath;
+
+    @Value("${analysis.worker.retry-delay-ms:30000}")
+    private long retryDelay;
+
+    private AnalysisJournal journal;
+    private ScheduledExecutorService retries;
+
+    @PostConstruct
+    public void start() throws IOException {
+        retries = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "analysis-retry");
+            thread.setDaemon(true);
+            return thread;
+        });
+        journal = new AnalysisJournal(Paths.get(journalPath));
+        List<AnalysisJournal.Entry> notDone = journal.open();
+        if (!notDone.isEmpty()) {
+            log.info("Queuing " + notDone.size() + " analyses again from " + journalPath);
+        }
+        for (AnalysisJournal.Entry entry : notDone) {
+            schedule(entry.getTask(), entry.getLane());
+        }
+    }
+
+    @PreDestroy
+    public void stop() throws IOException {
+        retries.shutdownNow();
+        journal.close();
+    }
+
+    /**
+     * Journals the analysis and hands it over to the scheduler
+     *
+     * @return false when the analysis is waiting or running on this instance already
+     * @throws IOException when the analysis could not be journaled, it is not scheduled then
+     */
+    public boolean accept(AnalysisTask task, Lane lane) throws IOException {
+        if (!journal.add(task, lane)) {
+            return false;
+        }
+        schedule(task, lane);
+        return true;
+    }
+
+    /**
+     * Hands the analysis over to the scheduler without journaling it, for a broker that keeps the analysis
+     * until it has run
+     *
+     * @param done called once the analysis has run, its failures are saved as its status
+     * @return false when the analysis is waiting or running on this instance already
+     */
+    public boolean run(AnalysisTask task, Lane lane, Runnable done) {
+        return schedule(task, lane, done);
+    }
+
+    /**
+     * Hands a chunk of a fanned-out analysis over to the scheduler, on the bulk lane of the user of the
+     * analysis, see {@link GeneChunkService}
+     *
+     * @param done called once the chunk has run, its failures are saved as the status of the analysis
+     * @return false when the chunk is waiting or running on this instance already
+     */
+    public boolean runChunk(AnalysisChunkDto chunk, Runnable done) {
+        return schedule(GeneChunkService.getJobId(chunk), chunk.getUserEmail(), Lane.BULK, chunk.getEstimatedCost(),
+                () -> geneChunkService.processChunk(chunk), done);
+    }
+
+    /**
+     * @return the analyses accepted and not done yet
+     */
+    public int getPendingCount() {
+        return journal.size();
+    }
+
+    private void schedule(AnalysisTask task, Lane lane) {
+        if (!schedule(task, lane, () -> journal.remove(task.getAnalysisId()))) {
+            log.warn("Analysis " + task.getAnalysisId() + " is waiting or running already");
+        }
+    }
+
+    private boolean schedule(AnalysisTask task, Lane lane, Runnable done) {
+        return schedule(task.getAnalysisId(), task.getUserEmail(), lane, task.getEstimatedCost(), () -> process(task), done);
+    }
+
+    private boolean schedule(String jobId, String user, Lane lane, long cost, Work work, Runnable done) {
+        return analysisScheduler.submit(jobId, user, lane, cost, () -> {
+            try {
+                work.run();
+            } catch (IOException e) {
+                log.error("Analysis " + jobId + " could not be started, retrying in " + retryDelay + " ms: " + e.getMessage());
+                retries.schedule(() -> {
+                    if (!schedule(jobId, user, lane, cost, work, done)) {
+                        log.warn("Analysis " + jobId + " is waiting or running already");
+                    }
+                }, retryDelay, TimeUnit.MILLISECONDS);
+                return;
+            }
+            done.run();
+        });
+    }
+
+    /**
+     * Runs the analysis unless it was cancelled. Failures of the analysis itself are saved as its status.
+     *
+     * @throws IOException when the status of the analysis could not be read
+     */
+    public void process(AnalysisTask task) throws IOException {
+        Analysis analysis = task.toAnalysis();
+
+        AnalysisStatusDto savedStatus = databaseService.getAnalysisStatus(analysis.getAnalysisId());
+        if (savedStatus != null && Constants.AnalysisStatus.CANCELLED.equals(savedStatus.getStatus())) {
+            return;
+        } else {
+            statusUpdateWriter.submit(analysis.getAnalysisId(), Constants.AnalysisStatus.START_PROCESSING);
+        }
+
+        String analysisDir = FileHandler.getAnalysisDir(OUTPUT_DIR, analysis.getAnalysisId());
+        log.info("########### analysis  Dir: " + analysisDir);
+        String inputFastaFile = analysisDir + File.separator + Constants.INPUT_FASTA;
+
+        try {
+            // null without a blob store, the input is in the analysis directory
+            if (task.getInputRef() != null) {
+                fetchInput(task.getInputRef(), Paths.get(inputFastaFile));
+            }
+            // large analyses are split into chunks for all the workers
+            if (geneChunkService != null && geneChunkService.fanOut(task, analysisDir)) {
+                return;
+            }
+            orFanGenes.run(
+                    inputFastaFile,
+                    analysisDir,
+                    analysis,
+                    APP_DIR);
+        } catch (Exception e) {
+            log.error("Analysis Failed: " + e.getMessage());
+            statusUpdateWriter.submit(analysis.getAnalysisId(), Constants.AnalysisStatus.ERRORED);
+        }
+    }
+
+    /**
+     * Copies the input from the blob store to the analysis directory, unless it is there already
+     */
+    private void fetchInput(String inputRef, Path inputFastaFile) throws IOException {
+        if (Files.exists(inputFastaFile) && inputRef.equals(ContentHash.PREFIX + ContentHash.sha256Hex(inputFastaFile))) {
+            return;
+        }
+        Files.createDirectories(inputFastaFile.getParent());
+        blobStore.get(inputRef, inputFastaFile);
+    }
+
+    private interface Work {
+        void run() throws IOException;
+    }
+}
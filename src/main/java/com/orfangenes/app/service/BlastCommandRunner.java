@@ -52,7 +52,11 @@ public class BlastCommandRunner {
                 "-num_threads", numberOfProcessors.toString());
         try {
             log.info("Executing Blast Command:{}", command.toString());
-            ProcessBuilder processBuilder = new ProcessBuilder(command);
+            // BLAST messages go to a log next to the results, so a full pipe cannot block it
+            File blastLog = new File(this.out, BLAST_LOG_FILE);
+            ProcessBuilder processBuilder = new ProcessBuilder(command)
+                    .redirectErrorStream(true)
+                    .redirectOutput(blastLog);
             Process process = processBuilder.start();
 
             // wait until the command get executed
@@ -60,6 +64,10 @@ public class BlastCommandRunner {
                 process.destroy();
                 process.waitFor();
                 throw new RuntimeException("BLAST error occurred");
+            } else if (process.exitValue() != 0) {
+                // the results are incomplete, they must not be taken as done
+                log.error("BLAST exited with " + process.exitValue() + ", see " + blastLog);
+                throw new RuntimeException("BLAST error occurred");
             } else {
                 log.info("BLAST successfully completed!!");
             }
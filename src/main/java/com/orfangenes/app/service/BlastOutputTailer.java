@@ -0,0 +1,150 @@
+package com.orfangenes.app.service;
+
+import com.orfangenes.app.model.BlastResult;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+
+/**
+ * Follows the BLAST output file while BLAST is still writing it. BLAST outfmt 6 rows are grouped by
+ * query, so the hits of a gene are complete as soon as a row of the next query appears. Each
+ * complete group of accepted hits is handed to the consumer on the tailer thread, and the idle action
+ * runs on it whenever the tailer waits for BLAST to write more.
+ */
+@Slf4j
+public class BlastOutputTailer implements Runnable {
+
+    private static final long POLL_INTERVAL_MS = 1000;
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final Path blastResultsFile;
+    private final Predicate<BlastResult> hitFilter;
+    private final Consumer<List<BlastResult>> hitGroupConsumer;
+    private final Runnable idleAction;
+
+    private volatile boolean blastFinished = false;
+    private volatile boolean aborted = false;
+
+    private String currentQueryId;
+    private List<BlastResult> currentHits = new ArrayList<>();
+
+    public BlastOutputTailer(Path blastResultsFile, Predicate<BlastResult> hitFilter,
+                             Consumer<List<BlastResult>> hitGroupConsumer, Runnable idleAction) {
+        this.blastResultsFile = blastResultsFile;
+        this.hitFilter = hitFilter;
+        this.hitGroupConsumer = hitGroupConsumer;
+        this.idleAction = idleAction;
+    }
+
+    /**
+     * BLAST has completed, the tailer reads the rest of the file, hands over the last group and stops
+     */
+    public void finish() {
+        blastFinished = true;
+    }
+
+    /**
+     * BLAST has failed, the tailer stops without handing over the group that is still open
+     */
+    public void abort() {
+        aborted = true;
+    }
+
+    @Override
+    public void run() {
+        try {
+            while (!Files.exists(blastResultsFile)) {
+                if (blastFinished || aborted) {
+                    return;
+                }
+                Thread.sleep(POLL_INTERVAL_MS);
+            }
+            try (FileChannel channel = FileChannel.open(blastResultsFile, StandardOpenOption.READ)) {
+                ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+                ByteArrayOutputStream line = new ByteArrayOutputStream();
+                while (!aborted) {
+                    // rows written before BLAST finished are all visible once the flag is seen
+                    boolean finished = blastFinished;
+                    int read = channel.read(buffer);
+                    if (read > 0) {
+                        buffer.flip();
+                        while (buffer.hasRemaining()) {
+                            byte b = buffer.get();
+                            if (b == '\n') {
+                                processLine(new String(line.toByteArray(), StandardCharsets.UTF_8));
+                                line.reset();
+                            } else {
+                                line.write(b);
+                            }
+                        }
+                        buffer.clear();
+                    } else if (finished) {
+                        if (line.size() > 0) {
+                            processLine(new String(line.toByteArray(), StandardCharsets.UTF_8));
+                        }
+                        closeGroup();
+                        return;
+                    } else {
+                        idle();
+                        Thread.sleep(POLL_INTERVAL_MS);
+                    }
+                }
+            }
+        } catch (IOException e) {
+            log.error("Error while reading BLAST output " + blastResultsFile + ": " + e.getMessage());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void processLine(String line) {
+        if (line.trim().isEmpty()) {
+            return;
+        }
+        BlastResult result;
+        try {
+            result = new BlastResult(line);
+        } catch (RuntimeException e) {
+            log.warn("Ignoring unreadable BLAST row: " + line);
+            return;
+        }
+        if (!result.getQueryid().equals(currentQueryId)) {
+            closeGroup();
+            currentQueryId = result.getQueryid();
+        }
+        if (hitFilter.test(result)) {
+            currentHits.add(result);
+        }
+    }
+
+    private void idle() {
+        try {
+            idleAction.run();
+        } catch (RuntimeException e) {
+            log.warn("Idle action of the BLAST output tailer failed: " + e.getMessage());
+        }
+    }
+
+    private void closeGroup() {
+        // genes without accepted hits are left to the final classification
+        if (!currentHits.isEmpty()) {
+            try {
+                hitGroupConsumer.accept(currentHits);
+            } catch (RuntimeException e) {
+                log.warn("Could not process hits of gene " + currentQueryId + ": " + e.getMessage());
+            }
+            currentHits = new ArrayList<>();
+        }
+    }
+}
@@ -0,0 +1,71 @@
+package com.orfangenes.app.service;
+
+import com.orfangenes.app.storage.BlobStore;
+import com.orfangenes.app.storage.LocalBlobStore;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Deletes the inputs in the local blob store that were not submitted again for the retention period,
+ * once a day. Every instance sweeps the shared directory, which is harmless as deleting is idempotent.
+ * The retention must be longer than an analysis can wait in the queue, as its input is only fetched
+ * when it starts. S3 buckets expire their blobs with a lifecycle rule instead, see
+ * {@link com.orfangenes.app.storage.S3BlobStore}.
+ */
+@Slf4j
+@Service
+@ConditionalOnProperty(name = "blob-store.type", havingValue = "local", matchIfMissing = true)
+public class BlobStoreSweeper {
+
+    @Autowired
+    BlobStore blobStore;
+
+    @Value("${blob-store.retention-days:30}")
+    private int retentionDays;
+
+    @Value("${blob-store.sweep-interval-ms:86400000}")
+    private long interval;
+
+    private ScheduledExecutorService scheduler;
+
+    @PostConstruct
+    public void start() {
+        if (retentionDays <= 0 || !(blobStore instanceof LocalBlobStore)) {
+            return;
+        }
+        scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "blob-store-sweeper");
+            thread.setDaemon(true);
+            return thread;
+        });
+        scheduler.scheduleWithFixedDelay(this::sweep, interval, interval, TimeUnit.MILLISECONDS);
+    }
+
+    @PreDestroy
+    public void stop() {
+        if (scheduler != null) {
+            scheduler.shutdownNow();
+        }
+    }
+
+    private void sweep() {
+        try {
+            int deleted = ((LocalBlobStore) blobStore).deleteOlderThan(TimeUnit.DAYS.toMillis(retentionDays));
+            if (deleted > 0) {
+                log.info("Deleted " + deleted + " inputs not submitted for " + retentionDays + " days from the blob store");
+            }
+        } catch (IOException | RuntimeException e) {
+            log.error("Could not sweep the blob store: " + e.getMessage());
+        }
+    }
+}
@@ -1,95 +1,226 @@
 package com.orfangenes.app.service;
 
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
 import com.orfangenes.app.util.ResultsPrinter;
 import com.orfangenes.app.model.BlastResult;
 import com.orfangenes.app.model.Gene;
 import lombok.extern.slf4j.Slf4j;
 
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 
 import static com.orfangenes.app.util.Constants.*;
 
 @Slf4j
 public class ClassificationService {
 
+    // TaxId(0), Scientific name of the taxonomy(1), species(2), Genus(3), Family(4), Order(5), Class(6),
+    // phylum(7), Kingdom(8), Super kingdom or Domain(9)
+    private static final int LINEAGE_SIZE = 10;
+    // code of a missing value, which does not contribute for the evidence based decision
+    private static final int NO_VALUE = -1;
+    // encoded lineages carry their lineage number after the rank codes
+    private static final int LINEAGE_ID = LINEAGE_SIZE;
+    private static final int MAX_CACHED_SIGNATURES = 100_000;
+
+    private static final List<String> CLASSIFICATION_LEVELS =
+            Arrays.asList(STRICT_ORFAN, // 0
+                    ORFAN_GENE, // 1
+                    GENUS_RESTRICTED_GENE, // 2
+                    FAMILY_RESTRICTED_GENE, // 3
+                    ORDER_RESTRICTED_GENE, // 4
+                    CLASS_RESTRICTED_GENE, // 5
+                    PHYLUM_RESTRICTED_GENE, // 6
+                    KINGDOM_RESTRICTED_GENE, // 7
+                    DOMAIN_RESTRICTED_GENE); // 8
+
     private TaxTreeService tree;
     private int organismTaxID;
 
     Map<String, List<List<String>>> taxonomyTreeForGenes;
     List<String> inputRankedLineage;
 
+    // Lineages are classified on integer codes of the taxonomy names, one dictionary per lineage column
+    private final List<Map<String, Integer>> nameCodes = new ArrayList<>();
+    // TaxTreeService hands out one lineage list per taxonomy ID, so each is encoded only once
+    private final Map<List<String>, int[]> encodedLineages = new IdentityHashMap<>();
+    // genes hitting the same set of lineages get the same classification, least recently used evicted first
+    private final Cache<LineageSignature, String> classificationCache = Caffeine.newBuilder()
+            .maximumSize(MAX_CACHED_SIGNATURES)
+            .build();
+
     public Map<String, List<List<String>>> getTaxonomyTreeForGenes() {
         return taxonomyTreeForGenes;
     }
 
     public ClassificationService(TaxTreeService tree, int organismTaxID, List<BlastResult> blastResults) {
+        this(tree, organismTaxID);
+        setBlastResults(blastResults);
+    }
+
+    /**
+     * Classifier for genes whose hits are passed to {@link #classify(List)} as they become available
+     */
+    public ClassificationService(TaxTreeService tree, int organismTaxID) {
         this.tree = tree;
         this.organismTaxID = organismTaxID;
+        this.taxonomyTreeForGenes = new HashMap<>();
+        // Lineage for input organism
+        this.inputRankedLineage = tree.getInputRankedLineage();
+
+        for (int columnNo = 0; columnNo < LINEAGE_SIZE; columnNo++) {
+            nameCodes.add(new HashMap<>());
+        }
+    }
 
+    /**
+     * Sets the BLAST hits of all the genes, used by {@link #getGeneClassification(List)} and for the taxonomy trees
+     */
+    public void setBlastResults(List<BlastResult> blastResults) {
         // Mapping between Gene ID and Lineage
         this.taxonomyTreeForGenes = tree.buildRankedLineageList(blastResults);
-        // Lineage for input organism
-        this.inputRankedLineage = tree.getInputRankedLineage();
     }
 
     public List<Gene> getGeneClassification(List<Gene> genes) {
-        Set<String> blastResultsCommonIds;
-        List<String> classificationLevels =
-                Arrays.asList(STRICT_ORFAN, // 0
-                                ORFAN_GENE, // 1
-                                GENUS_RESTRICTED_GENE, // 2
-                                FAMILY_RESTRICTED_GENE, // 3
-                                ORDER_RESTRICTED_GENE, // 4
-                                CLASS_RESTRICTED_GENE, // 5
-                                PHYLUM_RESTRICTED_GENE, // 6
-                                KINGDOM_RESTRICTED_GENE, // 7
-                                DOMAIN_RESTRICTED_GENE); // 8
-        Map<String, String> classification = new HashMap<>();
-        try {
+        if (log.isDebugEnabled()) {
             ResultsPrinter.displayTree(organismTaxID, inputRankedLineage, taxonomyTreeForGenes);
-            // travel though each gene
-            for (Map.Entry<String, List<List<String>>> entry : taxonomyTreeForGenes.entrySet()) {
-                String GeneId = entry.getKey();
-                List<List<String>> blastResultsRankedLineages = entry.getValue();
-                // travel though each lineage:
-                // TaxId(0), Scientific name of the taxonomy(1), species(2), Genus(3), Family(4), Order(5), Class(6),
-                // phylum(7), Kingdom(8), Super kingdom or Domain(9)
-                // start from Super kingdom(domain) and travel towards species
-                for (int columnNo = 9; columnNo > 0; columnNo--) {
-                    if (columnNo == 2) { continue;}// read the scientific species name instead species-level
-                    blastResultsCommonIds = new HashSet<>();
-                    // travel though each blast hits
-                    for (List<String> rankedLineage : blastResultsRankedLineages) {
-                        // skip any missing values, the do not contribute for the evidence based decision.
-                        if (rankedLineage != null) {
-                            if(!rankedLineage.get(columnNo).equals("") || rankedLineage.get(columnNo).equals(NOT_AVAILABLE)){
-                                // get distinct taxonomy Ids
-                                blastResultsCommonIds.add(rankedLineage.get(columnNo));
-                            }
-                        }
-                    }
-                    // add input organism taxonomy level name
-                    blastResultsCommonIds.add(inputRankedLineage.get(columnNo));
+        }
+        if (inputRankedLineage == null) {
+            log.error("Input organism " + organismTaxID + " does not have a lineage. Genes cannot be classified");
+            return genes;
+        }
+        Map<String, String> classification = classify(taxonomyTreeForGenes);
+        genes.forEach(gene -> {
+            gene.setOrfanLevel((classification.get(gene.getGeneId()) != null)?classification.get(gene.getGeneId()):STRICT_ORFAN);
+        });
+        return genes;
+    }
+
+    /**
+     * Classifies each gene from the ranked lineages of its BLAST hits. Lineages are encoded up front
+     * and the genes are then classified in parallel on the common ForkJoin pool. Results are memoised
+     * by the set of distinct hit lineages, which many genes of a submission share. Only the encoding
+     * holds the lock, as it grows the name dictionaries; the classification reads encoded lineages only.
+     *
+     * @param rankedLineagesForGenes mapping between Gene ID and the ranked lineages of its hits
+     * @return mapping between Gene ID and ORFan level
+     */
+    public Map<String, String> classify(Map<String, List<List<String>>> rankedLineagesForGenes) {
+        if (inputRankedLineage == null) {
+            log.error("Input organism " + organismTaxID + " does not have a lineage. Genes cannot be classified");
+            return new HashMap<>();
+        }
+        int[] inputLineage;
+        Map<String, int[][]> encodedLineagesForGenes = new HashMap<>();
+        // e.g. the incremental classifier and the final classification of an analysis
+        synchronized (encodedLineages) {
+            inputLineage = encodeInputLineage();
+            for (Map.Entry<String, List<List<String>>> entry : rankedLineagesForGenes.entrySet()) {
+                encodedLineagesForGenes.put(entry.getKey(), encodeDistinct(entry.getValue()));
+            }
+        }
+
+        Map<String, String> classification = new ConcurrentHashMap<>();
+        encodedLineagesForGenes.entrySet().parallelStream()
+                .forEach(entry -> classification.put(entry.getKey(), classifyCached(inputLineage, entry.getValue())));
+        return classification;
+    }
+
+    private String classifyCached(int[] inputLineage, int[][] blastResultsLineages) {
+        return classificationCache.get(new LineageSignature(blastResultsLineages),
+                signature -> classify(inputLineage, blastResultsLineages));
+    }
 
+    /**
+     * Classifies the genes of the given BLAST hits
+     *
+     * @return mapping between Gene ID and ORFan level
+     */
+    public Map<String, String> classify(List<BlastResult> blastResults) {
+        return classify(tree.buildRankedLineageList(blastResults));
+    }
+
+    /**
+     * Starts from Super kingdom(domain) and travels towards species. The gene is classified at the first
+     * level where a BLAST hit has a different taxonomy from the input organism (a homologous sibling).
+     */
+    private static String classify(int[] inputLineage, int[][] blastResultsLineages) {
+        for (int columnNo = LINEAGE_SIZE - 1; columnNo > 0; columnNo--) {
+            if (columnNo == 2) { continue;}// read the scientific species name instead species-level
+            int inputValue = inputLineage[columnNo];
+            for (int[] lineage : blastResultsLineages) {
+                int value = lineage[columnNo];
+                if (value != NO_VALUE && value != inputValue) {
                     // found homologous sibling(s)
-                    if (blastResultsCommonIds.size() > 1 ) {
-                        // found a classification
-                        classification.put(GeneId, classificationLevels.get(columnNo-1));
-                        break;
-                    } else if (columnNo == 1) { // no homologous sibling + reached to the species column
-                        classification.put(GeneId, classificationLevels.get(columnNo));
-                        break;
-                    }// otherwise let loop continue
+                    return CLASSIFICATION_LEVELS.get(columnNo - 1);
                 }
             }
+        }
+        // no homologous sibling up to the species column
+        return CLASSIFICATION_LEVELS.get(1);
+    }
+
+    private int[] encodeInputLineage() {
+        int[] encoded = new int[LINEAGE_SIZE];
+        for (int columnNo = 0; columnNo < LINEAGE_SIZE; columnNo++) {
+            // the input organism always takes part, even when the name is missing
+            encoded[columnNo] = code(columnNo, inputRankedLineage.get(columnNo));
+        }
+        return encoded;
+    }
 
-            genes.forEach(gene -> {
-                gene.setOrfanLevel((classification.get(gene.getGeneId()) != null)?classification.get(gene.getGeneId()):STRICT_ORFAN);
-            });
+    private int[][] encodeDistinct(List<List<String>> rankedLineages) {
+        Set<int[]> distinct = Collections.newSetFromMap(new IdentityHashMap<>());
+        for (List<String> rankedLineage : rankedLineages) {
+            // skip hits without a lineage
+            if (rankedLineage != null) {
+                distinct.add(encodedLineages.computeIfAbsent(rankedLineage, this::encode));
+            }
+        }
+        return distinct.toArray(new int[distinct.size()][]);
+    }
 
-        } catch (Exception e) {
-            log.error(e.getMessage());
+    private int[] encode(List<String> rankedLineage) {
+        int[] encoded = new int[LINEAGE_SIZE + 1];
+        for (int columnNo = 0; columnNo < LINEAGE_SIZE; columnNo++) {
+            String name = rankedLineage.get(columnNo);
+            encoded[columnNo] = name.equals("") ? NO_VALUE : code(columnNo, name);
+        }
+        encoded[LINEAGE_ID] = encodedLineages.size();
+        return encoded;
+    }
+
+    private int code(int columnNo, String name) {
+        Map<String, Integer> codes = nameCodes.get(columnNo);
+        return codes.computeIfAbsent(name, k -> codes.size());
+    }
+
+    /**
+     * Canonical signature of a gene's hits: the sorted numbers of its distinct hit lineages
+     */
+    private static final class LineageSignature {
+
+        private final int[] lineageIds;
+        private final int hashCode;
+
+        LineageSignature(int[][] blastResultsLineages) {
+            lineageIds = new int[blastResultsLineages.length];
+            for (int i = 0; i < blastResultsLineages.length; i++) {
+                lineageIds[i] = blastResultsLineages[i][LINEAGE_ID];
+            }
+            Arrays.sort(lineageIds);
+            hashCode = Arrays.hashCode(lineageIds);
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            return other instanceof LineageSignature && Arrays.equals(lineageIds, ((LineageSignature) other).lineageIds);
+        }
+
+        @Override
+        public int hashCode() {
+            return hashCode;
         }
-        return genes;
     }
 }
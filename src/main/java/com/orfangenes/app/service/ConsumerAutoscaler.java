@@ -0,0 +1,260 @@
+package com.orfangenes.app.service;
+
+import com.orfangenes.app.rabbitmq.RabbitMQConfig;
+import io.micrometer.core.instrument.Metrics;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.amqp.core.AmqpAdmin;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.context.annotation.Profile;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.OperatingSystemMXBean;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Adjusts the number of analysis workers of the {@link AnalysisScheduler} at runtime. A worker is added
+ * while analyses are waiting, as long as the load of the machine stays within the CPU budget and there is
+ * available memory for another analysis, and one is removed after the queues have been empty for a few
+ * checks. After a worker is added no other one is added for the cooldown, as the load average and the
+ * memory use of the new analysis take a while to show. The count stays within the configured minimum and
+ * maximum. The decisions are published as the analysis.consumers.* metrics.
+ * <p>
+ * Available memory is the headroom under the memory limit of the container (cgroup v2 or v1), the
+ * MemAvailable of the machine, whichever is lower, and the free physical memory where neither is known.
+ */
+@Slf4j
+@Service
+@ConditionalOnProperty(name = "rabbitmq.autoscaling.enabled", havingValue = "true", matchIfMissing = true)
+@Profile("!embedded-queue")
+public class ConsumerAutoscaler {
+
+    @Autowired
+    private AnalysisScheduler analysisScheduler;
+
+    @Autowired
+    private AmqpAdmin amqpAdmin;
+
+    @Value("${rabbitmq.queue-name}")
+    private String queueName;
+
+    @Value("${rabbitmq.interactive-queue-name}")
+    private String interactiveQueueName;
+
+    @Value("${rabbitmq.bulk-queue-count:1}")
+    private int bulkQueueCount;
+
+    @Value("${rabbitmq.autoscaling.min-consumers:1}")
+    private int minConsumers;
+
+    @Value("${rabbitmq.autoscaling.max-consumers:4}")
+    private int maxConsumers;
+
+    @Value("${rabbitmq.autoscaling.interval-ms:10000}")
+    private long interval;
+
+    // fraction of the cores the analyses may keep busy, judged on the system load average
+    @Value("${rabbitmq.autoscaling.cpu-budget:0.9}")
+    private double cpuBudget;
+
+    @Value("${rabbitmq.autoscaling.cores-per-analysis:4}")
+    private int coresPerAnalysis;
+
+    @Value("${rabbitmq.autoscaling.memory-per-analysis-mb:4096}")
+    private long memoryPerAnalysisMb;
+
+    // checks with an empty queue before a consumer is removed
+    @Value("${rabbitmq.autoscaling.idle-checks:3}")
+    private int idleChecks;
+
+    @Value("${rabbitmq.autoscaling.scale-up-cooldown-ms:60000}")
+    private long scaleUpCooldown;
+
+    private final OperatingSystemMXBean os = ManagementFactory.getOperatingSystemMXBean();
+    private final int cores = Runtime.getRuntime().availableProcessors();
+    private final AtomicInteger consumers = new AtomicInteger();
+    private final AtomicInteger queueDepth = new AtomicInteger();
+    private int emptyChecks = 0;
+    private long lastScaleUp = 0;
+    private ScheduledExecutorService scheduler;
+
+    @PostConstruct
+    public void start() {
+        Metrics.gauge("analysis.consumers", consumers);
+        Metrics.gauge("analysis.consumers.queue.depth", queueDepth);
+        scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "consumer-autoscaler");
+            thread.setDaemon(true);
+            return thread;
+        });
+        scheduler.scheduleWithFixedDelay(this::adjust, interval, interval, TimeUnit.MILLISECONDS);
+    }
+
+    @PreDestroy
+    public void stop() {
+        scheduler.shutdownNow();
+    }
+
+    private void adjust() {
+        try {
+            // analyses in the queues and waiting in the scheduler
+            int depth = analysisScheduler.getWaitingCount();
+            List<String> queueNames = new ArrayList<>(RabbitMQConfig.getBulkQueueNames(queueName, bulkQueueCount));
+            queueNames.add(interactiveQueueName);
+            for (String name : queueNames) {
+                Properties queue = amqpAdmin.getQueueProperties(name);
+                if (queue == null) {
+                    return;
+                }
+                depth += ((Number) queue.get(AmqpAdmin.QUEUE_MESSAGE_COUNT)).intValue();
+            }
+            queueDepth.set(depth);
+            int current = analysisScheduler.getWorkers();
+            emptyChecks = (depth == 0) ? emptyChecks + 1 : 0;
+
+            int target = current;
+            String reason;
+            if (depth > 0) {
+                String limit = scaleUpLimit(current);
+                if (limit == null) {
+                    target = current + 1;
+                    reason = "backlog";
+                } else {
+                    reason = limit;
+                }
+            } else if (emptyChecks >= idleChecks) {
+                target = current - 1;
+                emptyChecks = 0;
+                reason = "idle";
+            } else {
+                reason = "steady";
+            }
+            target = Math.max(minConsumers, Math.min(maxConsumers, target));
+            record(current, target, reason);
+            if (target > current) {
+                lastScaleUp = System.currentTimeMillis();
+            }
+            if (target != current) {
+                log.info("Changing analysis workers from " + current + " to " + target + " (" + reason
+                        + ", " + depth + " queued, load " + os.getSystemLoadAverage() + ")");
+                analysisScheduler.setWorkers(target);
+            }
+            consumers.set(target);
+        } catch (RuntimeException e) {
+            log.warn("Could not adjust the analysis workers: " + e.getMessage());
+        }
+    }
+
+    /**
+     * @return why another consumer cannot be added, or null when it can
+     */
+    private String scaleUpLimit(int current) {
+        if (current >= maxConsumers) {
+            return "max-consumers";
+        }
+        if (System.currentTimeMillis() - lastScaleUp < scaleUpCooldown) {
+            return "cooldown";
+        }
+        // one more analysis must fit in the CPU budget
+        int cpuCapacity = (int) Math.floor(cores * cpuBudget / Math.max(1, coresPerAnalysis));
+        double load = os.getSystemLoadAverage();
+        if (current >= Math.max(1, cpuCapacity) || (load >= 0 && load + coresPerAnalysis > cores * cpuBudget)) {
+            return "cpu";
+        }
+        long availableMemoryMb = getAvailableMemoryMb();
+        if (availableMemoryMb >= 0 && availableMemoryMb < memoryPerAnalysisMb) {
+            return "memory";
+        }
+        return null;
+    }
+
+    /**
+     * Memory available to another analysis, otherwise -1, see the class comment
+     */
+    private long getAvailableMemoryMb() {
+        long available = readMemAvailable();
+        long containerHeadroom = readCgroupHeadroom();
+        if (containerHeadroom >= 0) {
+            available = (available >= 0) ? Math.min(available, containerHeadroom) : containerHeadroom;
+        }
+        if (available < 0 && os instanceof com.sun.management.OperatingSystemMXBean) {
+            available = ((com.sun.management.OperatingSystemMXBean) os).getFreePhysicalMemorySize();
+        }
+        return (available >= 0) ? available / (1024 * 1024) : -1;
+    }
+
+    /**
+     * @return MemAvailable of /proc/meminfo in bytes, or -1
+     */
+    private static long readMemAvailable() {
+        try {
+            for (String line : Files.readAllLines(Paths.get("/proc/meminfo"))) {
+                if (line.startsWith("MemAvailable:")) {
+                    return Long.parseLong(line.replaceAll("[^0-9]", "")) * 1024;
+                }
+            }
+        } catch (IOException | NumberFormatException e) {
+            log.debug("Could not read /proc/meminfo: " + e.getMessage());
+        }
+        return -1;
+    }
+
+    /**
+     * @return the memory limit of the container minus its usage in bytes, or -1 without a limit. Inactive
+     * page cache counts as available, as the kernel reclaims it before the limit is hit.
+     */
+    private static long readCgroupHeadroom() {
+        try {
+            Path v2 = Paths.get("/sys/fs/cgroup/memory.max");
+            if (Files.exists(v2)) {
+                return getHeadroom(v2, Paths.get("/sys/fs/cgroup/memory.current"),
+                        Paths.get("/sys/fs/cgroup/memory.stat"), "inactive_file");
+            }
+            Path v1 = Paths.get("/sys/fs/cgroup/memory/memory.limit_in_bytes");
+            if (Files.exists(v1)) {
+                return getHeadroom(v1, Paths.get("/sys/fs/cgroup/memory/memory.usage_in_bytes"),
+                        Paths.get("/sys/fs/cgroup/memory/memory.stat"), "total_inactive_file");
+            }
+        } catch (IOException | NumberFormatException e) {
+            log.debug("Could not read the memory limit of the container: " + e.getMessage());
+        }
+        return -1;
+    }
+
+    private static long getHeadroom(Path limitFile, Path usageFile, Path statFile, String inactiveFileKey) throws IOException {
+        String limitValue = new String(Files.readAllBytes(limitFile), StandardCharsets.UTF_8).trim();
+        // "max" on cgroup v2, and close to Long.MAX_VALUE on cgroup v1 without a limit
+        if (limitValue.equals("max") || Long.parseLong(limitValue) >= Long.MAX_VALUE / 2) {
+            return -1;
+        }
+        long usage = Long.parseLong(new String(Files.readAllBytes(usageFile), StandardCharsets.UTF_8).trim());
+        if (Files.exists(statFile)) {
+            for (String line : Files.readAllLines(statFile)) {
+                if (line.startsWith(inactiveFileKey + " ")) {
+                    usage -= Long.parseLong(line.substring(inactiveFileKey.length() + 1).trim());
+                }
+            }
+        }
+        return Math.max(0, Long.parseLong(limitValue) - usage);
+    }
+
+    private void record(int current, int target, String reason) {
+        String decision = (target > current) ? "up" : (target < current) ? "down" : "hold";
+        Metrics.counter("analysis.consumers.decisions", "decision", decision, "reason", reason).increment();
+    }
+}
@@ -1,139 +1,112 @@
 package com.orfangenes.app.service;
 
-import com.fasterxml.jackson.core.JsonProcessingException;
-import com.fasterxml.jackson.databind.ObjectMapper;
-import com.orfangenes.app.util.RestCall;
-import com.orfangenes.app.util.Utils;
+import com.orfangenes.app.dto.AnalysisStatusDto;
 import com.orfangenes.app.model.Analysis;
+import com.orfangenes.app.model.Gene;
 import com.orfangenes.app.model.User;
-import lombok.extern.slf4j.Slf4j;
-import org.springframework.util.LinkedMultiValueMap;
-import org.springframework.util.MultiValueMap;
+import com.orfangenes.app.util.Constants;
 
 import java.io.IOException;
+import java.util.Collection;
+import java.util.List;
 
 /**
- * @author Suresh Hewapathirana
+ * Persistence of analyses, their genes and users. {@link RestDatabaseService} keeps them in ORFanBase
+ * through its database API, {@link EmbeddedDatabaseService} in local files for single-node deployments
+ * (profile "embedded-db"). The data reads return JSON in the format of the database API.
  */
-@Slf4j
-public class DatabaseService {
+public interface DatabaseService {
 
-    private final ObjectMapper objectMapper = Utils.getJacksonObjectMapper();
-    RestCall restCall;
+    /** =========================== ANALYSIS =========================== */
 
-    public DatabaseService(RestCall restCall) {
-        this.restCall = restCall;
-    }
+    /**
+     * Genes of the saved analyses, as a JSON array of {@link com.orfangenes.app.dto.Genes}
+     */
+    String getOrfanbaseGenes();
 
-    /** =========================== ANALYSIS =========================== */
+    /**
+     * @return the analysis with its genes, or null when it does not exist
+     */
+    Analysis getAnalysisById(String analysisId) throws IOException;
+
+    String getAnalysisJsonById(String analysisId);
+
+    /**
+     * Reads the status of the analysis without its results
+     *
+     * @return null when the analysis does not exist
+     */
+    AnalysisStatusDto getAnalysisStatus(String analysisId) throws IOException;
+
+    /**
+     * Statuses of many analyses, in the order of the IDs. Unknown analyses are left out.
+     */
+    List<AnalysisStatusDto> getAnalysisStatuses(Collection<String> analysisIds);
 
-    public String getOrfanbaseGenes() {
-        String url = "analysis/orfanbase-table";
-        return restCall.sendGetRequestWithRetry(url, null, null);
-    }
-
-    public Analysis getAnalysisById(String analysisId) throws IOException {
-        MultiValueMap<String, String> queryParams =  new LinkedMultiValueMap<>();;
-        queryParams.add("analysisId" , analysisId);
-        String response = restCall.sendGetRequestWithRetry("analysis/analysis", null, queryParams);
-        if(response !=null){
-            return (Analysis) this.objectMapper.readValue(response, Analysis.class);
-        }else{
-            return null;
-        }
-    }
-
-    public String getAnalysisJsonById(String analysisId) {
-        MultiValueMap<String, String> queryParams =  new LinkedMultiValueMap<>();;
-        queryParams.add("analysisId" , analysisId);
-        String response = restCall.sendGetRequestWithRetry("analysis/analysis", null, queryParams);
-        return response;
-    }
-
-    public Analysis saveAnalysis(Analysis analysis) throws IOException {
-        String url = "/analysis/analysis";
-        Long id = analysis.getId();
-        if (id == null) {
-            id = -1L;
-            analysis.setId(id);
-        }
-
-        String payload = this.objectMapper.writeValueAsString(analysis);
-        payload = payload.replaceAll("\"analysis\":null", "\"analysis\":" + id);
-        payload = payload.replaceAll("\"analysis\": null", "\"analysis\":" + id);
-        log.info("Saving analysis : " + payload);
-        String response = this.restCall.sendPostRequest(url, payload);
-        return (Analysis) this.objectMapper.readValue(response, Analysis.class);
-    }
+    Analysis saveAnalysis(Analysis analysis) throws IOException;
+
+    /**
+     * All the analyses, as a JSON array of {@link com.orfangenes.app.dto.AnalysisResultsTableRaw}
+     */
+    String getAllAnalysis();
 
     /** =========================== GENE =========================== */
 
-    public String getAllAnalysis() {
-        String url = "analysis/analyses/all-analysis-table";
-        return restCall.sendGetRequestWithRetry(url, null, null);
-    }
+    /**
+     * Saves (inserts or updates) the given genes of an analysis, e.g. genes classified while BLAST is running
+     *
+     * @throws UnsupportedOperationException when {@link #canSaveGenes()} is false
+     */
+    void saveGenes(String analysisId, List<Gene> genes);
+
+    /**
+     * @return false when genes are only saved with their analysis by {@link #update(Analysis)}, as with
+     * database APIs without a genes endpoint
+     */
+    boolean canSaveGenes();
 
     /** =========================== USER =========================== */
 
-    public User getUserByEmail(String email) throws IOException {
-        MultiValueMap<String, String> queryParams =  new LinkedMultiValueMap<>();;
-        queryParams.add("email" , email);
-        String response = restCall.sendGetRequestWithRetry("user", null, queryParams);
-        if(response !=null){
-            return (User) this.objectMapper.readValue(response, User.class);
-        }else{
-            return null;
-        }
-    }
-
-    public User saveUser(User user) throws IOException {
-        String url = "/user";
-        Long id = user.getId();
-        if (id == null) {
-            id = -1L;
-            user.setId(id);
-        }
-
-        String payload = this.objectMapper.writeValueAsString(user);
-        log.info("Saving user : " + payload);
-        String response = this.restCall.sendPostRequest(url, payload);
-        return (User) this.objectMapper.readValue(response, User.class);
-    }
-
-    public String getDataSummary(String analysisId) {
-        String url = "analysis/data/summary/" + analysisId;
-        return restCall.sendGetRequestWithRetry(url, null, null);
-    }
-
-    public String getDataSummaryChart(String analysisId) {
-        String url = "analysis/data/summary-chart/" + analysisId;
-        return restCall.sendGetRequestWithRetry(url, null, null);
-    }
-
-    public String getDataGeneList(String analysisId) {
-        String url = "analysis/data/genes/" + analysisId;
-        return restCall.sendGetRequestWithRetry(url, null, null);
-    }
-
-    public String getDataBlastResults(String analysisId) {
-        String url = "analysis/data/blastresults/" + analysisId;
-        return restCall.sendGetRequestWithRetry(url, null, null);
-    }
-
-    public void savePendingAnalysis(Analysis analysis) throws JsonProcessingException {
-        String url = "analysis/pending";
-        String payload = this.objectMapper.writeValueAsString(analysis);
-        restCall.sendPostRequest(url, payload);
-    }
-
-    public void update(Analysis analysis) throws JsonProcessingException {
-        String url = "analysis/update";
-        String payload = this.objectMapper.writeValueAsString(analysis);
-        restCall.sendPostRequest(url, payload);
-    }
-
-    public void cancelAnalysis(String analysisId) {
-        String url = "analysis/cancel/" + analysisId;
-        restCall.sendGetRequestWithRetry(url, null, null);
-    }
-}
\ No newline at end of file
+    /**
+     * @return null when there is no user with the email
+     */
+    User getUserByEmail(String email) throws IOException;
+
+    User saveUser(User user) throws IOException;
+
+    /** =========================== RESULTS =========================== */
+
+    String getDataSummary(String analysisId);
+
+    String getDataSummaryChart(String analysisId);
+
+    String getDataGeneList(String analysisId);
+
+    /**
+     * BLAST trees kept with analyses completed before the trees were saved per gene
+     */
+    String getDataBlastResults(String analysisId);
+
+    void savePendingAnalysis(Analysis analysis);
+
+    /**
+     * Saves the analyses of a bulk submission
+     */
+    void savePendingAnalyses(List<Analysis> analyses);
+
+    void update(Analysis analysis);
+
+    /**
+     * Sets the status of the analysis without sending the rest of it
+     */
+    void updateStatus(String analysisId, Constants.AnalysisStatus status);
+
+    void updateStatus(AnalysisStatusDto analysisStatus);
+
+    /**
+     * Sets the status of several analyses
+     */
+    void updateStatuses(Collection<AnalysisStatusDto> statuses);
+
+    void cancelAnalysis(String analysisId);
+}
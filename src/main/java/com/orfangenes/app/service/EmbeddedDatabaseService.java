@@ -0,0 +1,527 @@
+package com.orfangenes.app.service;
+
+import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.orfangenes.app.dto.AnalysisResultsTableRaw;
+import com.orfangenes.app.dto.AnalysisStatusDto;
+import com.orfangenes.app.dto.GeneSummary;
+import com.orfangenes.app.dto.Genes;
+import com.orfangenes.app.dto.SummaryChart;
+import com.orfangenes.app.model.Analysis;
+import com.orfangenes.app.model.Gene;
+import com.orfangenes.app.model.User;
+import com.orfangenes.app.util.Constants.AnalysisStatus;
+import com.orfangenes.app.util.Utils;
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+
+import static com.orfangenes.app.util.Constants.*;
+
+/**
+ * {@link DatabaseService} on local files, for single-node deployments, tests and benchmarks without
+ * the database API. Each analysis is kept in its own JSON file without its genes, which are appended
+ * to a JSON lines file of the analysis, the last line of a gene winning. Users are appended to a
+ * JSON lines file as well when they are new or changed. Analyses and users are indexed in memory by
+ * ID and email on startup, and the IDs of the genes of the analyses that are still running are indexed
+ * as they are saved.
+ */
+@Slf4j
+public class EmbeddedDatabaseService implements DatabaseService {
+
+    private static final String ANALYSES_DIR = "analyses";
+    private static final String ANALYSIS_FILE_SUFFIX = ".json";
+    private static final String GENES_FILE_SUFFIX = ".genes.jsonl";
+    private static final String USERS_FILE = "users.jsonl";
+
+    // order of the levels in the summary chart
+    private static final List<String> ORFAN_LEVELS =
+            Arrays.asList(STRICT_ORFAN,
+                    ORFAN_GENE,
+                    GENUS_RESTRICTED_GENE,
+                    FAMILY_RESTRICTED_GENE,
+                    ORDER_RESTRICTED_GENE,
+                    CLASS_RESTRICTED_GENE,
+                    PHYLUM_RESTRICTED_GENE,
+                    KINGDOM_RESTRICTED_GENE,
+                    DOMAIN_RESTRICTED_GENE,
+                    MULTI_DOMAIN_GENE);
+
+    private final ObjectMapper objectMapper = Utils.getJacksonObjectMapper();
+    // analyses are stored without their genes
+    private final ObjectMapper storeMapper = Utils.getJacksonObjectMapper()
+            .addMixIn(Analysis.class, AnalysisWithoutGenes.class);
+    private final ObjectWriter lineWriter = objectMapper.writer().without(JsonGenerator.Feature.AUTO_CLOSE_TARGET);
+
+    private final Path analysesDir;
+    private final Path usersFile;
+    // analysis reads of the results page, see AnalysisReadCache
+    private final AnalysisReadCache analysisReadCache;
+
+    private final Map<String, StoredAnalysis> analyses = new ConcurrentHashMap<>();
+    private final Map<String, User> usersByEmail = new ConcurrentHashMap<>();
+    // gene IDs of the analyses saving genes, to keep the gene count without reading the gene file
+    private final Map<String, Set<String>> geneIds = new ConcurrentHashMap<>();
+    private final AtomicLong lastAnalysisId = new AtomicLong();
+    private final AtomicLong lastUserId = new AtomicLong();
+
+    public EmbeddedDatabaseService(Path directory, AnalysisReadCache analysisReadCache) throws IOException {
+        this.analysesDir = directory.resolve(ANALYSES_DIR);
+        this.usersFile = directory.resolve(USERS_FILE);
+        this.analysisReadCache = analysisReadCache;
+        Files.createDirectories(analysesDir);
+        loadAnalyses();
+        loadUsers();
+        log.info("Embedded database " + directory + " has " + analyses.size() + " analyses and " + usersByEmail.size() + " users");
+    }
+
+    private void loadAnalyses() throws IOException {
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(analysesDir, "*" + ANALYSIS_FILE_SUFFIX)) {
+            for (Path file : files) {
+                StoredAnalysis stored = storeMapper.readValue(file.toFile(), StoredAnalysis.class);
+                analyses.put(stored.getAnalysis().getAnalysisId(), stored);
+                if (stored.getAnalysis().getId() != null) {
+                    lastAnalysisId.accumulateAndGet(stored.getAnalysis().getId(), Math::max);
+                }
+            }
+        }
+    }
+
+    private void loadUsers() throws IOException {
+        if (!Files.exists(usersFile)) {
+            return;
+        }
+        try (BufferedReader reader = Files.newBufferedReader(usersFile, StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (!line.isEmpty()) {
+                    User user = objectMapper.readValue(line, User.class);
+                    usersByEmail.put(user.getEmail(), user);
+                    if (user.getId() != null) {
+                        lastUserId.accumulateAndGet(user.getId(), Math::max);
+                    }
+                }
+            }
+        }
+    }
+
+    /** =========================== ANALYSIS =========================== */
+
+    @Override
+    public String getOrfanbaseGenes() {
+        List<Genes> orfanbaseGenes = new ArrayList<>();
+        for (StoredAnalysis stored : analyses.values()) {
+            Analysis analysis = stored.getAnalysis();
+            if (analysis.isSaved() && AnalysisStatus.COMPLETED.equals(analysis.getStatus())) {
+                for (Gene gene : readGenes(analysis.getAnalysisId()).values()) {
+                    orfanbaseGenes.add(new Genes(gene.getGeneId(), gene.getSequence(), gene.getDescription(),
+                            gene.getGccontent(), gene.getLength(), gene.getOrfanLevel(), analysis.getOrganism(),
+                            analysis.getTaxonomyId(), analysis.getAnalysisId(), analysis.getAnalysisDate()));
+                }
+            }
+        }
+        return toJson(orfanbaseGenes);
+    }
+
+    @Override
+    public Analysis getAnalysisById(String analysisId) throws IOException {
+        String response = getAnalysisJsonById(analysisId);
+        return (response != null) ? objectMapper.readValue(response, Analysis.class) : null;
+    }
+
+    @Override
+    public String getAnalysisJsonById(String analysisId) {
+        return analysisReadCache.get(analysisId, "analysis", () -> {
+            StoredAnalysis stored = analyses.get(analysisId);
+            if (stored == null) {
+                return null;
+            }
+            Analysis analysis = copy(stored.getAnalysis());
+            analysis.setGeneList(new ArrayList<>(readGenes(analysisId).values()));
+            if (AnalysisStatus.COMPLETED.equals(analysis.getStatus())) {
+                analysisReadCache.pin(analysisId);
+            }
+            return toJson(analysis);
+        });
+    }
+
+    @Override
+    public AnalysisStatusDto getAnalysisStatus(String analysisId) {
+        StoredAnalysis stored = analyses.get(analysisId);
+        return (stored != null) ? toStatus(stored) : null;
+    }
+
+    @Override
+    public List<AnalysisStatusDto> getAnalysisStatuses(Collection<String> analysisIds) {
+        return analysisIds.stream()
+                .map(analyses::get)
+                .filter(Objects::nonNull)
+                .map(EmbeddedDatabaseService::toStatus)
+                .collect(Collectors.toList());
+    }
+
+    private static AnalysisStatusDto toStatus(StoredAnalysis stored) {
+        return new AnalysisStatusDto(stored.getAnalysis().getAnalysisId(), stored.getAnalysis().getStatus(),
+                stored.getProgress(), stored.getVersion());
+    }
+
+    @Override
+    public Analysis saveAnalysis(Analysis analysis) throws IOException {
+        log.info("Saving analysis : " + analysis.getAnalysisId());
+        store(analysis);
+        return getAnalysisById(analysis.getAnalysisId());
+    }
+
+    @Override
+    public String getAllAnalysis() {
+        List<AnalysisResultsTableRaw> rows = analyses.values().stream()
+                .map(stored -> {
+                    Analysis analysis = stored.getAnalysis();
+                    String email = (analysis.getUser() != null) ? analysis.getUser().getEmail() : null;
+                    return new AnalysisResultsTableRaw(analysis.getAnalysisId(), analysis.getAnalysisDate(),
+                            analysis.getOrganism(), email, stored.getGeneCount(), analysis.getStatus());
+                })
+                .sorted(Comparator.comparing(AnalysisResultsTableRaw::getAnalysisDate,
+                        Comparator.nullsLast(Comparator.reverseOrder())))
+                .collect(Collectors.toList());
+        return toJson(rows);
+    }
+
+    /** =========================== GENE =========================== */
+
+    @Override
+    public void saveGenes(String analysisId, List<Gene> genes) {
+        if (!analyses.containsKey(analysisId)) {
+            log.warn("Not saving " + genes.size() + " genes of unknown analysis " + analysisId);
+            return;
+        }
+        // the lock of the analysis entry keeps the gene file and the gene count of the analysis together
+        analyses.computeIfPresent(analysisId, (id, stored) -> {
+            Set<String> ids = geneIds.computeIfAbsent(id, key -> new HashSet<>(readGenes(key).keySet()));
+            try (FileChannel channel = FileChannel.open(genesFile(id), StandardOpenOption.CREATE,
+                    StandardOpenOption.WRITE, StandardOpenOption.APPEND)) {
+                OutputStream out = Channels.newOutputStream(channel);
+                for (Gene gene : genes) {
+                    lineWriter.writeValue(out, gene);
+                    out.write('\n');
+                    ids.add(gene.getGeneId());
+                }
+                out.flush();
+                channel.force(false);
+                StoredAnalysis updated = new StoredAnalysis(stored.getAnalysis(), stored.getProgress(), stored.getVersion() + 1, ids.size());
+                writeAnalysis(updated);
+                return updated;
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        });
+        analysisReadCache.invalidate(analysisId);
+    }
+
+    @Override
+    public boolean canSaveGenes() {
+        return true;
+    }
+
+    /**
+     * @return the genes of the analysis by gene ID, in the order they were first saved
+     */
+    private Map<String, Gene> readGenes(String analysisId) {
+        Map<String, Gene> genes = new LinkedHashMap<>();
+        Path file = genesFile(analysisId);
+        if (!Files.exists(file)) {
+            return genes;
+        }
+        try (BufferedReader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (!line.isEmpty()) {
+                    Gene gene = objectMapper.readValue(line, Gene.class);
+                    genes.put(gene.getGeneId(), gene);
+                }
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return genes;
+    }
+
+    /**
+     * Replaces the gene file of the analysis, which also drops the lines of the genes saved again
+     */
+    private int replaceGenes(String analysisId, List<Gene> genes) throws IOException {
+        Map<String, Gene> genesById = new LinkedHashMap<>();
+        genes.forEach(gene -> genesById.put(gene.getGeneId(), gene));
+        Path file = genesFile(analysisId);
+        Path tmpFile = file.resolveSibling(file.getFileName() + ".tmp");
+        try (BufferedWriter writer = Files.newBufferedWriter(tmpFile, StandardCharsets.UTF_8)) {
+            for (Gene gene : genesById.values()) {
+                lineWriter.writeValue(writer, gene);
+                writer.write('\n');
+            }
+        }
+        // on disk before it replaces the genes, so that a crash leaves either the old or the new genes
+        try (FileChannel channel = FileChannel.open(tmpFile, StandardOpenOption.WRITE)) {
+            channel.force(true);
+        }
+        Files.move(tmpFile, file, StandardCopyOption.REPLACE_EXISTING);
+        geneIds.remove(analysisId);
+        return genesById.size();
+    }
+
+    /** =========================== USER =========================== */
+
+    @Override
+    public User getUserByEmail(String email) {
+        User user = usersByEmail.get(email);
+        return (user != null) ? copy(user) : null;
+    }
+
+    @Override
+    public User saveUser(User user) throws IOException {
+        User saved = copy(user);
+        synchronized (usersByEmail) {
+            User existing = usersByEmail.get(saved.getEmail());
+            if (saved.getId() == null || saved.getId() < 0) {
+                saved.setId((existing != null) ? existing.getId() : lastUserId.incrementAndGet());
+            }
+            if (saved.equals(existing)) {
+                // every analysis saves its user, the user file only grows when a user is new or changed
+                return copy(existing);
+            }
+            log.info("Saving user : " + saved.getEmail());
+            try (FileChannel channel = FileChannel.open(usersFile, StandardOpenOption.CREATE,
+                    StandardOpenOption.WRITE, StandardOpenOption.APPEND)) {
+                OutputStream out = Channels.newOutputStream(channel);
+                lineWriter.writeValue(out, saved);
+                out.write('\n');
+                out.flush();
+                channel.force(false);
+            }
+            usersByEmail.put(saved.getEmail(), saved);
+        }
+        return copy(saved);
+    }
+
+    /** =========================== RESULTS =========================== */
+
+    @Override
+    public String getDataSummary(String analysisId) {
+        return analysisReadCache.get(analysisId, "summary", () -> {
+            List<GeneSummary> summary = countOrfanLevels(analysisId).entrySet().stream()
+                    .map(count -> new GeneSummary(count.getKey(), count.getValue()))
+                    .collect(Collectors.toList());
+            return toJson(summary);
+        });
+    }
+
+    @Override
+    public String getDataSummaryChart(String analysisId) {
+        return analysisReadCache.get(analysisId, "chart", () -> {
+            Map<String, Integer> counts = countOrfanLevels(analysisId);
+            return toJson(new SummaryChart(counts.keySet().toArray(new String[0]), counts.values().toArray(new Integer[0])));
+        });
+    }
+
+    private Map<String, Integer> countOrfanLevels(String analysisId) {
+        Map<String, Integer> counts = new LinkedHashMap<>();
+        ORFAN_LEVELS.forEach(level -> counts.put(level, 0));
+        for (Gene gene : readGenes(analysisId).values()) {
+            if (gene.getOrfanLevel() != null) {
+                counts.merge(gene.getOrfanLevel(), 1, Integer::sum);
+            }
+        }
+        return counts;
+    }
+
+    @Override
+    public String getDataGeneList(String analysisId) {
+        return analysisReadCache.get(analysisId, "genes", () -> {
+            ArrayNode rows = objectMapper.createArrayNode();
+            for (Gene gene : readGenes(analysisId).values()) {
+                ObjectNode row = rows.addObject();
+                row.put("geneid", gene.getGeneId());
+                row.put("description", gene.getDescription());
+                row.put("orfanLevel", gene.getOrfanLevel());
+            }
+            return toJson(rows);
+        });
+    }
+
+    @Override
+    public String getDataBlastResults(String analysisId) {
+        StoredAnalysis stored = analyses.get(analysisId);
+        return (stored != null) ? stored.getAnalysis().getBlastResults() : null;
+    }
+
+    @Override
+    public void savePendingAnalysis(Analysis analysis) {
+        store(analysis);
+    }
+
+    @Override
+    public void savePendingAnalyses(List<Analysis> analyses) {
+        analyses.forEach(this::store);
+    }
+
+    @Override
+    public void update(Analysis analysis) {
+        store(analysis);
+    }
+
+    /**
+     * Inserts or replaces the analysis, and its genes when it has any
+     */
+    private void store(Analysis analysis) {
+        String analysisId = analysis.getAnalysisId();
+        Analysis stripped = copy(analysis);
+        try {
+            if (stripped.getUser() != null) {
+                stripped.setUser(saveUser(stripped.getUser()));
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        analyses.compute(analysisId, (id, previous) -> {
+            if (stripped.getId() == null || stripped.getId() < 0) {
+                stripped.setId((previous != null) ? previous.getAnalysis().getId() : lastAnalysisId.incrementAndGet());
+            }
+            try {
+                int geneCount = (previous != null) ? previous.getGeneCount() : 0;
+                if (analysis.getGeneList() != null && !analysis.getGeneList().isEmpty()) {
+                    geneCount = replaceGenes(id, analysis.getGeneList());
+                }
+                int progress = (previous != null) ? previous.getProgress() : AnalysisStatusDto.UNKNOWN_PROGRESS;
+                if (AnalysisStatus.COMPLETED.equals(stripped.getStatus())) {
+                    progress = 100;
+                }
+                long version = (previous != null) ? previous.getVersion() + 1 : 1;
+                StoredAnalysis stored = new StoredAnalysis(stripped, progress, version, geneCount);
+                writeAnalysis(stored);
+                return stored;
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        });
+        analysisReadCache.invalidate(analysisId);
+    }
+
+    @Override
+    public void updateStatus(String analysisId, AnalysisStatus status) {
+        updateStatus(new AnalysisStatusDto(analysisId, status, AnalysisStatusDto.UNKNOWN_PROGRESS, 0));
+    }
+
+    @Override
+    public void updateStatus(AnalysisStatusDto analysisStatus) {
+        String analysisId = analysisStatus.getAnalysisId();
+        StoredAnalysis updated = analyses.computeIfPresent(analysisId, (id, stored) -> {
+            if (AnalysisStatus.CANCELLED.equals(stored.getAnalysis().getStatus())) {
+                // final, e.g. a worker completing an analysis cancelled in the meantime
+                return stored;
+            }
+            Analysis analysis = copy(stored.getAnalysis());
+            if (analysisStatus.getStatus() != null) {
+                analysis.setStatus(analysisStatus.getStatus());
+            }
+            int progress = stored.getProgress();
+            if (analysisStatus.getProgress() != AnalysisStatusDto.UNKNOWN_PROGRESS) {
+                progress = analysisStatus.getProgress();
+            } else if (AnalysisStatus.COMPLETED.equals(analysisStatus.getStatus())) {
+                progress = 100;
+            }
+            StoredAnalysis changed = new StoredAnalysis(analysis, progress, stored.getVersion() + 1, stored.getGeneCount());
+            try {
+                writeAnalysis(changed);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            return changed;
+        });
+        if (updated == null) {
+            log.warn("Not updating the status of unknown analysis " + analysisId);
+            return;
+        }
+        if (analysisStatus.getStatus() != null && !AnalysisStatus.START_PROCESSING.equals(analysisStatus.getStatus())) {
+            // the analysis does not save genes any more
+            geneIds.remove(analysisId);
+        }
+        analysisReadCache.invalidate(analysisId);
+    }
+
+    @Override
+    public void updateStatuses(Collection<AnalysisStatusDto> statuses) {
+        statuses.forEach(this::updateStatus);
+    }
+
+    @Override
+    public void cancelAnalysis(String analysisId) {
+        updateStatus(analysisId, AnalysisStatus.CANCELLED);
+    }
+
+    private void writeAnalysis(StoredAnalysis stored) throws IOException {
+        Path file = analysesDir.resolve(stored.getAnalysis().getAnalysisId() + ANALYSIS_FILE_SUFFIX);
+        Path tmpFile = file.resolveSibling(file.getFileName() + ".tmp");
+        storeMapper.writeValue(tmpFile.toFile(), stored);
+        Files.move(tmpFile, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private Path genesFile(String analysisId) {
+        return analysesDir.resolve(analysisId + GENES_FILE_SUFFIX);
+    }
+
+    private Analysis copy(Analysis analysis) {
+        return storeMapper.convertValue(analysis, Analysis.class);
+    }
+
+    private User copy(User user) {
+        return new User(user.getId(), user.getFirstName(), user.getLastName(), user.getEmail());
+    }
+
+    private String toJson(Object value) {
+        try {
+            return objectMapper.writeValueAsString(value);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Analysis file: the analysis without its genes and what the database API keeps beside it
+     */
+    @Data
+    @NoArgsConstructor
+    @AllArgsConstructor
+    private static class StoredAnalysis {
+        private Analysis analysis;
+        private int progress = AnalysisStatusDto.UNKNOWN_PROGRESS;
+        private long version;
+        private int geneCount;
+    }
+
+    @JsonIgnoreProperties("geneList")
+    private abstract static class AnalysisWithoutGenes {
+    }
+}
@@ -0,0 +1,305 @@
+package com.orfangenes.app.service;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.orfangenes.app.ORFanGenes;
+import com.orfangenes.app.dto.AnalysisChunkDto;
+import com.orfangenes.app.dto.AnalysisStatusDto;
+import com.orfangenes.app.dto.AnalysisTask;
+import com.orfangenes.app.model.Analysis;
+import com.orfangenes.app.util.Constants.AnalysisStatus;
+import com.orfangenes.app.util.FileHandler;
+import com.orfangenes.app.util.Utils;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.amqp.core.Message;
+import org.springframework.amqp.core.MessageBuilder;
+import org.springframework.amqp.core.MessageProperties;
+import org.springframework.amqp.rabbit.core.RabbitTemplate;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Profile;
+import org.springframework.stereotype.Service;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import static com.orfangenes.app.util.Constants.*;
+
+/**
+ * Fan-out of large analyses across the workers. The input sequences of an analysis with at least
+ * the configured number of genes are split into chunks under the analysis directory, and each chunk
+ * is queued as a work item that any worker classifies on its own. Chunks are taken from the queue and
+ * scheduled like analyses, for the user of the analysis, see {@link RabbitQueueService}. A worker marks its
+ * chunk as done, and the worker that finds all the chunks done takes the aggregation lock and completes
+ * the analysis. The analysis directories are shared by the workers.
+ * <p>
+ * The aggregating worker renews its lock while it runs and marks the chunks as aggregated once done. A
+ * chunk that finds the lock held is retried later, unacknowledged, so that it aggregates the analysis
+ * if the worker holding the lock stops: a lock that has not been renewed for the aggregation lease is
+ * stale and is taken over.
+ */
+@Slf4j
+@Service
+@Profile("!embedded-queue")
+public class GeneChunkService {
+
+    private static final String CHUNKS_DIR = "chunks";
+    private static final String DONE_MARKER = "done";
+    private static final String AGGREGATION_LOCK = "aggregate.lock";
+    private static final String AGGREGATED_MARKER = "aggregated";
+
+    @Autowired
+    private RabbitTemplate rabbitTemplate;
+
+    @Autowired
+    ORFanGenes orFanGenes;
+
+    @Autowired
+    DatabaseService databaseService;
+
+    @Autowired
+    StatusUpdateWriter statusUpdateWriter;
+
+    @Value("${taxdump.dir}")
+    private String APP_DIR;
+
+    @Value("${data.outputdir}")
+    private String OUTPUT_DIR;
+
+    @Value("${rabbitmq.chunk-queue-name}")
+    private String chunkQueueName;
+
+    @Value("${analysis.fan-out.enabled:false}")
+    private boolean enabled;
+
+    @Value("${analysis.fan-out.min-genes:2000}")
+    private int minGenes;
+
+    @Value("${analysis.fan-out.chunk-size:500}")
+    private int chunkSize;
+
+    // the aggregating worker renews its lock, a lock older than this is left by a stopped worker
+    @Value("${analysis.fan-out.aggregation-lease-ms:60000}")
+    private long aggregationLease;
+
+    private final ObjectMapper objectMapper = Utils.getJacksonObjectMapper();
+    private final ScheduledExecutorService heartbeats = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "aggregation-lock-heartbeat");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /**
+     * Splits the analysis into chunks and queues them, when fan-out is enabled, the analysis is large enough
+     * and the database API saves genes apart from their analysis (the chunks save their own genes)
+     *
+     * @return whether the analysis was fanned out, otherwise it is run by the caller
+     */
+    public boolean fanOut(AnalysisTask task, String analysisDir) throws IOException {
+        Analysis analysis = task.toAnalysis();
+        if (!enabled || !databaseService.canSaveGenes()) {
+            return false;
+        }
+        String inputSequence = new String(Files.readAllBytes(Paths.get(analysisDir, INPUT_FASTA)), StandardCharsets.UTF_8);
+        List<String> sequences = new ArrayList<>();
+        for (String sequence : inputSequence.split(SEQUENCE_SEPARATOR)) {
+            if (!sequence.trim().isEmpty()) {
+                sequences.add(sequence.trim());
+            }
+        }
+        if (sequences.size() < minGenes) {
+            return false;
+        }
+
+        int chunkCount = (sequences.size() + chunkSize - 1) / chunkSize;
+        log.info("Splitting " + sequences.size() + " genes of analysis " + analysis.getAnalysisId() + " into " + chunkCount + " chunks");
+        for (int chunkNo = 0; chunkNo < chunkCount; chunkNo++) {
+            Path chunkDir = getChunkDir(analysisDir, chunkNo);
+            Files.createDirectories(chunkDir);
+            List<String> chunk = sequences.subList(chunkNo * chunkSize, Math.min((chunkNo + 1) * chunkSize, sequences.size()));
+            String chunkSequence = String.join(SEQUENCE_SEPARATOR, chunk) + LINE_SEPARATOR;
+            Files.write(chunkDir.resolve(INPUT_FASTA), chunkSequence.getBytes(StandardCharsets.UTF_8));
+        }
+        for (int chunkNo = 0; chunkNo < chunkCount; chunkNo++) {
+            int chunkGenes = Math.min(chunkSize, sequences.size() - chunkNo * chunkSize);
+            AnalysisChunkDto chunk = new AnalysisChunkDto(analysis, chunkNo, chunkCount, task.getUserEmail(),
+                    task.getEstimatedCost() * chunkGenes / sequences.size());
+            Message message = MessageBuilder
+                    .withBody(objectMapper.writeValueAsBytes(chunk))
+                    .setContentType(MessageProperties.CONTENT_TYPE_JSON)
+                    .build();
+            rabbitTemplate.send(chunkQueueName, message);
+        }
+        statusUpdateWriter.submit(analysis.getAnalysisId(), AnalysisStatus.START_PROCESSING, 0);
+        return true;
+    }
+
+    /**
+     * @return the ID the chunk is scheduled and acknowledged by
+     */
+    public static String getJobId(AnalysisChunkDto chunk) {
+        return chunk.getAnalysis().getAnalysisId() + "/" + CHUNKS_DIR + "/" + chunk.getChunkNo();
+    }
+
+    /**
+     * Classifies the chunk, and aggregates the analysis when all of its chunks are done. Failures of the
+     * chunk are saved as the status of the analysis.
+     *
+     * @throws IOException when the chunk cannot run now, e.g. while another worker holds the aggregation
+     * lock, it is retried then
+     */
+    public void processChunk(AnalysisChunkDto chunk) throws IOException {
+        Analysis analysis = chunk.getAnalysis();
+        String analysisDir = FileHandler.getAnalysisDir(OUTPUT_DIR, analysis.getAnalysisId());
+        Path chunkDir = getChunkDir(analysisDir, chunk.getChunkNo());
+        log.info("## Running chunk " + (chunk.getChunkNo() + 1) + "/" + chunk.getChunkCount() + " of analysis " + analysis.getAnalysisId());
+
+        if (isStopped(analysis.getAnalysisId())) {
+            return;
+        }
+        // a redelivered chunk is not classified again
+        if (!Files.exists(chunkDir.resolve(DONE_MARKER))) {
+            try {
+                orFanGenes.runChunk(chunkDir.resolve(INPUT_FASTA).toString(), chunkDir.toString(), analysis, APP_DIR);
+            } catch (Exception e) {
+                log.error("Analysis chunk Failed: " + e.getMessage());
+                statusUpdateWriter.submit(analysis.getAnalysisId(), AnalysisStatus.ERRORED);
+                return;
+            }
+            markDone(chunkDir, DONE_MARKER);
+        }
+
+        // another chunk may have failed while this one was running
+        if (isStopped(analysis.getAnalysisId())) {
+            return;
+        }
+        int doneCount = countDone(analysisDir, chunk.getChunkCount());
+        if (doneCount < chunk.getChunkCount()) {
+            // 100 is reported by the aggregation
+            statusUpdateWriter.submitProgress(analysis.getAnalysisId(), Math.min(99, doneCount * 100 / chunk.getChunkCount()));
+            return;
+        }
+        Path chunksDir = Paths.get(analysisDir, CHUNKS_DIR);
+        if (lockAggregation(chunksDir.resolve(AGGREGATION_LOCK), chunksDir.resolve(AGGREGATED_MARKER))) {
+            aggregate(analysis, analysisDir, chunk.getChunkCount());
+        }
+    }
+
+    private void aggregate(Analysis analysis, String analysisDir, int chunkCount) {
+        Path chunksDir = Paths.get(analysisDir, CHUNKS_DIR);
+        Path lock = chunksDir.resolve(AGGREGATION_LOCK);
+        log.info("Aggregating " + chunkCount + " chunks of analysis " + analysis.getAnalysisId());
+        List<Path> chunkDirs = new ArrayList<>();
+        for (int chunkNo = 0; chunkNo < chunkCount; chunkNo++) {
+            chunkDirs.add(getChunkDir(analysisDir, chunkNo));
+        }
+        ScheduledFuture<?> heartbeat = heartbeats.scheduleWithFixedDelay(() -> touch(lock),
+                aggregationLease / 4, aggregationLease / 4, TimeUnit.MILLISECONDS);
+        try {
+            orFanGenes.aggregate(analysis, analysisDir, chunkDirs, APP_DIR);
+            markDone(chunksDir, AGGREGATED_MARKER);
+        } catch (Exception e) {
+            log.error("Analysis aggregation Failed: " + e.getMessage());
+            statusUpdateWriter.submit(analysis.getAnalysisId(), AnalysisStatus.ERRORED);
+        } finally {
+            heartbeat.cancel(false);
+            try {
+                // the marker tells redelivered chunks the analysis is aggregated, a retry can take the lock
+                Files.deleteIfExists(lock);
+            } catch (IOException e) {
+                log.warn("Could not unlock the aggregation of analysis " + analysis.getAnalysisId() + ": " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Takes the aggregation lock, or takes it over when it is stale: not touched for the aggregation lease
+     *
+     * @return whether the lock was taken, false when the analysis is aggregated or another worker has
+     * released the lock
+     * @throws IOException when another worker holds the lock, the chunk is retried then as that worker
+     * may stop before the analysis is aggregated
+     */
+    private boolean lockAggregation(Path lock, Path aggregatedMarker) throws IOException {
+        String owner = ManagementFactory.getRuntimeMXBean().getName();
+        boolean takenOver = false;
+        while (!Files.exists(aggregatedMarker)) {
+            try {
+                Files.write(lock, owner.getBytes(StandardCharsets.UTF_8), StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+                return true;
+            } catch (FileAlreadyExistsException e) {
+                // held by another worker
+            }
+            FileTime lockedAt;
+            try {
+                lockedAt = Files.getLastModifiedTime(lock);
+            } catch (NoSuchFileException e) {
+                // released, the aggregation either succeeded or failed the analysis
+                return false;
+            }
+            if (takenOver || System.currentTimeMillis() - lockedAt.toMillis() <= aggregationLease) {
+                throw new IOException("The aggregation is locked by another worker: " + lock);
+            }
+            log.warn("Taking over the stale aggregation lock " + lock);
+            Path staleLock = lock.resolveSibling(AGGREGATION_LOCK + "." + UUID.randomUUID() + ".stale");
+            try {
+                // only one of the workers finding the lock stale moves it away
+                Files.move(lock, staleLock, StandardCopyOption.ATOMIC_MOVE);
+                Files.delete(staleLock);
+            } catch (NoSuchFileException e) {
+                // taken over by another worker
+            }
+            takenOver = true;
+        }
+        return false;
+    }
+
+    private static void touch(Path lock) {
+        try {
+            Files.setLastModifiedTime(lock, FileTime.fromMillis(System.currentTimeMillis()));
+        } catch (IOException e) {
+            log.warn("Could not renew the aggregation lock " + lock + ": " + e.getMessage());
+        }
+    }
+
+    private boolean isStopped(String analysisId) throws IOException {
+        AnalysisStatusDto savedStatus = databaseService.getAnalysisStatus(analysisId);
+        return savedStatus != null && (AnalysisStatus.CANCELLED.equals(savedStatus.getStatus())
+                || AnalysisStatus.ERRORED.equals(savedStatus.getStatus()));
+    }
+
+    private static void markDone(Path dir, String marker) throws IOException {
+        Path tmpFile = dir.resolve(marker + ".tmp");
+        Files.write(tmpFile, new byte[0]);
+        Files.move(tmpFile, dir.resolve(marker), StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    private static int countDone(String analysisDir, int chunkCount) {
+        int doneCount = 0;
+        for (int chunkNo = 0; chunkNo < chunkCount; chunkNo++) {
+            if (Files.exists(getChunkDir(analysisDir, chunkNo).resolve(DONE_MARKER))) {
+                doneCount++;
+            }
+        }
+        return doneCount;
+    }
+
+    private static Path getChunkDir(String analysisDir, int chunkNo) {
+        return Paths.get(analysisDir, CHUNKS_DIR, String.valueOf(chunkNo));
+    }
+}
@@ -0,0 +1,89 @@
+package com.orfangenes.app.service;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.orfangenes.app.dto.AnalysisTask;
+import com.orfangenes.app.model.Analysis;
+import com.orfangenes.app.service.AnalysisScheduler.Lane;
+import com.orfangenes.app.util.Constants;
+import com.orfangenes.app.util.FileHandler;
+import com.orfangenes.app.util.Utils;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Profile;
+import org.springframework.stereotype.Service;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.List;
+
+/**
+ * {@link QueueService} without a broker, for single-node deployments, tests and benchmarks. Queued
+ * analyses go straight to the {@link AnalysisWorker} of this instance, which journals them, so the
+ * analyses queued or running when the instance stopped are queued again on startup. The queue holds at
+ * most the configured number of analyses.
+ */
+@Slf4j
+@Service
+@Profile("embedded-queue")
+public class InProcessQueueService implements QueueService {
+
+    @Autowired
+    AnalysisWorker analysisWorker;
+
+    @Autowired
+    JobSizeEstimator jobSizeEstimator;
+
+    @Value("${data.outputdir}")
+    private String OUTPUT_DIR;
+
+    @Value("${embedded-queue.capacity:10000}")
+    private int capacity;
+
+    private final ObjectMapper objectMapper = Utils.getJacksonObjectMapper();
+
+    @Override
+    public void sendToQueue(Analysis analysis) throws IOException {
+        AnalysisTask task = createTask(analysis);
+        enqueue(task, jobSizeEstimator.isInteractive(task.getEstimatedCost()) ? Lane.INTERACTIVE : Lane.BULK);
+    }
+
+    /**
+     * Analyses submitted together are queued on the bulk lane
+     */
+    @Override
+    public void sendToQueue(List<Analysis> analyses) throws IOException {
+        if (analyses.size() == 1) {
+            sendToQueue(analyses.get(0));
+            return;
+        }
+        for (Analysis analysis : analyses) {
+            enqueue(createTask(analysis), Lane.BULK);
+        }
+    }
+
+    @Override
+    public void processAnalysis(String analysisObj) throws IOException {
+        analysisWorker.process(objectMapper.readValue(analysisObj, AnalysisTask.class));
+    }
+
+    private AnalysisTask createTask(Analysis analysis) throws IOException {
+        Path inputFastaFile = Paths.get(FileHandler.getAnalysisDir(OUTPUT_DIR, analysis.getAnalysisId()), Constants.INPUT_FASTA);
+        // an input that could not be saved fails the analysis on the worker, as with the broker
+        long estimatedCost = Files.exists(inputFastaFile)
+                ? jobSizeEstimator.estimate(inputFastaFile, analysis.getSequenceType()) : 0;
+        // the worker reads the input from the analysis directory, there is no blob store to go through
+        return AnalysisTask.of(analysis, null, estimatedCost);
+    }
+
+    private void enqueue(AnalysisTask task, Lane lane) throws IOException {
+        if (analysisWorker.getPendingCount() >= capacity) {
+            throw new IOException("The analysis queue is full (" + capacity + " analyses)");
+        }
+        if (!analysisWorker.accept(task, lane)) {
+            log.info("Analysis " + task.getAnalysisId() + " is queued already");
+        }
+    }
+}
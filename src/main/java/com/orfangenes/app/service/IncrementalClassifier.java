@@ -0,0 +1,97 @@
+package com.orfangenes.app.service;
+
+import com.orfangenes.app.model.BlastResult;
+import com.orfangenes.app.model.Gene;
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.*;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
+
+/**
+ * Classifies genes in batches as their BLAST hit groups complete and hands the classified genes to
+ * the publisher, so partial results are available before the whole BLAST run has finished.
+ */
+@Slf4j
+public class IncrementalClassifier implements Consumer<List<BlastResult>> {
+
+    private final TaxTreeService taxTreeService;
+    private final ClassificationService classificationService;
+    private final Map<String, Gene> genesById;
+    private final Consumer<List<Gene>> publisher;
+    private final int batchSize;
+    private final long flushIntervalMs;
+
+    private List<BlastResult> pendingHits = new ArrayList<>();
+    private int pendingGeneCount = 0;
+    private int classifiedGeneCount = 0;
+    private long lastFlushTime = System.currentTimeMillis();
+
+    public IncrementalClassifier(TaxTreeService taxTreeService, ClassificationService classificationService,
+                                 List<Gene> genes, Consumer<List<Gene>> publisher, int batchSize, long flushIntervalMs) {
+        this.taxTreeService = taxTreeService;
+        this.classificationService = classificationService;
+        this.genesById = genes.stream().collect(Collectors.toMap(Gene::getGeneId, gene -> gene, (first, second) -> first));
+        this.publisher = publisher;
+        this.batchSize = batchSize;
+        this.flushIntervalMs = flushIntervalMs;
+    }
+
+    /**
+     * Receives all the hits of one gene
+     */
+    @Override
+    public void accept(List<BlastResult> geneHits) {
+        pendingHits.addAll(geneHits);
+        pendingGeneCount++;
+        if (pendingGeneCount >= batchSize) {
+            flush();
+        } else {
+            flushIfDue();
+        }
+    }
+
+    /**
+     * Flushes when the flush interval has passed since the last flush, also called while no hits arrive,
+     * so the genes of a slow BLAST run are not held back until the next gene completes
+     */
+    public void flushIfDue() {
+        if (System.currentTimeMillis() - lastFlushTime >= flushIntervalMs) {
+            flush();
+        }
+    }
+
+    /**
+     * Classifies and publishes the genes received since the last flush
+     */
+    public void flush() {
+        lastFlushTime = System.currentTimeMillis();
+        if (pendingHits.isEmpty()) {
+            return;
+        }
+        // the ranked lineage file is read once per batch, only for taxonomies not seen before
+        Set<Integer> taxIDs = pendingHits.stream().map(BlastResult::getStaxid).collect(Collectors.toSet());
+        taxTreeService.loadLineages(taxIDs);
+
+        List<Gene> classifiedGenes = new ArrayList<>();
+        for (Map.Entry<String, String> entry : classificationService.classify(pendingHits).entrySet()) {
+            Gene gene = genesById.get(entry.getKey());
+            if (gene != null) {
+                gene.setOrfanLevel(entry.getValue());
+                classifiedGenes.add(gene);
+            }
+        }
+        pendingHits = new ArrayList<>();
+        pendingGeneCount = 0;
+        classifiedGeneCount += classifiedGenes.size();
+
+        log.info("Classified " + classifiedGenes.size() + " genes while BLAST is running (" + classifiedGeneCount + " so far)");
+        if (!classifiedGenes.isEmpty()) {
+            publisher.accept(classifiedGenes);
+        }
+    }
+
+    public int getClassifiedGeneCount() {
+        return classifiedGeneCount;
+    }
+}
@@ -0,0 +1,53 @@
+package com.orfangenes.app.service;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static com.orfangenes.app.util.Constants.TYPE_PROTEIN;
+
+/**
+ * Estimates the cost of an analysis at submission, from the residues of its input sequences weighted
+ * by the BLAST database they are searched against (nr for proteins, nt for nucleotides). Analyses
+ * cheap enough are scheduled on the interactive lane.
+ */
+@Service
+public class JobSizeEstimator {
+
+    // cost of a residue searched against nr
+    @Value("${analysis.scheduling.cost.protein-weight:1.0}")
+    private double proteinWeight;
+
+    // cost of a residue searched against nt
+    @Value("${analysis.scheduling.cost.nucleotide-weight:0.5}")
+    private double nucleotideWeight;
+
+    @Value("${analysis.scheduling.interactive-max-cost:5000}")
+    private long interactiveMaxCost;
+
+    /**
+     * @return the weighted residue count of the input, at least 1
+     */
+    public long estimate(Path inputFastaFile, String sequenceType) throws IOException {
+        long residues = 0;
+        try (BufferedReader reader = Files.newBufferedReader(inputFastaFile, StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (!line.startsWith(">")) {
+                    residues += line.trim().length();
+                }
+            }
+        }
+        double weight = TYPE_PROTEIN.equals(sequenceType) ? proteinWeight : nucleotideWeight;
+        return Math.max(1, Math.round(residues * weight));
+    }
+
+    public boolean isInteractive(long cost) {
+        return cost <= interactiveMaxCost;
+    }
+}
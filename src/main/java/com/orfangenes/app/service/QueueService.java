@@ -1,9 +1,12 @@
 package com.orfangenes.app.service;
 
-import com.fasterxml.jackson.core.JsonProcessingException;
 import com.orfangenes.app.model.Analysis;
 
+import java.io.IOException;
+import java.util.List;
+
 public interface QueueService {
-    void sendToQueue(Analysis analysis) throws JsonProcessingException;
-    void processAnalysis(String analysisObj) throws JsonProcessingException;
+    void sendToQueue(Analysis analysis) throws IOException;
+    void sendToQueue(List<Analysis> analyses) throws IOException;
+    void processAnalysis(String analysisObj) throws IOException;
 }
@@ -2,37 +2,63 @@ package com.orfangenes.app.service;
 
 import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.databind.ObjectMapper;
-import com.orfangenes.app.ORFanGenes;
+import com.orfangenes.app.dto.AnalysisChunkDto;
+import com.orfangenes.app.dto.AnalysisTask;
 import com.orfangenes.app.model.Analysis;
+import com.orfangenes.app.rabbitmq.RabbitMQConfig;
+import com.orfangenes.app.service.AnalysisScheduler.Lane;
+import com.orfangenes.app.storage.BlobStore;
 import com.orfangenes.app.util.Constants;
+import com.orfangenes.app.util.FileHandler;
 import com.orfangenes.app.util.Utils;
+import com.rabbitmq.client.Channel;
+import com.rabbitmq.client.GetResponse;
 import lombok.extern.slf4j.Slf4j;
+import org.springframework.amqp.AmqpException;
 import org.springframework.amqp.core.Message;
 import org.springframework.amqp.core.MessageBuilder;
 import org.springframework.amqp.core.MessageProperties;
-import org.springframework.amqp.rabbit.annotation.RabbitListener;
 import org.springframework.amqp.rabbit.core.RabbitTemplate;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Profile;
 import org.springframework.stereotype.Service;
 
-import java.io.File;
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.function.Predicate;
 
 @Service
 @Slf4j
+@Profile("!embedded-queue")
 public class RabbitQueueService implements QueueService {
 
     @Autowired
     private RabbitTemplate rabbitTemplate;
 
     @Autowired
-    ORFanGenes orFanGenes;
+    AnalysisWorker analysisWorker;
 
     @Autowired
-    DatabaseService databaseService;
+    BlobStore blobStore;
 
-    @Value("${taxdump.dir}")
-    private String APP_DIR;
+    @Autowired
+    JobSizeEstimator jobSizeEstimator;
+
+    @Autowired
+    AnalysisScheduler analysisScheduler;
 
     @Value("${data.outputdir}")
     private String OUTPUT_DIR;
@@ -40,47 +66,289 @@ public class RabbitQueueService implements QueueService {
     @Value("${rabbitmq.queue-name}")
     String queueName;
 
+    @Value("${rabbitmq.interactive-queue-name}")
+    String interactiveQueueName;
+
+    @Value("${rabbitmq.chunk-queue-name}")
+    String chunkQueueName;
+
+    @Value("${rabbitmq.bulk-queue-count:1}")
+    private int bulkQueueCount;
+
+    @Value("${rabbitmq.publish.batch-size:100}")
+    private int publishBatchSize;
+
+    @Value("${rabbitmq.publish.confirm-timeout-ms:10000}")
+    private long publishConfirmTimeout;
+
+    // analyses taken from each queue for the scheduler to choose from
+    @Value("${analysis.scheduling.window:20}")
+    private int schedulingWindow;
+
+    // analyses of users running as many as they may, taken to reach the analyses of others behind them
+    @Value("${analysis.scheduling.capped-window:20}")
+    private int cappedWindow;
+
+    @Value("${analysis.scheduling.poll-interval-ms:1000}")
+    private long pollInterval;
+
+    // analyses taken and not acknowledged, including those of users at their limit
+    @Value("${analysis.scheduling.max-taken:200}")
+    private int maxTaken;
+
+    // analyses waiting this long are returned to the broker, shorter than its consumer_timeout
+    @Value("${analysis.scheduling.lease-ms:900000}")
+    private long lease;
+
     private final ObjectMapper objectMapper = Utils.getJacksonObjectMapper();
+    // analyses and gene chunks taken and not acknowledged, by their scheduler job ID
+    private final Map<String, Delivery> deliveries = new ConcurrentHashMap<>();
+    // analyses that have run, acknowledged by the feeder thread
+    private final Queue<String> done = new ConcurrentLinkedQueue<>();
+    private volatile boolean running = false;
+    private Thread feederThread;
+    // used by the feeder thread only
+    private Channel feederChannel;
 
+    @PostConstruct
+    public void start() {
+        running = true;
+        feederThread = new Thread(this::feed, "analysis-queue-feeder");
+        feederThread.setDaemon(true);
+        feederThread.start();
+    }
 
-    public void sendToQueue(Analysis analysis) throws JsonProcessingException {
-        String analysisObj = objectMapper.writeValueAsString(analysis);
-        Message message = MessageBuilder
-                .withBody(analysisObj.getBytes())
+    @PreDestroy
+    public void stop() throws InterruptedException {
+        running = false;
+        feederThread.interrupt();
+        feederThread.join(pollInterval);
+    }
+
+
+    public void sendToQueue(Analysis analysis) throws IOException {
+        AnalysisTask task = createTask(analysis);
+        rabbitTemplate.send(getQueueName(task, true), createMessage(task));
+    }
+
+    /**
+     * Publishes the analyses of a bulk submission in batches on one channel, waiting for the broker
+     * to confirm each batch instead of each message. Analyses submitted together are queued on the bulk lane.
+     */
+    public void sendToQueue(List<Analysis> analyses) throws IOException {
+        boolean single = analyses.size() == 1;
+        List<String> queueNames = new ArrayList<>();
+        List<Message> messages = new ArrayList<>();
+        for (Analysis analysis : analyses) {
+            AnalysisTask task = createTask(analysis);
+            queueNames.add(getQueueName(task, single));
+            messages.add(createMessage(task));
+        }
+        for (int from = 0; from < messages.size(); from += publishBatchSize) {
+            int batchStart = from;
+            int batchEnd = Math.min(from + publishBatchSize, messages.size());
+            rabbitTemplate.invoke(operations -> {
+                for (int i = batchStart; i < batchEnd; i++) {
+                    operations.send(queueNames.get(i), messages.get(i));
+                }
+                operations.waitForConfirmsOrDie(publishConfirmTimeout);
+                return null;
+            });
+        }
+    }
+
+    /**
+     * The task carries the parameters of the analysis, the reference of its input in the blob store,
+     * so the worker does not need the disk of the web tier, and the estimated cost of the analysis
+     */
+    private AnalysisTask createTask(Analysis analysis) throws IOException {
+        Path inputFastaFile = Paths.get(FileHandler.getAnalysisDir(OUTPUT_DIR, analysis.getAnalysisId()), Constants.INPUT_FASTA);
+        // an input that could not be saved fails the analysis on the worker, as before
+        if (!Files.exists(inputFastaFile)) {
+            return AnalysisTask.of(analysis, null, 0);
+        }
+        long estimatedCost = jobSizeEstimator.estimate(inputFastaFile, analysis.getSequenceType());
+        return AnalysisTask.of(analysis, blobStore.put(inputFastaFile), estimatedCost);
+    }
+
+    private Message createMessage(AnalysisTask task) throws IOException {
+        return MessageBuilder
+                .withBody(objectMapper.writeValueAsBytes(task))
                 .setContentType(MessageProperties.CONTENT_TYPE_JSON)
                 .build();
-        rabbitTemplate.send(queueName, message);
     }
 
-    @RabbitListener(queues = "${rabbitmq.queue-name}", concurrency = "${rabbitmq.concurrent-consumer-count}")
-    public void processAnalysis(String analysisObj) throws JsonProcessingException {
-        log.info("## Received queued message" + analysisObj);
+    /**
+     * Small analyses submitted on their own go to the interactive lane, the others to the bulk queue of
+     * their user
+     */
+    private String getQueueName(AnalysisTask task, boolean single) {
+        if (single && jobSizeEstimator.isInteractive(task.getEstimatedCost())) {
+            return interactiveQueueName;
+        }
+        List<String> bulkQueueNames = RabbitMQConfig.getBulkQueueNames(queueName, bulkQueueCount);
+        return bulkQueueNames.get(Math.floorMod(Objects.hashCode(task.getUserEmail()), bulkQueueNames.size()));
+    }
 
-        Analysis analysis = objectMapper.readValue(analysisObj, Analysis.class);
+    /**
+     * Takes analyses from the queues while the scheduler has fewer than the window that may run waiting
+     * on a lane, interactive ones first and one from each bulk queue in turn, then the gene chunks of
+     * fanned-out analyses on the bulk lane, see {@link GeneChunkService}. The analyses of users running as
+     * many as they may count against a window of their own, so other users' analyses are taken behind
+     * them and the others are left in the broker once it is full. An analysis is acknowledged once it has
+     * run, so the broker gives the analyses of an instance that stops to the others. It holds at most
+     * max-taken unacknowledged analyses, and those still waiting after the lease are returned to the
+     * broker before its consumer timeout closes the channel. Acknowledgements are sent from the feeder
+     * thread, which alone uses the channel.
+     */
+    private void feed() {
+        List<String> bulkQueueNames = RabbitMQConfig.getBulkQueueNames(queueName, bulkQueueCount);
+        while (running) {
+            boolean received = false;
+            try {
+                Channel channel = openChannel();
+                acknowledgeDone(channel);
+                requeueExpired(channel, System.currentTimeMillis() - lease);
+                if (hasRoom(Lane.INTERACTIVE)) {
+                    received = receive(channel, interactiveQueueName, Lane.INTERACTIVE);
+                }
+                for (String bulkQueueName : bulkQueueNames) {
+                    if (hasRoom(Lane.BULK)) {
+                        received |= receive(channel, bulkQueueName, Lane.BULK);
+                    }
+                }
+                if (hasRoom(Lane.BULK)) {
+                    received |= receive(channel, chunkQueueName, Lane.BULK);
+                }
+            } catch (IOException | AmqpException e) {
+                log.warn("Could not take analyses from the queue: " + e.getMessage());
+            }
+            if (!received) {
+                try {
+                    Thread.sleep(pollInterval);
+                } catch (InterruptedException e) {
+                    break;
+                }
+            }
+        }
+        // the analyses running are returned by the broker when the connection closes
+        try {
+            if (feederChannel != null && feederChannel.isOpen()) {
+                requeueExpired(feederChannel, Long.MAX_VALUE);
+            }
+        } catch (IOException | AmqpException e) {
+            log.warn("Could not return the waiting analyses to the queue: " + e.getMessage());
+        }
+    }
 
-        Analysis savedAnalysis = objectMapper.readValue(databaseService.getAnalysisJsonById(analysis.getAnalysisId()), Analysis.class);
-        if (savedAnalysis.getStatus().equals(Constants.AnalysisStatus.CANCELLED)) {
-            return;
-        } else {
-            savedAnalysis.setStatus(Constants.AnalysisStatus.START_PROCESSING);
-            databaseService.update(savedAnalysis);
+    private boolean hasRoom(Lane lane) {
+        return analysisScheduler.getRunnableWaitingCount(lane) < schedulingWindow
+                && analysisScheduler.getCappedWaitingCount(lane) < cappedWindow && deliveries.size() < maxTaken;
+    }
+
+    /**
+     * Returns the channel the analyses are taken on, opening another one when it was closed. The broker
+     * requeues the analyses held on a closed channel, those still waiting here are withdrawn from the
+     * scheduler then, the ones running are acknowledged if they are delivered here again.
+     */
+    private Channel openChannel() {
+        if (feederChannel != null && feederChannel.isOpen()) {
+            return feederChannel;
         }
+        if (feederChannel != null) {
+            log.warn("The channel of the queued analyses was closed, " + deliveries.size() + " analyses were requeued");
+            Channel closed = feederChannel;
+            deliveries.values().removeIf(delivery -> delivery.channel == closed && analysisScheduler.withdraw(delivery.jobId));
+        }
+        feederChannel = rabbitTemplate.getConnectionFactory().createConnection().createChannel(false);
+        return feederChannel;
+    }
 
-        OUTPUT_DIR = (OUTPUT_DIR.endsWith("/")) ? OUTPUT_DIR : OUTPUT_DIR + File.separator;
-        String analysisDir = OUTPUT_DIR + analysis.getAnalysisId();
-        log.info("########### analysis  Dir: " + analysisDir);
-        String inputFastaFile = analysisDir + File.separator + Constants.INPUT_FASTA;
+    private void acknowledgeDone(Channel channel) throws IOException {
+        String jobId;
+        while ((jobId = done.poll()) != null) {
+            Delivery delivery = deliveries.remove(jobId);
+            // on a closed channel the broker has requeued it, it is acknowledged when delivered again
+            if (delivery != null && delivery.channel == channel) {
+                channel.basicAck(delivery.deliveryTag, false);
+            }
+        }
+    }
 
+    /**
+     * Returns the analyses taken before the given time that are still waiting to the broker
+     */
+    private void requeueExpired(Channel channel, long takenBefore) throws IOException {
+        for (Delivery delivery : new ArrayList<>(deliveries.values())) {
+            if (delivery.channel == channel && delivery.takenTime < takenBefore
+                    && analysisScheduler.withdraw(delivery.jobId)) {
+                channel.basicNack(delivery.deliveryTag, false, true);
+                deliveries.remove(delivery.jobId, delivery);
+            }
+        }
+    }
+
+    /**
+     * @return whether a message was taken from the queue
+     */
+    private boolean receive(Channel channel, String queue, Lane lane) throws IOException {
+        GetResponse response = channel.basicGet(queue, false);
+        if (response == null) {
+            return false;
+        }
+        long deliveryTag = response.getEnvelope().getDeliveryTag();
+        String messageObj = new String(response.getBody(), StandardCharsets.UTF_8);
+        log.info("## Received queued message" + messageObj);
+        String jobId;
+        Predicate<Runnable> schedule;
         try {
-            orFanGenes.run(
-                    inputFastaFile,
-                    analysisDir,
-                    analysis,
-                    APP_DIR);
-        } catch (Exception e) {
-            log.error("Analysis Failed: " + e.getMessage());
-            analysis.setStatus(Constants.AnalysisStatus.ERRORED);
-            databaseService.update(analysis);
+            if (queue.equals(chunkQueueName)) {
+                AnalysisChunkDto chunk = objectMapper.readValue(messageObj, AnalysisChunkDto.class);
+                jobId = GeneChunkService.getJobId(chunk);
+                schedule = onDone -> analysisWorker.runChunk(chunk, onDone);
+            } else {
+                AnalysisTask task = objectMapper.readValue(messageObj, AnalysisTask.class);
+                jobId = task.getAnalysisId();
+                schedule = onDone -> analysisWorker.run(task, lane, onDone);
+            }
+        } catch (JsonProcessingException e) {
+            log.error("Unreadable queued message: " + e.getMessage());
+            channel.basicAck(deliveryTag, false);
+            return true;
+        }
+        Delivery delivery = new Delivery(jobId, channel, deliveryTag, System.currentTimeMillis());
+        Delivery held = deliveries.get(jobId);
+        if (held != null && held.channel != channel) {
+            // requeued with a closed channel while it runs here
+            deliveries.put(jobId, delivery);
+        } else if (held != null || !schedule.test(() -> done.add(jobId))) {
+            log.info("Analysis " + jobId + " is queued on this instance already");
+            channel.basicAck(deliveryTag, false);
+        } else {
+            deliveries.put(jobId, delivery);
+        }
+        return true;
+    }
+
+    public void processAnalysis(String analysisObj) throws IOException {
+        log.info("## Received queued message" + analysisObj);
+
+        // messages queued before the claim check parse as tasks without an input reference
+        analysisWorker.process(objectMapper.readValue(analysisObj, AnalysisTask.class));
+    }
+
+    private static class Delivery {
+        // analysis ID, or the ID of a gene chunk
+        private final String jobId;
+        private final Channel channel;
+        private final long deliveryTag;
+        private final long takenTime;
+
+        Delivery(String jobId, Channel channel, long deliveryTag, long takenTime) {
+            this.jobId = jobId;
+            this.channel = channel;
+            this.deliveryTag = deliveryTag;
+            this.takenTime = takenTime;
         }
     }
 }
@@ -0,0 +1,423 @@
+package com.orfangenes.app.service;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import com.fasterxml.jackson.databind.annotation.JsonAppend;
+import com.orfangenes.app.dto.AnalysisStatusDto;
+import com.orfangenes.app.util.Constants;
+import com.orfangenes.app.util.RestCall;
+import com.orfangenes.app.util.Utils;
+import com.orfangenes.app.model.Analysis;
+import com.orfangenes.app.model.Gene;
+import com.orfangenes.app.model.User;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.util.LinkedMultiValueMap;
+import org.springframework.util.MultiValueMap;
+import org.springframework.web.client.HttpClientErrorException;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.*;
+import java.util.stream.Collectors;
+
+/**
+ * {@link DatabaseService} on the ORFanBase database API
+ *
+ * @author Suresh Hewapathirana
+ */
+@Slf4j
+public class RestDatabaseService implements DatabaseService {
+
+    private static final String ANALYSIS_ATTRIBUTE = "analysis";
+
+    private final ObjectMapper objectMapper = Utils.getJacksonObjectMapper();
+    // payloads are streamed to the request body, which is owned by the request
+    private final ObjectWriter payloadWriter = objectMapper.writer().without(JsonGenerator.Feature.AUTO_CLOSE_TARGET);
+    // genes of a saved analysis refer to it by id
+    private final ObjectWriter analysisWriter = Utils.getJacksonObjectMapper()
+            .addMixIn(Gene.class, GeneWithAnalysisId.class)
+            .writerFor(Analysis.class)
+            .without(JsonGenerator.Feature.AUTO_CLOSE_TARGET);
+    RestCall restCall;
+    // analysis reads of the results page, see AnalysisReadCache
+    private final AnalysisReadCache analysisReadCache;
+    // statuses polled by the UI
+    private final AnalysisStatusCache analysisStatusCache;
+    private volatile boolean statusEndpointAvailable = true;
+    private volatile boolean bulkStatusEndpointAvailable = true;
+    private volatile boolean bulkStatusUpdateEndpointAvailable = true;
+    private volatile boolean bulkPendingEndpointAvailable = true;
+    private volatile boolean genesEndpointAvailable;
+
+    /**
+     * @param genesEndpoint whether the database API has the analysis/genes endpoint, it is not used either
+     *                      once it was not found
+     */
+    public RestDatabaseService(RestCall restCall, AnalysisReadCache analysisReadCache, AnalysisStatusCache analysisStatusCache,
+                               boolean genesEndpoint) {
+        this.restCall = restCall;
+        this.genesEndpointAvailable = genesEndpoint;
+        this.analysisReadCache = analysisReadCache;
+        this.analysisStatusCache = analysisStatusCache;
+    }
+
+    private void invalidate(String analysisId) {
+        analysisReadCache.invalidate(analysisId);
+        analysisStatusCache.invalidate(analysisId);
+    }
+
+    /** =========================== ANALYSIS =========================== */
+
+    @Override
+    public String getOrfanbaseGenes() {
+        String url = "analysis/orfanbase-table";
+        return restCall.sendGetRequestWithRetry(url, null, null);
+    }
+
+    @Override
+    public Analysis getAnalysisById(String analysisId) throws IOException {
+        String response = getAnalysisJsonById(analysisId);
+        if(response !=null){
+            return (Analysis) this.objectMapper.readValue(response, Analysis.class);
+        }else{
+            return null;
+        }
+    }
+
+    @Override
+    public String getAnalysisJsonById(String analysisId) {
+        return analysisReadCache.get(analysisId, "analysis", () -> {
+            MultiValueMap<String, String> queryParams =  new LinkedMultiValueMap<>();;
+            queryParams.add("analysisId" , analysisId);
+            String response = restCall.sendGetRequestWithRetry("analysis/analysis", null, queryParams);
+            if (isCompleted(response)) {
+                // completed analyses do not change, the other reads of the analysis are kept with it
+                analysisReadCache.pin(analysisId);
+            }
+            return response;
+        });
+    }
+
+    /**
+     * Reads the status of the analysis without its results. Where the database API has no status
+     * endpoint, the status is projected from the whole analysis instead.
+     */
+    @Override
+    public AnalysisStatusDto getAnalysisStatus(String analysisId) throws IOException {
+        if (statusEndpointAvailable) {
+            try {
+                String response = restCall.sendGetRequestWithRetry("analysis/status/" + analysisId, null, null);
+                return (response != null) ? this.objectMapper.readValue(response, AnalysisStatusDto.class) : null;
+            } catch (HttpClientErrorException.NotFound e) {
+                log.debug("No status endpoint response for analysis " + analysisId + ", reading the analysis");
+            }
+        }
+        String response = getAnalysisJsonById(analysisId);
+        if (response == null) {
+            return null;
+        }
+        // the analysis exists, so it was the endpoint that was not found
+        statusEndpointAvailable = false;
+        Analysis analysis = this.objectMapper.readValue(response, Analysis.class);
+        int progress = Constants.AnalysisStatus.COMPLETED.equals(analysis.getStatus()) ? 100 : AnalysisStatusDto.UNKNOWN_PROGRESS;
+        return new AnalysisStatusDto(analysisId, analysis.getStatus(), progress, 0);
+    }
+
+    /**
+     * Statuses of many analyses from the status cache. The statuses that are not cached are read in one
+     * request where the database API supports it. Unknown analyses are left out.
+     */
+    @Override
+    public List<AnalysisStatusDto> getAnalysisStatuses(Collection<String> analysisIds) {
+        Map<String, AnalysisStatusDto> statuses = analysisStatusCache.getAll(new LinkedHashSet<>(analysisIds), this::loadAnalysisStatuses);
+        return analysisIds.stream()
+                .map(statuses::get)
+                .filter(Objects::nonNull)
+                .collect(Collectors.toList());
+    }
+
+    private Map<String, AnalysisStatusDto> loadAnalysisStatuses(Iterable<? extends String> analysisIds) {
+        List<String> ids = new ArrayList<>();
+        analysisIds.forEach(ids::add);
+        Map<String, AnalysisStatusDto> statuses = new HashMap<>();
+        if (bulkStatusEndpointAvailable && ids.size() > 1) {
+            try {
+                String response = restCall.sendPostRequest("analysis/status/list", body -> payloadWriter.writeValue(body, ids));
+                TypeReference<List<AnalysisStatusDto>> typeRef = new TypeReference<List<AnalysisStatusDto>>() {};
+                for (AnalysisStatusDto status : this.objectMapper.readValue(response, typeRef)) {
+                    statuses.put(status.getAnalysisId(), status);
+                }
+                return statuses;
+            } catch (HttpClientErrorException.NotFound e) {
+                bulkStatusEndpointAvailable = false;
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+        for (String analysisId : ids) {
+            try {
+                AnalysisStatusDto status = getAnalysisStatus(analysisId);
+                if (status != null) {
+                    statuses.put(analysisId, status);
+                }
+            } catch (HttpClientErrorException.NotFound e) {
+                log.debug("Analysis not found: " + analysisId);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+        return statuses;
+    }
+
+    private boolean isCompleted(String analysisJson) {
+        if (analysisJson == null) {
+            return false;
+        }
+        try {
+            return Constants.AnalysisStatus.COMPLETED.name().equals(objectMapper.readTree(analysisJson).path("status").asText());
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    @Override
+    public Analysis saveAnalysis(Analysis analysis) throws IOException {
+        String url = "/analysis/analysis";
+        Long id = analysis.getId();
+        if (id == null) {
+            id = -1L;
+            analysis.setId(id);
+        }
+
+        ObjectWriter writer = analysisWriter.withAttribute(ANALYSIS_ATTRIBUTE, id);
+        log.info("Saving analysis : " + analysis.getAnalysisId());
+        String response;
+        try {
+            response = this.restCall.sendPostRequest(url, body -> writer.writeValue(body, analysis));
+        } finally {
+            invalidate(analysis.getAnalysisId());
+        }
+        return (Analysis) this.objectMapper.readValue(response, Analysis.class);
+    }
+
+    /** =========================== GENE =========================== */
+
+    @Override
+    public String getAllAnalysis() {
+        String url = "analysis/analyses/all-analysis-table";
+        return restCall.sendGetRequestWithRetry(url, null, null);
+    }
+
+    /**
+     * Saves (inserts or updates) the given genes of an analysis, e.g. genes classified while BLAST is running
+     *
+     * @throws UnsupportedOperationException when the database API has no genes endpoint, see {@link #canSaveGenes()}
+     */
+    @Override
+    public void saveGenes(String analysisId, List<Gene> genes) {
+        if (!genesEndpointAvailable) {
+            throw new UnsupportedOperationException("The database API has no analysis/genes endpoint");
+        }
+        String url = "analysis/genes/" + analysisId;
+        try {
+            restCall.sendPostRequest(url, body -> payloadWriter.writeValue(body, genes));
+        } catch (HttpClientErrorException.NotFound e) {
+            // older database APIs only save genes with the whole analysis
+            log.warn("The database API has no analysis/genes endpoint, genes are saved with their analysis from now on");
+            genesEndpointAvailable = false;
+            throw new UnsupportedOperationException("The database API has no analysis/genes endpoint", e);
+        } finally {
+            invalidate(analysisId);
+        }
+    }
+
+    @Override
+    public boolean canSaveGenes() {
+        return genesEndpointAvailable;
+    }
+
+    /** =========================== USER =========================== */
+
+    @Override
+    public User getUserByEmail(String email) throws IOException {
+        MultiValueMap<String, String> queryParams =  new LinkedMultiValueMap<>();;
+        queryParams.add("email" , email);
+        String response = restCall.sendGetRequestWithRetry("user", null, queryParams);
+        if(response !=null){
+            return (User) this.objectMapper.readValue(response, User.class);
+        }else{
+            return null;
+        }
+    }
+
+    @Override
+    public User saveUser(User user) throws IOException {
+        String url = "/user";
+        Long id = user.getId();
+        if (id == null) {
+            id = -1L;
+            user.setId(id);
+        }
+
+        String payload = this.objectMapper.writeValueAsString(user);
+        log.info("Saving user : " + payload);
+        String response = this.restCall.sendPostRequest(url, payload);
+        return (User) this.objectMapper.readValue(response, User.class);
+    }
+
+    @Override
+    public String getDataSummary(String analysisId) {
+        String url = "analysis/data/summary/" + analysisId;
+        return analysisReadCache.get(analysisId, "summary", () -> restCall.sendGetRequestWithRetry(url, null, null));
+    }
+
+    @Override
+    public String getDataSummaryChart(String analysisId) {
+        String url = "analysis/data/summary-chart/" + analysisId;
+        return analysisReadCache.get(analysisId, "chart", () -> restCall.sendGetRequestWithRetry(url, null, null));
+    }
+
+    @Override
+    public String getDataGeneList(String analysisId) {
+        String url = "analysis/data/genes/" + analysisId;
+        return analysisReadCache.get(analysisId, "genes", () -> restCall.sendGetRequestWithRetry(url, null, null));
+    }
+
+    @Override
+    public String getDataBlastResults(String analysisId) {
+        String url = "analysis/data/blastresults/" + analysisId;
+        return analysisReadCache.get(analysisId, "blastresults", () -> restCall.sendGetRequestWithRetry(url, null, null));
+    }
+
+    @Override
+    public void savePendingAnalysis(Analysis analysis) {
+        String url = "analysis/pending";
+        try {
+            restCall.sendPostRequest(url, body -> payloadWriter.writeValue(body, analysis));
+        } finally {
+            invalidate(analysis.getAnalysisId());
+        }
+    }
+
+    /**
+     * Saves the analyses in one request, or one request per analysis where the database API does not
+     * support it
+     */
+    @Override
+    public void savePendingAnalyses(List<Analysis> analyses) {
+        if (analyses.size() == 1) {
+            savePendingAnalysis(analyses.get(0));
+            return;
+        }
+        if (!bulkPendingEndpointAvailable) {
+            analyses.forEach(this::savePendingAnalysis);
+            return;
+        }
+        String url = "analysis/pending/list";
+        try {
+            restCall.sendPostRequest(url, body -> payloadWriter.writeValue(body, analyses));
+        } catch (HttpClientErrorException.NotFound e) {
+            bulkPendingEndpointAvailable = false;
+            analyses.forEach(this::savePendingAnalysis);
+        } finally {
+            analyses.forEach(analysis -> invalidate(analysis.getAnalysisId()));
+        }
+    }
+
+    @Override
+    public void update(Analysis analysis) {
+        String url = "analysis/update";
+        try {
+            restCall.sendPostRequest(url, body -> payloadWriter.writeValue(body, analysis));
+        } finally {
+            invalidate(analysis.getAnalysisId());
+        }
+    }
+
+    /**
+     * Sets the status of the analysis without sending the rest of it
+     */
+    @Override
+    public void updateStatus(String analysisId, Constants.AnalysisStatus status) {
+        updateStatus(new AnalysisStatusDto(analysisId, status, AnalysisStatusDto.UNKNOWN_PROGRESS, 0));
+    }
+
+    /**
+     * @throws IllegalStateException when the database API has no status endpoint, status changes are not
+     * saved with the whole analysis as that would overwrite concurrent changes of the analysis
+     */
+    @Override
+    public void updateStatus(AnalysisStatusDto analysisStatus) {
+        String analysisId = analysisStatus.getAnalysisId();
+        String url = "analysis/status/" + analysisId;
+        Map<String, Object> payload = createStatusPayload(analysisStatus);
+        payload.remove("analysisId");
+        try {
+            restCall.sendPostRequest(url, body -> payloadWriter.writeValue(body, payload));
+        } catch (HttpClientErrorException.NotFound e) {
+            if (getAnalysisJsonById(analysisId) != null) {
+                throw new IllegalStateException("The database API has no analysis/status endpoint, status changes cannot be saved", e);
+            }
+            log.warn("Not updating the status of unknown analysis " + analysisId);
+        } finally {
+            invalidate(analysisId);
+        }
+    }
+
+    /**
+     * Sets the status of several analyses in one request, or one request per analysis where the
+     * database API does not support it
+     */
+    @Override
+    public void updateStatuses(Collection<AnalysisStatusDto> statuses) {
+        if (statuses.size() == 1) {
+            updateStatus(statuses.iterator().next());
+            return;
+        }
+        String url = "analysis/status";
+        List<Map<String, Object>> payload = statuses.stream()
+                .map(RestDatabaseService::createStatusPayload)
+                .collect(Collectors.toList());
+        if (!bulkStatusUpdateEndpointAvailable) {
+            statuses.forEach(this::updateStatus);
+            return;
+        }
+        try {
+            restCall.sendPostRequest(url, body -> payloadWriter.writeValue(body, payload));
+        } catch (HttpClientErrorException.NotFound e) {
+            bulkStatusUpdateEndpointAvailable = false;
+            statuses.forEach(this::updateStatus);
+        } finally {
+            statuses.forEach(status -> invalidate(status.getAnalysisId()));
+        }
+    }
+
+    // the version is assigned by the database API
+    private static Map<String, Object> createStatusPayload(AnalysisStatusDto analysisStatus) {
+        Map<String, Object> payload = new LinkedHashMap<>();
+        payload.put("analysisId", analysisStatus.getAnalysisId());
+        if (analysisStatus.getStatus() != null) {
+            payload.put("status", analysisStatus.getStatus().name());
+        }
+        if (analysisStatus.getProgress() != AnalysisStatusDto.UNKNOWN_PROGRESS) {
+            payload.put("progress", analysisStatus.getProgress());
+        }
+        return payload;
+    }
+
+    @Override
+    public void cancelAnalysis(String analysisId) {
+        String url = "analysis/cancel/" + analysisId;
+        try {
+            restCall.sendGetRequestWithRetry(url, null, null);
+        } finally {
+            invalidate(analysisId);
+        }
+    }
+
+    @JsonAppend(attrs = @JsonAppend.Attr(value = ANALYSIS_ATTRIBUTE))
+    private abstract static class GeneWithAnalysisId {
+    }
+}
@@ -1,14 +1,25 @@
 package com.orfangenes.app.service;
 
-import com.orfangenes.app.model.taxonomy.TaxNode;
-import org.json.simple.JSONArray;
-import org.json.simple.JSONObject;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.orfangenes.app.model.Gene;
+import com.orfangenes.app.util.GeneIndex;
 
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
 import java.util.*;
 
 import static com.orfangenes.app.util.Constants.*;
 
 public class ResultsProcessingService {
+    private static final JsonFactory JSON_FACTORY = new JsonFactory();
+
     private static List<String> ranks =
             Arrays.asList(SPECIES,
                     GENUS,
@@ -19,108 +30,260 @@ public class ResultsProcessingService {
                     KINGDOM,
                     SUPERKINGDOM);
 
-    public static JSONArray generateBlastTree(Map<String, List<List<String>>> taxonomyTreeForGenes) {
-        JSONArray trees = new JSONArray();
-        for (Map.Entry<String, List<List<String>>> taxTree: taxonomyTreeForGenes.entrySet()) {
-            JSONObject tree = new JSONObject();
+    // rank codes of the compact trees
+    private static final List<String> COMPACT_RANKS =
+            Arrays.asList("root", SUPERKINGDOM, KINGDOM, PHYLUM, CLASS, ORDER, FAMILY, GENUS, SPECIES);
 
-            String geneId = taxTree.getKey();
-            tree.put("id", geneId);
+    // rankedlineage columns from superkingdom down to the scientific name, leaving out the species column
+    private static final int[] RANK_COLUMNS = {9, 8, 7, 6, 5, 4, 3, 1};
 
-            // Removing duplicate lineages
-            List<List<String>> lineages = taxTree.getValue();
-            Set<String> species = new HashSet<>();
-            Set<String> superkingdoms = new HashSet<>();
-            List<List<String>> uniqueLineages = new ArrayList<>();
-            for (List<String> lineage : lineages) {
-                if (lineage != null) {
-                    String speciesName = lineage.get(1);
-                    if (lineage.size() == 10 && species.add(speciesName)) {
-                        lineage.remove(2); // Removing taxonomy ID
-                        lineage.remove(0); // Removing common name
-                        uniqueLineages.add(lineage);
-
-                        String superkingdomName = lineage.get(7);
-                        superkingdoms.add(superkingdomName);
-                    }
-                }
+    /**
+     * @return the trees of all the genes as a JSON array
+     */
+    public static String generateBlastTree(Map<String, List<List<String>>> taxonomyTreeForGenes) throws IOException {
+        StringWriter trees = new StringWriter();
+        try (JsonGenerator generator = JSON_FACTORY.createGenerator(trees)) {
+            generator.writeStartArray();
+            for (Map.Entry<String, List<List<String>>> taxTree: taxonomyTreeForGenes.entrySet()) {
+                writeGeneTree(generator, taxTree.getKey(), buildTree(taxTree.getValue()));
             }
+            generator.writeEndArray();
+        }
+//        FileHandler.saveOutputFiles(trees, outputdir +File.separator + FILE_OUTPUT_BLAST_RESULTS);
+        return trees.toString();
+    }
 
-            // All life
-            TaxNode luca = new TaxNode();
-            luca.setName("LUCA");
-            luca.setNRank("root");
-            luca.setNodeCount(1);
-
-            Set<TaxNode> superkingdomNodes = new HashSet<>();
-            if (superkingdoms.size() == 1) {
-                TaxNode superkingdom = new TaxNode();
-                superkingdom.setName(superkingdoms.iterator().next());
-                superkingdom.setNRank(ranks.get(7));
-                superkingdom.setChildren(getChildren(uniqueLineages, 7, superkingdom.getName()));
-                superkingdom.setNodeCount(1);
-
-                superkingdomNodes.add(superkingdom);
-            } else {
-                for (String superkingdomName : superkingdoms) {
-                    TaxNode superkingdom = new TaxNode();
-                    superkingdom.setName(superkingdomName);
-                    superkingdom.setChildren(getChildren(uniqueLineages, 7, superkingdom.getName()));
-                    superkingdom.setNRank(ranks.get(7));
-                    superkingdom.setNodeCount(1);
-                    superkingdomNodes.add(superkingdom);
-                }
+    /**
+     * Saves the tree of each gene as a "geneId TAB json" line in the analysis directory and indexes
+     * the lines by gene, so the tree of a gene can be served without reading the others. Trees are
+     * streamed to the file as they are built.
+     * <p>
+     * The trees are also saved in a compact form: the names of the analysis are written once to a
+     * name table and each tree is a set of parallel arrays (parent, name, rank, count) in pre-order,
+     * with -1 as the parent of the root.
+     * <p>
+     * The web tier reads the trees through {@link AnalysisOutputs}, from the blob store once the worker
+     * has published them, so it does not need the analysis directory of the worker.
+     */
+    public static void saveBlastTrees(Map<String, List<List<String>>> taxonomyTreeForGenes, String outputDir) throws IOException {
+        Path treesFile = Paths.get(outputDir, BLAST_TREES_FILE);
+        Path compactTreesFile = Paths.get(outputDir, BLAST_TREES_COMPACT_FILE);
+        Path tmpFile = Paths.get(outputDir, BLAST_TREES_FILE + ".tmp");
+        Path compactTmpFile = Paths.get(outputDir, BLAST_TREES_COMPACT_FILE + ".tmp");
+        Map<String, Integer> nameIds = new LinkedHashMap<>();
+        try (JsonGenerator generator = createLineGenerator(tmpFile);
+             JsonGenerator compactGenerator = createLineGenerator(compactTmpFile)) {
+            for (Map.Entry<String, List<List<String>>> taxTree: taxonomyTreeForGenes.entrySet()) {
+                TreeNode luca = buildTree(taxTree.getValue());
+                writeLine(generator, taxTree.getKey());
+                writeGeneTree(generator, taxTree.getKey(), luca);
+                generator.writeRaw('\n');
+                writeLine(compactGenerator, taxTree.getKey());
+                writeCompactGeneTree(compactGenerator, taxTree.getKey(), luca, nameIds);
+                compactGenerator.writeRaw('\n');
             }
-            luca.setChildren(superkingdomNodes);
-            JSONObject jsonTree = createJsonNode(luca);
-            tree.put("tree", jsonTree);
-            trees.add(tree);
         }
-//        FileHandler.saveOutputFiles(trees, outputdir +File.separator + FILE_OUTPUT_BLAST_RESULTS);
-        return trees;
-    }
-
-    private static Set<TaxNode> getChildren (List<List<String>> uniqueLineages, int lineageLevel, String parentName) {
-        Set<TaxNode> children = new HashSet<>();
-        Set<String> childrenNames = new HashSet<>();
-        Map<String, Integer> duplicateChildrenCount = new HashMap<>();
-
-        for (List<String> lineage : uniqueLineages) {
-            String taxNameAtLevel = lineage.get(lineageLevel);
-            if (taxNameAtLevel.equals(parentName) && lineageLevel > 0) {
-                String childName = lineage.get(lineageLevel - 1);
-                if (childrenNames.add(childName)) { // Avoid duplicates
-                    TaxNode child = new TaxNode();
-                    child.setName(childName);
-                    child.setNRank(ranks.get(lineageLevel - 1));
-                    child.setChildren(getChildren(uniqueLineages, lineageLevel - 1, child.getName()));
-                    children.add(child);
-
-                    duplicateChildrenCount.put(childName, 1);
-                } else {
-                    duplicateChildrenCount.put(childName, (duplicateChildrenCount.get(childName) + 1));
-                }
+        saveTreeNames(nameIds.keySet(), Paths.get(outputDir, BLAST_TREE_NAMES_FILE));
+        Files.move(compactTmpFile, compactTreesFile, StandardCopyOption.REPLACE_EXISTING);
+        GeneIndex.build(compactTreesFile).write(Paths.get(outputDir, BLAST_TREES_COMPACT_INDEX_FILE));
+        Files.move(tmpFile, treesFile, StandardCopyOption.REPLACE_EXISTING);
+        GeneIndex.build(treesFile).write(Paths.get(outputDir, BLAST_TREES_INDEX_FILE));
+    }
+
+    /**
+     * Saves the ORFan level of each gene, read back by {@link #readClassification(String)} when an
+     * analysis resumes after its classification
+     */
+    public static void saveClassification(List<Gene> genes, String outputDir) throws IOException {
+        Path classificationFile = Paths.get(outputDir, CLASSIFICATION_FILE);
+        Path tmpFile = Paths.get(outputDir, CLASSIFICATION_FILE + ".tmp");
+        try (BufferedWriter writer = Files.newBufferedWriter(tmpFile, StandardCharsets.UTF_8)) {
+            for (Gene gene : genes) {
+                writer.write(gene.getGeneId() + "\t" + gene.getOrfanLevel() + "\n");
             }
         }
+        Files.move(tmpFile, classificationFile, StandardCopyOption.REPLACE_EXISTING);
+    }
 
-        // Setting node count for children
-        for (TaxNode node : children) {
-            node.setNodeCount(duplicateChildrenCount.get(node.getName()));
+    /**
+     * @return mapping between Gene ID and ORFan level
+     */
+    public static Map<String, String> readClassification(String outputDir) throws IOException {
+        Map<String, String> classification = new HashMap<>();
+        for (String line : Files.readAllLines(Paths.get(outputDir, CLASSIFICATION_FILE), StandardCharsets.UTF_8)) {
+            String[] columns = line.split("\t");
+            if (columns.length == 2) {
+                classification.put(columns[0], columns[1]);
+            }
         }
-        return children;
+        return classification;
     }
 
-    private static JSONObject createJsonNode (TaxNode node) {
-        JSONObject jsonNode = new JSONObject();
-        jsonNode.put("name", String.format("%s(%d)", node.getName(), node.getNodeCount()));
+    /**
+     * @return the tree of the gene saved by {@link #saveBlastTrees(Map, String)}, or null if the gene has no hits
+     */
+    public static String readBlastTree(String outputDir, String geneId) throws IOException {
+        return readTree(Paths.get(outputDir, BLAST_TREES_FILE), Paths.get(outputDir, BLAST_TREES_INDEX_FILE), geneId);
+    }
 
-        if (node.getChildren().size() > 0) {
-            JSONArray children = new JSONArray();
-            for (TaxNode child : node.getChildren()) {
-                children.add(createJsonNode(child));
+    /**
+     * @return the compact tree of the gene, whose names are in {@link #readBlastTreeNames(String)},
+     * or null if the gene has no hits
+     */
+    public static String readCompactBlastTree(String outputDir, String geneId) throws IOException {
+        return readTree(Paths.get(outputDir, BLAST_TREES_COMPACT_FILE), Paths.get(outputDir, BLAST_TREES_COMPACT_INDEX_FILE), geneId);
+    }
+
+    /**
+     * @return the name and rank tables of the compact trees of an analysis
+     */
+    public static String readBlastTreeNames(String outputDir) throws IOException {
+        return new String(Files.readAllBytes(Paths.get(outputDir, BLAST_TREE_NAMES_FILE)), StandardCharsets.UTF_8);
+    }
+
+    private static String readTree(Path treesFile, Path indexFile, String geneId) throws IOException {
+        byte[] row = GeneIndex.load(treesFile, indexFile).readRows(treesFile, geneId);
+        if (row == null) {
+            return null;
+        }
+        String line = new String(row, StandardCharsets.UTF_8);
+        return line.substring(line.indexOf('\t') + 1).trim();
+    }
+
+    private static JsonGenerator createLineGenerator(Path file) throws IOException {
+        JsonGenerator generator = JSON_FACTORY.createGenerator(Files.newBufferedWriter(file, StandardCharsets.UTF_8));
+        generator.setRootValueSeparator(null);
+        return generator;
+    }
+
+    private static void writeLine(JsonGenerator generator, String geneId) throws IOException {
+        generator.writeRaw(geneId);
+        generator.writeRaw('\t');
+    }
+
+    private static void writeGeneTree(JsonGenerator generator, String geneId, TreeNode luca) throws IOException {
+        generator.writeStartObject();
+        generator.writeStringField("id", geneId);
+        generator.writeFieldName("tree");
+        writeNode(generator, luca);
+        generator.writeEndObject();
+    }
+
+    private static void writeCompactGeneTree(JsonGenerator generator, String geneId, TreeNode luca,
+                                             Map<String, Integer> nameIds) throws IOException {
+        List<TreeNode> nodes = new ArrayList<>();
+        List<Integer> parentIndexes = new ArrayList<>();
+        flatten(luca, -1, nodes, parentIndexes);
+
+        int size = nodes.size();
+        int[] parents = new int[size];
+        int[] names = new int[size];
+        int[] nodeRanks = new int[size];
+        int[] counts = new int[size];
+        for (int i = 0; i < size; i++) {
+            TreeNode node = nodes.get(i);
+            parents[i] = parentIndexes.get(i);
+            names[i] = nameIds.computeIfAbsent(node.name, k -> nameIds.size());
+            nodeRanks[i] = COMPACT_RANKS.indexOf(node.rank);
+            counts[i] = node.nodeCount;
+        }
+
+        generator.writeStartObject();
+        generator.writeStringField("id", geneId);
+        writeIntArrayField(generator, "parent", parents);
+        writeIntArrayField(generator, "name", names);
+        writeIntArrayField(generator, "rank", nodeRanks);
+        writeIntArrayField(generator, "count", counts);
+        generator.writeEndObject();
+    }
+
+    private static void flatten(TreeNode node, int parentIndex, List<TreeNode> nodes, List<Integer> parentIndexes) {
+        int index = nodes.size();
+        nodes.add(node);
+        parentIndexes.add(parentIndex);
+        for (TreeNode child : node.children.values()) {
+            flatten(child, index, nodes, parentIndexes);
+        }
+    }
+
+    private static void writeIntArrayField(JsonGenerator generator, String fieldName, int[] values) throws IOException {
+        generator.writeFieldName(fieldName);
+        generator.writeArray(values, 0, values.length);
+    }
+
+    private static void saveTreeNames(Collection<String> names, Path namesFile) throws IOException {
+        Path tmpFile = Paths.get(namesFile + ".tmp");
+        try (JsonGenerator generator = JSON_FACTORY.createGenerator(Files.newBufferedWriter(tmpFile, StandardCharsets.UTF_8))) {
+            generator.writeStartObject();
+            generator.writeArrayFieldStart("names");
+            for (String name : names) {
+                generator.writeString(name);
+            }
+            generator.writeEndArray();
+            generator.writeArrayFieldStart("ranks");
+            for (String rank : COMPACT_RANKS) {
+                generator.writeString(rank);
+            }
+            generator.writeEndArray();
+            generator.writeEndObject();
+        }
+        Files.move(tmpFile, namesFile, StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    /**
+     * Builds the taxonomy tree of a gene in one pass, inserting each lineage into a trie ordered
+     * by rank and counting the lineages that pass through each node. The lineages are not modified.
+     */
+    static TreeNode buildTree(List<List<String>> lineages) {
+        // All life
+        TreeNode luca = new TreeNode("LUCA", "root");
+        luca.nodeCount = 1;
+
+        Set<String> species = new HashSet<>();
+        for (List<String> lineage : lineages) {
+            // Removing duplicate lineages
+            if (lineage != null && lineage.size() == 10 && species.add(lineage.get(1))) {
+                TreeNode node = luca;
+                for (int level = 0; level < RANK_COLUMNS.length; level++) {
+                    node = node.getChild(lineage.get(RANK_COLUMNS[level]), ranks.get(RANK_COLUMNS.length - 1 - level));
+                    node.nodeCount++;
+                }
+            }
+        }
+        // superkingdoms are shown without a count
+        for (TreeNode superkingdom : luca.children.values()) {
+            superkingdom.nodeCount = 1;
+        }
+        return luca;
+    }
+
+    private static void writeNode(JsonGenerator generator, TreeNode node) throws IOException {
+        generator.writeStartObject();
+        generator.writeStringField("name", String.format("%s(%d)", node.name, node.nodeCount));
+
+        if (node.children.size() > 0) {
+            generator.writeArrayFieldStart("children");
+            for (TreeNode child : node.children.values()) {
+                writeNode(generator, child);
             }
-            jsonNode.put("children", children);
+            generator.writeEndArray();
+        }
+        generator.writeEndObject();
+    }
+
+    static class TreeNode {
+        final String name;
+        final String rank;
+        int nodeCount;
+        final Map<String, TreeNode> children = new LinkedHashMap<>();
+
+        TreeNode(String name, String rank) {
+            this.name = name;
+            this.rank = rank;
+        }
+
+        TreeNode getChild(String childName, String childRank) {
+            return children.computeIfAbsent(childName, k -> new TreeNode(childName, childRank));
         }
-        return jsonNode;
     }
-}
\ No newline at end of file
+}
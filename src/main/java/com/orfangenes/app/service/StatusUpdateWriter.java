@@ -0,0 +1,338 @@
+package com.orfangenes.app.service;
+
+import com.orfangenes.app.dto.AnalysisEventDto;
+import com.orfangenes.app.dto.AnalysisStatusDto;
+import com.orfangenes.app.util.Constants.AnalysisStatus;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+
+import static com.orfangenes.app.dto.AnalysisStatusDto.UNKNOWN_PROGRESS;
+
+/**
+ * Write-behind queue of analysis status transitions. {@link #submit(String, AnalysisStatus)} queues the
+ * transition and returns without waiting for the disk or the database API. The writer thread appends the
+ * transitions queued since its last pass to a local journal with a single sync, coalesces the transitions
+ * of each analysis to its latest status, sends them to the database API in batches, marks them as sent in
+ * the journal and publishes them as status events. Transitions that were journaled but not sent before a
+ * crash are sent again on startup, those not journaled yet, at most a flush interval of them, are lost.
+ * <p>
+ * CANCELLED is final: the transitions of an analysis cancelled in the meantime, here or through the
+ * database API by another instance, are dropped instead of sent, e.g. a COMPLETED of a worker that did not
+ * notice the cancellation.
+ * <p>
+ * Journal lines are "U TAB analysisId TAB status TAB progress" for a transition, "P TAB analysisId TAB
+ * progress" for a progress update and "A TAB count" once the first count of these have been sent.
+ */
+@Slf4j
+@Service
+public class StatusUpdateWriter {
+
+    private static final long MAX_RETRY_DELAY_MS = 30000;
+
+    @Autowired
+    DatabaseService databaseService;
+
+    @Autowired
+    AnalysisEventPublisher analysisEventPublisher;
+
+    // on a disk of this instance, the journal of every instance has its own transitions
+    @Value("${analysis.status-updates.journal:${data.localdir}status-updates.journal}")
+    private String journalPath;
+
+    @Value("${analysis.status-updates.batch-size:50}")
+    private int batchSize;
+
+    @Value("${analysis.status-updates.flush-interval-ms:200}")
+    private long flushInterval;
+
+    private final Object lock = new Object();
+    // latest status of each analysis waiting to be sent
+    private LinkedHashMap<String, AnalysisStatusDto> pending = new LinkedHashMap<>();
+    // journal lines of the transitions queued since the writer's last pass
+    private final StringBuilder unwritten = new StringBuilder();
+    // transitions in the journal, or to be appended to it
+    private int journaled = 0;
+    private volatile boolean running = false;
+    private FileChannel journal;
+    private Thread writerThread;
+
+    @PostConstruct
+    public void start() throws IOException {
+        Path journalFile = Paths.get(journalPath);
+        Files.createDirectories(journalFile.toAbsolutePath().getParent());
+        pending.putAll(readJournal(journalFile));
+        if (!pending.isEmpty()) {
+            log.info("Resending " + pending.size() + " analysis status updates from " + journalFile);
+        }
+        // the journal starts over with the transitions still to send
+        StringBuilder lines = new StringBuilder();
+        pending.values().forEach(update -> appendLine(lines, update));
+        Path tmpFile = Paths.get(journalPath + ".tmp");
+        Files.write(tmpFile, lines.toString().getBytes(StandardCharsets.UTF_8));
+        Files.move(tmpFile, journalFile, StandardCopyOption.REPLACE_EXISTING);
+        journaled = pending.size();
+        journal = FileChannel.open(journalFile, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        running = true;
+        writerThread = new Thread(this::writeLoop, "status-update-writer");
+        writerThread.setDaemon(true);
+        writerThread.start();
+    }
+
+    /**
+     * Sends the updates that are still pending and stops the writer
+     */
+    @PreDestroy
+    public void stop() throws IOException, InterruptedException {
+        running = false;
+        synchronized (lock) {
+            lock.notifyAll();
+        }
+        writerThread.join(MAX_RETRY_DELAY_MS);
+        journal.close();
+    }
+
+    /**
+     * Queues the status transition of the analysis for the journal and the database API, replacing a
+     * transition of the same analysis that has not been sent yet, unless that one is CANCELLED
+     */
+    public void submit(String analysisId, AnalysisStatus status) {
+        submit(analysisId, status, UNKNOWN_PROGRESS);
+    }
+
+    /**
+     * @param progress percentage of the genes classified, or {@link AnalysisStatusDto#UNKNOWN_PROGRESS}
+     */
+    public void submit(String analysisId, AnalysisStatus status, int progress) {
+        synchronized (lock) {
+            AnalysisStatusDto previous = pending.get(analysisId);
+            if (previous != null && previous.getStatus() == AnalysisStatus.CANCELLED) {
+                return;
+            }
+            if (progress == UNKNOWN_PROGRESS && previous != null && (previous.getStatus() == status
+                    || (previous.getStatus() == null && status == AnalysisStatus.START_PROCESSING))) {
+                progress = previous.getProgress();
+            }
+            record(new AnalysisStatusDto(analysisId, status, progress, 0));
+        }
+    }
+
+    /**
+     * Queues the progress of a running analysis without its status, so that it never replaces the
+     * status the analysis has in the meantime, e.g. CANCELLED
+     */
+    public void submitProgress(String analysisId, int progress) {
+        synchronized (lock) {
+            AnalysisStatusDto previous = pending.get(analysisId);
+            AnalysisStatus status = (previous != null) ? previous.getStatus() : null;
+            if (status != null && status != AnalysisStatus.START_PROCESSING) {
+                // the analysis has stopped
+                return;
+            }
+            record(new AnalysisStatusDto(analysisId, status, progress, 0));
+        }
+    }
+
+    private void record(AnalysisStatusDto update) {
+        String analysisId = update.getAnalysisId();
+        appendLine(unwritten, update);
+        journaled++;
+        pending.remove(analysisId);
+        pending.put(analysisId, update);
+        if (pending.size() >= batchSize) {
+            lock.notifyAll();
+        }
+    }
+
+    private void writeLoop() {
+        long retryDelay = flushInterval;
+        long nextAttempt = 0;
+        while (true) {
+            String lines;
+            LinkedHashMap<String, AnalysisStatusDto> batch = null;
+            int sent = 0;
+            boolean stopping;
+            synchronized (lock) {
+                if (running && (pending.size() < batchSize || System.currentTimeMillis() < nextAttempt)) {
+                    try {
+                        lock.wait(flushInterval);
+                    } catch (InterruptedException e) {
+                        running = false;
+                    }
+                }
+                lines = unwritten.toString();
+                unwritten.setLength(0);
+                stopping = !running;
+                if (!pending.isEmpty() && (stopping || System.currentTimeMillis() >= nextAttempt)) {
+                    batch = pending;
+                    pending = new LinkedHashMap<>();
+                    // the batch has the latest transition of every analysis journaled so far
+                    sent = journaled;
+                }
+            }
+            // one sync for every transition queued since the previous pass, also while sending is retried
+            appendToJournal(lines);
+            if (batch == null) {
+                if (stopping) {
+                    return;
+                }
+                continue;
+            }
+            try {
+                dropCancelled(batch);
+                databaseService.updateStatuses(batch.values());
+                markSent(sent);
+                retryDelay = flushInterval;
+                nextAttempt = 0;
+                // subscribers read the results once the status is saved
+                batch.values().forEach(update -> analysisEventPublisher.publish(AnalysisEventDto.status(update)));
+            } catch (Exception e) {
+                log.warn("Could not send " + batch.size() + " analysis status updates, retrying: " + e.getMessage());
+                synchronized (lock) {
+                    // transitions submitted in the meantime are newer
+                    for (Map.Entry<String, AnalysisStatusDto> update : batch.entrySet()) {
+                        pending.putIfAbsent(update.getKey(), update.getValue());
+                    }
+                }
+                if (stopping) {
+                    // left in the journal for the next start
+                    return;
+                }
+                retryDelay = Math.min(retryDelay * 2, MAX_RETRY_DELAY_MS);
+                nextAttempt = System.currentTimeMillis() + retryDelay;
+            }
+        }
+    }
+
+    private void appendToJournal(String lines) {
+        if (lines.isEmpty()) {
+            return;
+        }
+        try {
+            write(lines);
+            journal.force(false);
+        } catch (IOException e) {
+            // still sent, but lost if this instance stops first
+            log.warn("Could not journal analysis status updates: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Removes the transitions of the analyses that were cancelled since, the database API has no
+     * conditional update, so a cancellation saved between this read and the update is still overwritten
+     */
+    private void dropCancelled(Map<String, AnalysisStatusDto> batch) {
+        List<String> analysisIds = batch.values().stream()
+                // progress updates leave the saved status as it is
+                .filter(update -> update.getStatus() != null && update.getStatus() != AnalysisStatus.CANCELLED)
+                .map(AnalysisStatusDto::getAnalysisId)
+                .collect(Collectors.toList());
+        if (analysisIds.isEmpty()) {
+            return;
+        }
+        for (AnalysisStatusDto saved : databaseService.getAnalysisStatuses(analysisIds)) {
+            if (AnalysisStatus.CANCELLED.equals(saved.getStatus())) {
+                log.info("Not sending the " + batch.get(saved.getAnalysisId()).getStatus() + " status of cancelled analysis " + saved.getAnalysisId());
+                batch.remove(saved.getAnalysisId());
+            }
+        }
+    }
+
+    private static void appendLine(StringBuilder lines, AnalysisStatusDto update) {
+        if (update.getStatus() == null) {
+            lines.append("P\t").append(update.getAnalysisId()).append('\t').append(update.getProgress()).append('\n');
+            return;
+        }
+        lines.append("U\t").append(update.getAnalysisId())
+                .append('\t').append(update.getStatus().name())
+                .append('\t').append(update.getProgress()).append('\n');
+    }
+
+    /**
+     * @param sent transitions of the journal that have been sent
+     */
+    private void markSent(int sent) throws IOException {
+        synchronized (lock) {
+            if (pending.isEmpty()) {
+                // every journaled update has been sent, the journal starts over
+                journal.truncate(0);
+                journaled = 0;
+            } else {
+                write("A\t" + sent + "\n");
+            }
+        }
+    }
+
+    private void write(String lines) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(lines.getBytes(StandardCharsets.UTF_8));
+        while (buffer.hasRemaining()) {
+            journal.write(buffer);
+        }
+    }
+
+    private static Map<String, AnalysisStatusDto> readJournal(Path journalFile) throws IOException {
+        LinkedHashMap<String, AnalysisStatusDto> notSent = new LinkedHashMap<>();
+        // line of the latest transition of each analysis, counting transitions only
+        Map<String, Integer> latest = new HashMap<>();
+        int transitions = 0;
+        if (!Files.exists(journalFile)) {
+            return notSent;
+        }
+        try (BufferedReader reader = Files.newBufferedReader(journalFile, StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] columns = line.split("\t");
+                if (columns[0].equals("A")) {
+                    try {
+                        // a bare "A" marks every transition above it as sent
+                        int sent = (columns.length == 2) ? Integer.parseInt(columns[1]) : transitions;
+                        notSent.keySet().removeIf(analysisId -> latest.get(analysisId) < sent);
+                    } catch (NumberFormatException e) {
+                        log.warn("Ignoring unreadable status update in journal: " + line);
+                    }
+                } else if (columns[0].equals("P") && columns.length == 3) {
+                    try {
+                        AnalysisStatusDto update = new AnalysisStatusDto(columns[1], null, Integer.parseInt(columns[2]), 0);
+                        notSent.remove(columns[1]);
+                        notSent.put(columns[1], update);
+                        latest.put(columns[1], transitions++);
+                    } catch (NumberFormatException e) {
+                        log.warn("Ignoring unreadable status update in journal: " + line);
+                    }
+                } else if (columns[0].equals("U") && (columns.length == 3 || columns.length == 4)) {
+                    try {
+                        // journals written before the progress was sent have no progress column
+                        int progress = (columns.length == 4) ? Integer.parseInt(columns[3]) : UNKNOWN_PROGRESS;
+                        AnalysisStatusDto update = new AnalysisStatusDto(columns[1], AnalysisStatus.valueOf(columns[2]),
+                                progress, 0);
+                        notSent.remove(columns[1]);
+                        notSent.put(columns[1], update);
+                        latest.put(columns[1], transitions++);
+                    } catch (IllegalArgumentException e) {
+                        log.warn("Ignoring unreadable status update in journal: " + line);
+                    }
+                }
+            }
+        }
+        return notSent;
+    }
+}
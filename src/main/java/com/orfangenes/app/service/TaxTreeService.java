@@ -1,43 +1,74 @@
 package com.orfangenes.app.service;
 
 import com.orfangenes.app.model.BlastResult;
+import com.orfangenes.app.util.LineageIndex;
 
 import lombok.extern.slf4j.Slf4j;
 
 import java.io.IOException;
 import java.io.Serializable;
 import java.nio.charset.Charset;
-import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.stream.Collectors;
-import java.util.stream.Stream;
 
 @Slf4j
 public class TaxTreeService implements Serializable {
 
     private int organismTaxID;
-    private Set<Integer> blastHitsTaxIDs;
+    private String rankedLineageFilePath;
 
-    private Map<Integer, List<String>> rankedLineageWithNames = new HashMap<>();
+    private Map<Integer, List<String>> rankedLineageWithNames = new ConcurrentHashMap<>();
+    // taxonomy IDs already looked up in the ranked lineage file, whether or not they were found
+    private Set<Integer> scannedTaxIDs = ConcurrentHashMap.newKeySet();
     private List<String> inputRankedLineage = new ArrayList<>();
-    private Map<String, List<List<String>>> taxonomyTreeForGenes = new HashMap<>();
 
 
     public TaxTreeService(String rankedLineageFilePath, Set<Integer> blastHitsTaxIDs, int organismTaxID) {
 
-        this.blastHitsTaxIDs = blastHitsTaxIDs;
+        this.rankedLineageFilePath = rankedLineageFilePath;
         this.organismTaxID = organismTaxID;
 
-        // Reading the rankedlineage file line by line and collect records that are interested
-        try (Stream<String> lines = Files.lines(Paths.get(rankedLineageFilePath), Charset.defaultCharset())) {
-            lines.parallel().forEachOrdered(line -> processRankedLineage(line));
+        Set<Integer> taxIDs = new HashSet<>(blastHitsTaxIDs);
+        taxIDs.add(organismTaxID);
+        loadLineages(taxIDs);
+        this.inputRankedLineage = filterRankedLineagesByTaxonomyId(organismTaxID);
+    }
+
+    /**
+     * Loads only the lineage of the input organism. Lineages of BLAST hits are loaded with
+     * {@link #loadLineages(Set)} as the hits become known.
+     */
+    public TaxTreeService(String rankedLineageFilePath, int organismTaxID) {
+        this(rankedLineageFilePath, Collections.emptySet(), organismTaxID);
+    }
+
+    /**
+     * Reads the records of the given taxonomy IDs that have not been looked up yet from the rankedlineage
+     * file, through the index of the file so only their lines are read, see {@link LineageIndex}
+     */
+    public void loadLineages(Set<Integer> taxIDs) {
+        Set<Integer> missingTaxIDs = taxIDs.stream()
+                .filter(taxID -> !scannedTaxIDs.contains(taxID))
+                .collect(Collectors.toSet());
+        if (missingTaxIDs.isEmpty()) {
+            return;
+        }
+        Path rankedLineageFile = Paths.get(rankedLineageFilePath);
+        try {
+            LineageIndex.get(rankedLineageFile)
+                    .readLines(rankedLineageFile, missingTaxIDs, Charset.defaultCharset())
+                    .values()
+                    .forEach(line -> processRankedLineage(line, missingTaxIDs));
         } catch (IOException e) {
             log.error(e.getMessage());
         }
+        scannedTaxIDs.addAll(missingTaxIDs);
     }
 
-    private void processRankedLineage(String lineageFileLine) {
+    private void processRankedLineage(String lineageFileLine, Set<Integer> taxIDs) {
         try {
             // Ignoring last "  |" in file
             String lineageLine = lineageFileLine.substring(0, lineageFileLine.length() - 2);
@@ -53,7 +84,7 @@ public class TaxTreeService implements Serializable {
 
             if (rankedLineageRecord.size() == 10) {
                 int taxonomyId = Integer.parseInt(rankedLineageRecord.get(0));
-                if (this.blastHitsTaxIDs.contains(taxonomyId)) {
+                if (taxIDs.contains(taxonomyId)) {
                     this.rankedLineageWithNames.put(taxonomyId, rankedLineageRecord);
                 }
             } else {
@@ -66,8 +97,8 @@ public class TaxTreeService implements Serializable {
 
     Map<String, List<List<String>>> buildRankedLineageList(List<BlastResult> blastResults) {
 
+        Map<String, List<List<String>>> taxonomyTreeForGenes = new HashMap<>();
         try {
-            this.inputRankedLineage = filterRankedLineagesByTaxonomyId(this.organismTaxID);
             // travel though each gene
             for (BlastResult blastResult : blastResults) {
                 String geneId = blastResult.getQueryid();
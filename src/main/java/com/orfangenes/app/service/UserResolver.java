@@ -0,0 +1,178 @@
+package com.orfangenes.app.service;
+
+import com.github.benmanes.caffeine.cache.AsyncCache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.Expiry;
+import com.orfangenes.app.model.User;
+import io.micrometer.core.instrument.Metrics;
+import io.micrometer.core.instrument.binder.cache.CaffeineCacheMetrics;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PostConstruct;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+import static com.orfangenes.app.util.Constants.*;
+
+/**
+ * Users of the submissions by email, cached so that a submission does not look its user up in the
+ * database API every time. Emails without a user are cached for a shorter time. The cache holds the
+ * future user of each email: the first caller adds it and makes the lookup or save on its own thread,
+ * outside any lock of the cache, and concurrent callers of the same email wait for that future instead
+ * of making their own.
+ */
+@Slf4j
+@Service
+public class UserResolver {
+
+    @Autowired
+    DatabaseService databaseService;
+
+    @Value("${user-cache.maximum-size:10000}")
+    private long maximumSize;
+
+    @Value("${user-cache.ttl-seconds:600}")
+    private long ttlSeconds;
+
+    @Value("${user-cache.negative-ttl-seconds:30}")
+    private long negativeTtlSeconds;
+
+    private AsyncCache<String, Optional<User>> cache;
+
+    @PostConstruct
+    public void init() {
+        long ttlNanos = TimeUnit.SECONDS.toNanos(ttlSeconds);
+        long negativeTtlNanos = TimeUnit.SECONDS.toNanos(negativeTtlSeconds);
+        cache = Caffeine.newBuilder()
+                .maximumSize(maximumSize)
+                .expireAfter(new Expiry<String, Optional<User>>() {
+                    @Override
+                    public long expireAfterCreate(String email, Optional<User> user, long currentTime) {
+                        return user.isPresent() ? ttlNanos : negativeTtlNanos;
+                    }
+
+                    @Override
+                    public long expireAfterUpdate(String email, Optional<User> user, long currentTime, long currentDuration) {
+                        return expireAfterCreate(email, user, currentTime);
+                    }
+
+                    @Override
+                    public long expireAfterRead(String email, Optional<User> user, long currentTime, long currentDuration) {
+                        return currentDuration;
+                    }
+                })
+                .recordStats()
+                .buildAsync();
+        CaffeineCacheMetrics.monitor(Metrics.globalRegistry, cache.synchronous(), "users");
+
+        // the default user of the anonymous submissions
+        try {
+            resolve(EMAIL, FIRST_NAME, LAST_NAME);
+        } catch (IOException | RuntimeException e) {
+            log.warn("Could not resolve the default user, it will be resolved with the first submission: " + e.getMessage());
+        }
+    }
+
+    /**
+     * @return the user with the email, or empty when there is none
+     */
+    public Optional<User> find(String email) throws IOException {
+        return join(lookupOnce(email));
+    }
+
+    /**
+     * @return the user with the email, saved with the given names when there is none
+     */
+    public User resolve(String email, String firstName, String lastName) throws IOException {
+        while (true) {
+            CompletableFuture<Optional<User>> user = lookupOnce(email);
+            Optional<User> found = join(user);
+            if (found.isPresent()) {
+                return found.get();
+            }
+            // one save of the email at a time, the others get its user
+            CompletableFuture<Optional<User>> saved = new CompletableFuture<>();
+            CompletableFuture<Optional<User>> inFlight = cache.asMap().compute(email,
+                    (key, current) -> (current == null || current == user) ? saved : current);
+            if (inFlight == saved) {
+                complete(email, saved, () -> Optional.of(save(email, firstName, lastName)));
+            }
+            found = join(inFlight);
+            if (found.isPresent()) {
+                return found.get();
+            }
+            // a lookup made before the user was saved, looked up again
+        }
+    }
+
+    /**
+     * Forgets the email, e.g. after its user was saved with an analysis
+     */
+    public void invalidate(String email) {
+        cache.synchronous().invalidate(email);
+    }
+
+    /**
+     * Future user of the email, looked up on this thread unless a lookup or save is cached or in flight
+     */
+    private CompletableFuture<Optional<User>> lookupOnce(String email) {
+        CompletableFuture<Optional<User>> lookup = new CompletableFuture<>();
+        CompletableFuture<Optional<User>> user = cache.asMap().putIfAbsent(email, lookup);
+        if (user != null) {
+            return user;
+        }
+        complete(email, lookup, () -> lookup(email));
+        return lookup;
+    }
+
+    private void complete(String email, CompletableFuture<Optional<User>> future, Supplier<Optional<User>> call) {
+        try {
+            future.complete(call.get());
+            // put again once done, so that its TTL is that of its user, not that of a future in flight
+            cache.asMap().replace(email, future, future);
+        } catch (RuntimeException e) {
+            // not cached, the next caller tries again
+            cache.asMap().remove(email, future);
+            future.completeExceptionally(e);
+        }
+    }
+
+    private static Optional<User> join(CompletableFuture<Optional<User>> user) throws IOException {
+        try {
+            return user.join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof UncheckedIOException) {
+                throw ((UncheckedIOException) e.getCause()).getCause();
+            }
+            throw e;
+        }
+    }
+
+    private Optional<User> lookup(String email) {
+        try {
+            return Optional.ofNullable(databaseService.getUserByEmail(email));
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private User save(String email, String firstName, String lastName) {
+        User user = new User();
+        user.setFirstName(firstName);
+        user.setLastName(lastName);
+        user.setEmail(email);
+        try {
+            return databaseService.saveUser(user);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+}
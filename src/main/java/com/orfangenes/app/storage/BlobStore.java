@@ -0,0 +1,44 @@
+package com.orfangenes.app.storage;
+
+import java.io.IOException;
+import java.nio.file.Path;
+
+/**
+ * Store of analysis inputs and outputs shared by the web tier and the workers. Inputs are addressed by
+ * the SHA-256 of their content, so the same input is stored once and a reference can be checked against
+ * the content read back. Outputs served by the web tier are stored by name, see
+ * {@link com.orfangenes.app.service.AnalysisOutputs}, and are not expired.
+ * <p>
+ * The gene chunks of fanned-out analyses are not stored here, fan-out needs a data.outputdir shared by
+ * the workers.
+ */
+public interface BlobStore {
+
+    /**
+     * Stores the file unless a blob with the same content exists
+     *
+     * @return the reference of the blob, "sha256:" and the hex digest of the content
+     */
+    String put(Path file) throws IOException;
+
+    /**
+     * Writes the content of the blob to the file
+     *
+     * @throws IOException when the blob does not exist or its content does not match the reference
+     */
+    void get(String reference, Path file) throws IOException;
+
+    /**
+     * Stores the file under the name, replacing the blob stored under it
+     *
+     * @param name e.g. "analysisId/fileName"
+     */
+    void putNamed(String name, Path file) throws IOException;
+
+    /**
+     * Writes the content of the blob stored under the name to the file
+     *
+     * @return false when there is no blob under the name
+     */
+    boolean getNamed(String name, Path file) throws IOException;
+}
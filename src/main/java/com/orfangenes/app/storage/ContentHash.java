@@ -0,0 +1,86 @@
+package com.orfangenes.app.storage;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * SHA-256 references of the blobs
+ */
+public class ContentHash {
+
+    public static final String PREFIX = "sha256:";
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    public static String sha256Hex(Path file) throws IOException {
+        MessageDigest digest = newDigest();
+        try (InputStream in = new DigestInputStream(Files.newInputStream(file), digest)) {
+            byte[] buffer = new byte[64 * 1024];
+            while (in.read(buffer) != -1) {
+                // digested while reading
+            }
+        }
+        return toHex(digest.digest());
+    }
+
+    public static String sha256Hex(String text) {
+        return toHex(newDigest().digest(text.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    /**
+     * Copies the stream to the file and checks that the content matches the reference
+     */
+    static void copyVerified(InputStream in, Path file, String reference) throws IOException {
+        MessageDigest digest = newDigest();
+        Path tmpFile = file.resolveSibling(file.getFileName() + ".tmp");
+        try (InputStream digested = new DigestInputStream(in, digest);
+             OutputStream out = Files.newOutputStream(tmpFile)) {
+            byte[] buffer = new byte[64 * 1024];
+            int read;
+            while ((read = digested.read(buffer)) != -1) {
+                out.write(buffer, 0, read);
+            }
+        }
+        String hex = toHex(digest.digest());
+        if (!hex.equals(toHex(reference))) {
+            Files.deleteIfExists(tmpFile);
+            throw new IOException("Content of blob " + reference + " does not match, got " + hex);
+        }
+        Files.move(tmpFile, file, StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    /**
+     * @return the hex digest of the reference
+     */
+    static String toHex(String reference) {
+        if (!reference.startsWith(PREFIX) || reference.length() != PREFIX.length() + 64
+                || !reference.substring(PREFIX.length()).matches("[0-9a-f]+")) {
+            throw new IllegalArgumentException("Not a blob reference: " + reference);
+        }
+        return reference.substring(PREFIX.length());
+    }
+
+    static String toHex(byte[] bytes) {
+        char[] chars = new char[bytes.length * 2];
+        for (int i = 0; i < bytes.length; i++) {
+            chars[i * 2] = HEX[(bytes[i] >> 4) & 0xf];
+            chars[i * 2 + 1] = HEX[bytes[i] & 0xf];
+        }
+        return new String(chars);
+    }
+
+    static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
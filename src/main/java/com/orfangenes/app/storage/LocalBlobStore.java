@@ -0,0 +1,125 @@
+package com.orfangenes.app.storage;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
+
+/**
+ * Blobs in a local (or mounted) directory, at the first two hex digits of the digest and the digest.
+ * The modification time of a blob is the last time its content was put, so blobs not submitted again
+ * for the retention period can be deleted, see {@link #deleteOlderThan(long)}. Named blobs are kept
+ * under "named", at their name.
+ */
+@Slf4j
+public class LocalBlobStore implements BlobStore {
+
+    private static final String NAMED_DIR = "named";
+
+    private final Path directory;
+
+    public LocalBlobStore(Path directory) throws IOException {
+        this.directory = directory;
+        Files.createDirectories(directory);
+    }
+
+    @Override
+    public String put(Path file) throws IOException {
+        String hex = ContentHash.sha256Hex(file);
+        Path blobFile = getBlobFile(hex);
+        if (Files.exists(blobFile)) {
+            try {
+                // the retention of the blob starts over
+                Files.setLastModifiedTime(blobFile, FileTime.fromMillis(System.currentTimeMillis()));
+                return ContentHash.PREFIX + hex;
+            } catch (NoSuchFileException e) {
+                // deleted as expired in the meantime, stored again
+            }
+        }
+        Files.createDirectories(blobFile.getParent());
+        Path tmpFile = blobFile.resolveSibling(hex + "." + Thread.currentThread().getId() + ".tmp");
+        Files.copy(file, tmpFile, StandardCopyOption.REPLACE_EXISTING);
+        Files.move(tmpFile, blobFile, StandardCopyOption.REPLACE_EXISTING);
+        return ContentHash.PREFIX + hex;
+    }
+
+    @Override
+    public void get(String reference, Path file) throws IOException {
+        Path blobFile = getBlobFile(ContentHash.toHex(reference));
+        try (InputStream in = Files.newInputStream(blobFile)) {
+            ContentHash.copyVerified(in, file, reference);
+        }
+    }
+
+    @Override
+    public void putNamed(String name, Path file) throws IOException {
+        Path blobFile = getNamedFile(name);
+        Files.createDirectories(blobFile.getParent());
+        Path tmpFile = blobFile.resolveSibling(blobFile.getFileName() + "." + Thread.currentThread().getId() + ".tmp");
+        Files.copy(file, tmpFile, StandardCopyOption.REPLACE_EXISTING);
+        Files.move(tmpFile, blobFile, StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    @Override
+    public boolean getNamed(String name, Path file) throws IOException {
+        Path blobFile = getNamedFile(name);
+        if (!Files.exists(blobFile)) {
+            return false;
+        }
+        Path tmpFile = file.resolveSibling(file.getFileName() + "." + Thread.currentThread().getId() + ".tmp");
+        try {
+            Files.copy(blobFile, tmpFile, StandardCopyOption.REPLACE_EXISTING);
+        } catch (NoSuchFileException e) {
+            return false;
+        }
+        Files.move(tmpFile, file, StandardCopyOption.REPLACE_EXISTING);
+        return true;
+    }
+
+    /**
+     * Deletes the blobs not put for the given time, and the temporary files left by a put that failed
+     *
+     * @return the number of files deleted
+     */
+    public int deleteOlderThan(long maxAgeMs) throws IOException {
+        long cutoff = System.currentTimeMillis() - maxAgeMs;
+        int deleted = 0;
+        // named blobs are not expired
+        try (DirectoryStream<Path> prefixes = Files.newDirectoryStream(directory,
+                path -> Files.isDirectory(path) && !NAMED_DIR.equals(path.getFileName().toString()))) {
+            for (Path prefix : prefixes) {
+                try (DirectoryStream<Path> blobFiles = Files.newDirectoryStream(prefix)) {
+                    for (Path blobFile : blobFiles) {
+                        try {
+                            if (Files.getLastModifiedTime(blobFile).toMillis() < cutoff && Files.deleteIfExists(blobFile)) {
+                                deleted++;
+                            }
+                        } catch (NoSuchFileException e) {
+                            // deleted by another instance
+                        }
+                    }
+                }
+            }
+        }
+        return deleted;
+    }
+
+    private Path getBlobFile(String hex) {
+        return directory.resolve(hex.substring(0, 2)).resolve(hex);
+    }
+
+    private Path getNamedFile(String name) throws IOException {
+        Path namedDir = directory.resolve(NAMED_DIR).normalize();
+        Path blobFile = namedDir.resolve(name).normalize();
+        if (!blobFile.startsWith(namedDir) || blobFile.equals(namedDir)) {
+            throw new IOException("Invalid blob name: " + name);
+        }
+        return blobFile;
+    }
+}
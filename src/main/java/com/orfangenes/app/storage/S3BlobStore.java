@@ -0,0 +1,191 @@
+package com.orfangenes.app.storage;
+
+import lombok.extern.slf4j.Slf4j;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.GeneralSecurityException;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.TimeZone;
+
+/**
+ * Blobs in a bucket of an S3-compatible object store (e.g. MinIO), with path-style URLs and
+ * requests signed with AWS Signature Version 4. Objects are named by the hex digest of the content.
+ * Named blobs are kept in a bucket of their own, which is not expired.
+ * <p>
+ * Blobs are not deleted by the application. The input bucket needs a lifecycle rule that expires objects
+ * after blob-store.retention-days, e.g. "mc ilm rule add --expire-days 30 minio/orfanid-inputs" on
+ * MinIO. An existing blob is not rewritten when it is put again, so the rule counts from the first
+ * submission of the content, and the retention must leave room for an analysis queued again near its end.
+ */
+@Slf4j
+public class S3BlobStore implements BlobStore {
+
+    private static final String ALGORITHM = "AWS4-HMAC-SHA256";
+    private static final String SIGNED_HEADERS = "host;x-amz-content-sha256;x-amz-date";
+    // SHA-256 of an empty body
+    private static final String EMPTY_SHA256 = "e3b0c44298fc1c149afbf4c8996fb92427ae41e4649b934ca495991b7852b855";
+
+    private final String endpoint;
+    private final String bucket;
+    private final String namedBucket;
+    private final String region;
+    private final String accessKey;
+    private final String secretKey;
+    private final int connectTimeout;
+    private final int readTimeout;
+
+    public S3BlobStore(String endpoint, String bucket, String namedBucket, String region, String accessKey,
+                       String secretKey, int connectTimeout, int readTimeout) {
+        this.endpoint = endpoint.endsWith("/") ? endpoint.substring(0, endpoint.length() - 1) : endpoint;
+        this.bucket = bucket;
+        this.namedBucket = namedBucket;
+        this.region = region;
+        this.accessKey = accessKey;
+        this.secretKey = secretKey;
+        this.connectTimeout = connectTimeout;
+        this.readTimeout = readTimeout;
+    }
+
+    @Override
+    public String put(Path file) throws IOException {
+        String hex = ContentHash.sha256Hex(file);
+        // the same content is uploaded once
+        HttpURLConnection head = open("HEAD", bucket, hex, EMPTY_SHA256);
+        int headStatus = head.getResponseCode();
+        head.disconnect();
+        if (headStatus == HttpURLConnection.HTTP_OK) {
+            return ContentHash.PREFIX + hex;
+        }
+
+        // the digest of the content is the signed payload hash
+        HttpURLConnection put = open("PUT", bucket, hex, hex);
+        put.setDoOutput(true);
+        put.setFixedLengthStreamingMode(Files.size(file));
+        try (OutputStream out = put.getOutputStream()) {
+            Files.copy(file, out);
+        }
+        int status = put.getResponseCode();
+        put.disconnect();
+        if (status / 100 != 2) {
+            throw new IOException("Could not store blob " + hex + " in " + bucket + ": HTTP " + status);
+        }
+        return ContentHash.PREFIX + hex;
+    }
+
+    @Override
+    public void get(String reference, Path file) throws IOException {
+        String hex = ContentHash.toHex(reference);
+        HttpURLConnection get = open("GET", bucket, hex, EMPTY_SHA256);
+        try {
+            int status = get.getResponseCode();
+            if (status != HttpURLConnection.HTTP_OK) {
+                throw new IOException("Could not read blob " + hex + " from " + bucket + ": HTTP " + status);
+            }
+            try (InputStream in = get.getInputStream()) {
+                ContentHash.copyVerified(in, file, reference);
+            }
+        } finally {
+            get.disconnect();
+        }
+    }
+
+    @Override
+    public void putNamed(String name, Path file) throws IOException {
+        HttpURLConnection put = open("PUT", namedBucket, name, ContentHash.sha256Hex(file));
+        put.setDoOutput(true);
+        put.setFixedLengthStreamingMode(Files.size(file));
+        try (OutputStream out = put.getOutputStream()) {
+            Files.copy(file, out);
+        }
+        int status = put.getResponseCode();
+        put.disconnect();
+        if (status / 100 != 2) {
+            throw new IOException("Could not store blob " + name + " in " + namedBucket + ": HTTP " + status);
+        }
+    }
+
+    @Override
+    public boolean getNamed(String name, Path file) throws IOException {
+        HttpURLConnection get = open("GET", namedBucket, name, EMPTY_SHA256);
+        try {
+            int status = get.getResponseCode();
+            if (status == HttpURLConnection.HTTP_NOT_FOUND) {
+                return false;
+            }
+            if (status != HttpURLConnection.HTTP_OK) {
+                throw new IOException("Could not read blob " + name + " from " + namedBucket + ": HTTP " + status);
+            }
+            Path tmpFile = file.resolveSibling(file.getFileName() + "." + Thread.currentThread().getId() + ".tmp");
+            try (InputStream in = get.getInputStream()) {
+                Files.copy(in, tmpFile, StandardCopyOption.REPLACE_EXISTING);
+            }
+            Files.move(tmpFile, file, StandardCopyOption.REPLACE_EXISTING);
+            return true;
+        } finally {
+            get.disconnect();
+        }
+    }
+
+    private HttpURLConnection open(String method, String bucket, String objectKey, String payloadHash) throws IOException {
+        String path = "/" + bucket + "/" + objectKey;
+        URL url = new URL(endpoint + path);
+        String host = (url.getPort() == -1) ? url.getHost() : url.getHost() + ":" + url.getPort();
+
+        Date now = new Date();
+        String amzDate = format("yyyyMMdd'T'HHmmss'Z'", now);
+        String dateStamp = format("yyyyMMdd", now);
+        String scope = dateStamp + "/" + region + "/s3/aws4_request";
+        String canonicalRequest = method + "\n" + path + "\n\n"
+                + "host:" + host + "\n"
+                + "x-amz-content-sha256:" + payloadHash + "\n"
+                + "x-amz-date:" + amzDate + "\n\n"
+                + SIGNED_HEADERS + "\n" + payloadHash;
+        String stringToSign = ALGORITHM + "\n" + amzDate + "\n" + scope + "\n"
+                + ContentHash.toHex(ContentHash.newDigest().digest(canonicalRequest.getBytes(StandardCharsets.UTF_8)));
+        String signature = ContentHash.toHex(hmac(signingKey(dateStamp), stringToSign));
+
+        HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+        connection.setRequestMethod(method);
+        connection.setConnectTimeout(connectTimeout);
+        connection.setReadTimeout(readTimeout);
+        connection.setRequestProperty("x-amz-content-sha256", payloadHash);
+        connection.setRequestProperty("x-amz-date", amzDate);
+        connection.setRequestProperty("Authorization", ALGORITHM + " Credential=" + accessKey + "/" + scope
+                + ", SignedHeaders=" + SIGNED_HEADERS + ", Signature=" + signature);
+        return connection;
+    }
+
+    private byte[] signingKey(String dateStamp) {
+        byte[] key = hmac(("AWS4" + secretKey).getBytes(StandardCharsets.UTF_8), dateStamp);
+        key = hmac(key, region);
+        key = hmac(key, "s3");
+        return hmac(key, "aws4_request");
+    }
+
+    private static byte[] hmac(byte[] key, String data) {
+        try {
+            Mac mac = Mac.getInstance("HmacSHA256");
+            mac.init(new SecretKeySpec(key, "HmacSHA256"));
+            return mac.doFinal(data.getBytes(StandardCharsets.UTF_8));
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static String format(String pattern, Date date) {
+        SimpleDateFormat format = new SimpleDateFormat(pattern);
+        format.setTimeZone(TimeZone.getTimeZone("UTC"));
+        return format.format(date);
+    }
+}
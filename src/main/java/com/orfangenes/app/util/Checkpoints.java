@@ -0,0 +1,106 @@
+package com.orfangenes.app.util;
+
+import com.orfangenes.app.storage.ContentHash;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.EnumSet;
+import java.util.Set;
+
+/**
+ * Markers of the pipeline stages completed in an analysis (or chunk) directory, so that an analysis
+ * delivered again after a worker stopped resumes at its first incomplete stage. The marker of a stage
+ * lists the SHA-256 of the files the stage produced, and the stage only counts as done while these files
+ * are unchanged and all the stages before it are done. Completing a stage clears the stages after it.
+ * <p>
+ * Markers are kept in the checkpoints directory, one file per stage with a "sha256 TAB file" line per file.
+ */
+@Slf4j
+public class Checkpoints {
+
+    public enum Stage {INPUT_STAGED, BLAST_DONE, HITS_PARSED, CLASSIFIED, PERSISTED}
+
+    private static final String CHECKPOINTS_DIR = "checkpoints";
+
+    private final Path dir;
+    private final Path checkpointsDir;
+    // stages verified or completed by this instance, so large files are only hashed once
+    private final Set<Stage> verified = EnumSet.noneOf(Stage.class);
+
+    public Checkpoints(Path dir) {
+        this.dir = dir;
+        this.checkpointsDir = dir.resolve(CHECKPOINTS_DIR);
+    }
+
+    /**
+     * @return whether the stage and the stages before it are done, with their files unchanged
+     */
+    public boolean isDone(Stage stage) {
+        for (Stage previous : Stage.values()) {
+            if (previous.compareTo(stage) > 0) {
+                break;
+            }
+            if (!verified.contains(previous)) {
+                if (!verify(previous)) {
+                    return false;
+                }
+                verified.add(previous);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Records the stage as done with the checksums of its files, which must be in the directory
+     */
+    public void complete(Stage stage, Path... files) throws IOException {
+        StringBuilder lines = new StringBuilder();
+        for (Path file : files) {
+            lines.append(ContentHash.sha256Hex(file)).append('\t').append(dir.relativize(file)).append('\n');
+        }
+        // later stages were built on what this stage replaces
+        for (Stage next : Stage.values()) {
+            if (next.compareTo(stage) > 0) {
+                Files.deleteIfExists(getMarker(next));
+                verified.remove(next);
+            }
+        }
+        Files.createDirectories(checkpointsDir);
+        Path marker = getMarker(stage);
+        Path tmpFile = marker.resolveSibling(marker.getFileName() + ".tmp");
+        Files.write(tmpFile, lines.toString().getBytes(StandardCharsets.UTF_8));
+        Files.move(tmpFile, marker, StandardCopyOption.REPLACE_EXISTING);
+        verified.add(stage);
+    }
+
+    private boolean verify(Stage stage) {
+        Path marker = getMarker(stage);
+        if (!Files.exists(marker)) {
+            return false;
+        }
+        try (BufferedReader reader = Files.newBufferedReader(marker, StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] columns = line.split("\t", 2);
+                Path file = dir.resolve(columns[1]);
+                if (!Files.exists(file) || !columns[0].equals(ContentHash.sha256Hex(file))) {
+                    log.info("Checkpoint " + stage + " of " + dir + " is out of date: " + columns[1] + " changed");
+                    return false;
+                }
+            }
+        } catch (IOException | ArrayIndexOutOfBoundsException e) {
+            log.warn("Could not read checkpoint " + marker + ": " + e.getMessage());
+            return false;
+        }
+        return true;
+    }
+
+    private Path getMarker(Stage stage) {
+        return checkpointsDir.resolve(stage.name().toLowerCase());
+    }
+}
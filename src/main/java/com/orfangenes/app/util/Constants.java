@@ -52,6 +52,15 @@ public class Constants {
 
     // output files
     public static final String BLAST_RESULTS_FILE = "blastResults.bl";
+    public static final String BLAST_RESULTS_INDEX_FILE = "blastResults.idx";
+    public static final String BLAST_LOG_FILE = "blast.log";
+    public static final String BLAST_TREES_FILE = "blastTrees.tsv";
+    public static final String BLAST_TREES_INDEX_FILE = "blastTrees.idx";
+    public static final String BLAST_TREES_COMPACT_FILE = "blastTreesCompact.tsv";
+    public static final String BLAST_TREES_COMPACT_INDEX_FILE = "blastTreesCompact.idx";
+    public static final String BLAST_TREE_NAMES_FILE = "blastTreeNames.json";
+    public static final String BLAST_TREES_COMPACT_FORMAT = "compact";
+    public static final String CLASSIFICATION_FILE = "classification.tsv";
     public static final String FILE_OUTPUT_ORFAN_GENES = "ORFanGenes.json";
     public static final String FILE_OUTPUT_BLAST_RESULTS = "blastresults.json";
     public static final String FILE_OUTPUT_ORFAN_GENES_SUMMARY = "ORFanGenesSummary.json";
@@ -67,6 +76,7 @@ public class Constants {
     // file extensions
     public static final String FASTA_EXT = ".fasta";
     public static final String BLAST_EXT = ".bl";
+    public static final String GZIP_EXT = ".gz";
 
     // Misc
 
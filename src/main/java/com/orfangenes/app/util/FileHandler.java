@@ -1,15 +1,21 @@
 package com.orfangenes.app.util;
 
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
 import com.orfangenes.app.model.InputSequence;
 import lombok.extern.slf4j.Slf4j;
 import org.json.simple.JSONArray;
-import org.json.simple.JSONObject;
 import org.json.simple.parser.JSONParser;
 import org.json.simple.parser.ParseException;
 
 import java.io.*;
 import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.zip.GZIPOutputStream;
 
 import static com.orfangenes.app.util.Constants.*;
 
@@ -19,12 +25,26 @@ import static com.orfangenes.app.util.Constants.*;
 @Slf4j
 public class FileHandler {
 
+    private static final ObjectMapper JSON_MAPPER = Utils.getJacksonObjectMapper();
+
+    /**
+     * @param outputDir data.outputdir, with or without a trailing separator
+     */
+    public static String getAnalysisDir(String outputDir, String analysisId) {
+        return (outputDir.endsWith("/") ? outputDir : outputDir + File.separator) + analysisId;
+    }
+
     public static void createResultsOutputDir(String outputPath) {
         File file = new File(outputPath);
         file.mkdir();
     }
 
-    public static void saveInputSequence(String outputPath, InputSequence sequence) {
+    /**
+     * Writes the input FASTA file, fetching the sequence of the accession first when there is none
+     *
+     * @throws IOException when the sequence of the accession is not found or the file cannot be written
+     */
+    public static void saveInputSequence(String outputPath, InputSequence sequence) throws IOException {
         String genesequence = sequence.getSequence();
 
         if (genesequence == null || genesequence.equals("")) {
@@ -34,22 +54,32 @@ public class FileHandler {
                 genesequence = AccessionSearch.fetchSequenceByAccession(accessionType, accession);
                 sequence.setSequence(genesequence);
             } catch (Exception e) {
-                log.error("Gene sequence not found from provided accession", e.getMessage());
+                throw new IOException("Gene sequence not found from provided accession " + accession + ": " + e.getMessage(), e);
+            }
+            if (genesequence == null || genesequence.trim().isEmpty()) {
+                throw new IOException("Gene sequence not found from provided accession " + accession);
             }
         }
 
-        try {
-            String inputFilePath = outputPath + File.separator + INPUT_FASTA;
-            FileOutputStream fileOutputStream = new FileOutputStream(inputFilePath);
+        String inputFilePath = outputPath + File.separator + INPUT_FASTA;
+        try (FileOutputStream fileOutputStream = new FileOutputStream(inputFilePath)) {
             fileOutputStream.write(genesequence.getBytes());
-            fileOutputStream.close();
-        } catch (FileNotFoundException e) {
-            log.error("File not found: " + e.getMessage());
-        } catch (IOException e) {
-            log.error("IO Error: " + e.getMessage());
         }
     }
 
+    /**
+     * Writes a gzip copy of the file next to it (file name + .gz) so that downloads can be served
+     * compressed without compressing on every request.
+     */
+    public static void compressFile(Path file) throws IOException {
+        Path compressedFile = Paths.get(file.toString() + GZIP_EXT);
+        Path tmpFile = Paths.get(compressedFile.toString() + ".tmp");
+        try (OutputStream out = new GZIPOutputStream(new BufferedOutputStream(Files.newOutputStream(tmpFile)), 64 * 1024)) {
+            Files.copy(file, out);
+        }
+        Files.move(tmpFile, compressedFile, StandardCopyOption.REPLACE_EXISTING);
+    }
+
     public static JSONArray getArrayFromFile(String filePath) {
         try {
             String content = new String(Files.readAllBytes(Paths.get(filePath)));
@@ -105,22 +135,25 @@ public class FileHandler {
 //        }
 //    }
 //
+    /**
+     * Finds the tree of the gene in the trees of an analysis, reading one gene's tree at a time
+     */
     public static String blastToJSON(String blastResults, String geneID) {
-        JSONParser parser = new JSONParser();
-        try {
-            Object obj = parser.parse(blastResults);
-            JSONArray results = (JSONArray) obj;
-            for (Object singleResult : results) {
-                if (singleResult instanceof JSONObject) {
-                    JSONObject result = (JSONObject) singleResult;
-                    String id = (String) result.get("id");
-                    if (id.equals(geneID)) {
-                        return result.toString();
-                    }
+        if (blastResults == null) {
+            return null;
+        }
+        try (JsonParser parser = JSON_MAPPER.getFactory().createParser(blastResults)) {
+            if (parser.nextToken() != JsonToken.START_ARRAY) {
+                return null;
+            }
+            while (parser.nextToken() == JsonToken.START_OBJECT) {
+                JsonNode result = parser.readValueAsTree();
+                if (geneID.equals(result.path("id").asText())) {
+                    return result.toString();
                 }
             }
             return null;
-        } catch (ParseException e) {
+        } catch (IOException e) {
             log.error("Blast results cannot be interpreted : " + e.getMessage());
         }
         return null;
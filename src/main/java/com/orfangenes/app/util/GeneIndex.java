@@ -0,0 +1,202 @@
+package com.orfangenes.app.util;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Byte offsets of the rows belonging to each gene in a line oriented file whose rows are
+ * grouped by the gene id in the first tab separated column (e.g. BLAST outfmt 6 results).
+ * Each gene maps to one or more {offset, length} ranges.
+ */
+@Slf4j
+public class GeneIndex {
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final Map<String, long[]> ranges;
+
+    private GeneIndex(Map<String, long[]> ranges) {
+        this.ranges = ranges;
+    }
+
+    /**
+     * Returns the index of the data file, reading it from the index file when that is up to date,
+     * otherwise scanning the data file and saving the index for next time.
+     */
+    public static GeneIndex load(Path dataFile, Path indexFile) throws IOException {
+        if (Files.exists(indexFile)
+                && Files.getLastModifiedTime(indexFile).compareTo(Files.getLastModifiedTime(dataFile)) >= 0) {
+            return read(indexFile);
+        }
+        GeneIndex index = build(dataFile);
+        try {
+            index.write(indexFile);
+        } catch (IOException e) {
+            log.warn("Could not save gene index " + indexFile + ": " + e.getMessage());
+        }
+        return index;
+    }
+
+    public static GeneIndex build(Path dataFile) throws IOException {
+        Map<String, long[]> ranges = new LinkedHashMap<>();
+        ByteArrayOutputStream key = new ByteArrayOutputStream();
+        String currentGene = null;
+        long groupStart = 0;
+        long position = 0;
+        boolean atLineStart = true;
+        boolean readingKey = false;
+
+        try (InputStream in = new BufferedInputStream(Files.newInputStream(dataFile), BUFFER_SIZE)) {
+            byte[] buffer = new byte[BUFFER_SIZE];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                for (int i = 0; i < read; i++, position++) {
+                    byte b = buffer[i];
+                    if (atLineStart) {
+                        atLineStart = false;
+                        readingKey = true;
+                        key.reset();
+                    }
+                    if (readingKey) {
+                        if (b == '\t' || b == '\n') {
+                            readingKey = false;
+                            String gene = new String(key.toByteArray(), StandardCharsets.UTF_8).trim();
+                            long lineStart = position - key.size();
+                            if (!gene.isEmpty() && !gene.equals(currentGene)) {
+                                if (currentGene != null) {
+                                    addRange(ranges, currentGene, groupStart, lineStart - groupStart);
+                                }
+                                currentGene = gene;
+                                groupStart = lineStart;
+                            }
+                        } else {
+                            key.write(b);
+                        }
+                    }
+                    if (b == '\n') {
+                        atLineStart = true;
+                    }
+                }
+            }
+        }
+        if (readingKey && key.size() > 0) {
+            // last line without a tab or a line break
+            String gene = new String(key.toByteArray(), StandardCharsets.UTF_8).trim();
+            long lineStart = position - key.size();
+            if (!gene.isEmpty() && !gene.equals(currentGene)) {
+                if (currentGene != null) {
+                    addRange(ranges, currentGene, groupStart, lineStart - groupStart);
+                }
+                currentGene = gene;
+                groupStart = lineStart;
+            }
+        }
+        if (currentGene != null) {
+            addRange(ranges, currentGene, groupStart, position - groupStart);
+        }
+        return new GeneIndex(ranges);
+    }
+
+    private static GeneIndex read(Path indexFile) throws IOException {
+        Map<String, long[]> ranges = new LinkedHashMap<>();
+        try (BufferedReader reader = Files.newBufferedReader(indexFile, StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] columns = line.split("\t");
+                if (columns.length == 3) {
+                    addRange(ranges, columns[0], Long.parseLong(columns[1]), Long.parseLong(columns[2]));
+                }
+            }
+        }
+        return new GeneIndex(ranges);
+    }
+
+    private static void addRange(Map<String, long[]> ranges, String gene, long offset, long length) {
+        long[] existing = ranges.get(gene);
+        if (existing == null) {
+            ranges.put(gene, new long[]{offset, length});
+        } else {
+            log.warn("Rows of gene " + gene + " are not contiguous");
+            long[] extended = Arrays.copyOf(existing, existing.length + 2);
+            extended[existing.length] = offset;
+            extended[existing.length + 1] = length;
+            ranges.put(gene, extended);
+        }
+    }
+
+    public void write(Path indexFile) throws IOException {
+        Path tmpFile = indexFile.resolveSibling(indexFile.getFileName() + ".tmp");
+        try (BufferedWriter writer = Files.newBufferedWriter(tmpFile, StandardCharsets.UTF_8)) {
+            for (Map.Entry<String, long[]> entry : ranges.entrySet()) {
+                long[] geneRanges = entry.getValue();
+                for (int i = 0; i < geneRanges.length; i += 2) {
+                    writer.write(entry.getKey() + "\t" + geneRanges[i] + "\t" + geneRanges[i + 1]);
+                    writer.newLine();
+                }
+            }
+        }
+        Files.move(tmpFile, indexFile, StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    /**
+     * @return {offset, length} pairs of the gene's rows, or null if the gene has no rows
+     */
+    public long[] getRanges(String geneId) {
+        return ranges.get(geneId);
+    }
+
+    /**
+     * Reads the rows of the gene from the indexed data file
+     *
+     * @return the rows as they are in the file, or null if the gene has no rows
+     */
+    public byte[] readRows(Path dataFile, String geneId) throws IOException {
+        long[] geneRanges = ranges.get(geneId);
+        if (geneRanges == null) {
+            return null;
+        }
+        ByteBuffer rows = ByteBuffer.allocate((int) getLength(geneId));
+        try (FileChannel channel = FileChannel.open(dataFile, StandardOpenOption.READ)) {
+            for (int i = 0; i < geneRanges.length; i += 2) {
+                long position = geneRanges[i];
+                long end = geneRanges[i] + geneRanges[i + 1];
+                while (position < end) {
+                    rows.limit(rows.position() + (int) (end - position));
+                    int read = channel.read(rows, position);
+                    if (read < 0) {
+                        throw new EOFException("Index of " + dataFile + " is out of date");
+                    }
+                    position += read;
+                }
+            }
+        }
+        return rows.array();
+    }
+
+    public long getLength(String geneId) {
+        long[] geneRanges = ranges.get(geneId);
+        long length = 0;
+        if (geneRanges != null) {
+            for (int i = 1; i < geneRanges.length; i += 2) {
+                length += geneRanges[i];
+            }
+        }
+        return length;
+    }
+
+    public Set<String> getGeneIds() {
+        return ranges.keySet();
+    }
+}
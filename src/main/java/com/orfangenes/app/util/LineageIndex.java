@@ -0,0 +1,185 @@
+package com.orfangenes.app.util;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Byte offsets of the lines of a taxdump file by the taxonomy ID in their first column (e.g.
+ * rankedlineage.dmp), so that the lines of a few taxonomy IDs are read without scanning the file.
+ * The index of a file is built on first use and kept until the file changes, or until it has not been
+ * used for an hour, e.g. after the taxdump was moved, as the index of rankedlineage.dmp takes tens of MB.
+ */
+@Slf4j
+public class LineageIndex {
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final int MAX_INDEXES = 4;
+    private static final Cache<Path, LineageIndex> INDEXES = Caffeine.newBuilder()
+            .maximumSize(MAX_INDEXES)
+            .expireAfterAccess(1, TimeUnit.HOURS)
+            .build();
+
+    private final FileTime lastModified;
+    private final long size;
+    // sorted, with the offset of the line of taxIDs[i] at offsets[i]
+    private final int[] taxIDs;
+    private final long[] offsets;
+
+    private LineageIndex(FileTime lastModified, long size, int[] taxIDs, long[] offsets) {
+        this.lastModified = lastModified;
+        this.size = size;
+        this.taxIDs = taxIDs;
+        this.offsets = offsets;
+    }
+
+    /**
+     * Returns the index of the file, building it when the file was not indexed yet or changed since
+     */
+    public static LineageIndex get(Path file) throws IOException {
+        Path key = file.toAbsolutePath();
+        LineageIndex index = INDEXES.getIfPresent(key);
+        if (index != null && index.isUpToDate(key)) {
+            return index;
+        }
+        synchronized (INDEXES) {
+            index = INDEXES.getIfPresent(key);
+            if (index == null || !index.isUpToDate(key)) {
+                long start = System.currentTimeMillis();
+                index = build(key);
+                log.info("Indexed " + index.taxIDs.length + " taxonomy IDs of " + key + " in "
+                        + (System.currentTimeMillis() - start) + " ms");
+                INDEXES.put(key, index);
+            }
+            return index;
+        }
+    }
+
+    private boolean isUpToDate(Path file) throws IOException {
+        return Files.size(file) == size && Files.getLastModifiedTime(file).equals(lastModified);
+    }
+
+    static LineageIndex build(Path file) throws IOException {
+        FileTime lastModified = Files.getLastModifiedTime(file);
+        long size = Files.size(file);
+        int[] taxIDs = new int[1024];
+        long[] offsets = new long[1024];
+        int count = 0;
+        boolean sorted = true;
+
+        long position = 0;
+        long lineStart = 0;
+        int taxID = 0;
+        boolean readingID = true;
+        boolean hasDigits = false;
+        try (InputStream in = new BufferedInputStream(Files.newInputStream(file), BUFFER_SIZE)) {
+            byte[] buffer = new byte[BUFFER_SIZE];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                for (int i = 0; i < read; i++, position++) {
+                    byte b = buffer[i];
+                    if (b == '\n') {
+                        readingID = true;
+                        hasDigits = false;
+                        taxID = 0;
+                        lineStart = position + 1;
+                    } else if (readingID) {
+                        if (b >= '0' && b <= '9') {
+                            taxID = taxID * 10 + (b - '0');
+                            hasDigits = true;
+                        } else {
+                            readingID = false;
+                            if (hasDigits && b == '\t') {
+                                if (count == taxIDs.length) {
+                                    taxIDs = Arrays.copyOf(taxIDs, count * 2);
+                                    offsets = Arrays.copyOf(offsets, count * 2);
+                                }
+                                sorted &= count == 0 || taxIDs[count - 1] < taxID;
+                                taxIDs[count] = taxID;
+                                offsets[count] = lineStart;
+                                count++;
+                            }
+                        }
+                    }
+                }
+            }
+        }
+        taxIDs = Arrays.copyOf(taxIDs, count);
+        offsets = Arrays.copyOf(offsets, count);
+        if (!sorted) {
+            // taxdump files are sorted by taxonomy ID, this is only for files that are not
+            Integer[] order = new Integer[count];
+            for (int i = 0; i < count; i++) {
+                order[i] = i;
+            }
+            int[] unsortedTaxIDs = taxIDs;
+            long[] unsortedOffsets = offsets;
+            Arrays.sort(order, Comparator.comparingInt(i -> unsortedTaxIDs[i]));
+            taxIDs = new int[count];
+            offsets = new long[count];
+            for (int i = 0; i < count; i++) {
+                taxIDs[i] = unsortedTaxIDs[order[i]];
+                offsets[i] = unsortedOffsets[order[i]];
+            }
+        }
+        return new LineageIndex(lastModified, size, taxIDs, offsets);
+    }
+
+    /**
+     * Reads the lines of the given taxonomy IDs from the indexed file, IDs without a line are left out
+     *
+     * @return the lines without their line break, by taxonomy ID
+     */
+    public Map<Integer, String> readLines(Path file, Collection<Integer> lineTaxIDs, Charset charset) throws IOException {
+        Map<Integer, String> lines = new HashMap<>();
+        ByteBuffer buffer = ByteBuffer.allocate(4096);
+        ByteArrayOutputStream line = new ByteArrayOutputStream();
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            for (int taxID : lineTaxIDs) {
+                int i = Arrays.binarySearch(taxIDs, taxID);
+                if (i < 0) {
+                    continue;
+                }
+                line.reset();
+                long position = offsets[i];
+                boolean endOfLine = false;
+                while (!endOfLine) {
+                    buffer.clear();
+                    int read = channel.read(buffer, position);
+                    if (read < 0) {
+                        break;
+                    }
+                    for (int j = 0; j < read; j++) {
+                        if (buffer.get(j) == '\n') {
+                            read = j;
+                            endOfLine = true;
+                            break;
+                        }
+                    }
+                    line.write(buffer.array(), 0, read);
+                    position += read;
+                }
+                lines.put(taxID, new String(line.toByteArray(), charset));
+            }
+        }
+        return lines;
+    }
+
+    public int size() {
+        return taxIDs.length;
+    }
+}
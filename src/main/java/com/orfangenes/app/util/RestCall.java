@@ -1,10 +1,15 @@
 package com.orfangenes.app.util;
 
+import io.micrometer.core.instrument.Metrics;
+import io.micrometer.core.instrument.Timer;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.http.*;
+import org.springframework.http.client.ClientHttpRequestFactory;
 import org.springframework.http.converter.StringHttpMessageConverter;
 import org.springframework.util.MultiValueMap;
 import org.springframework.web.client.HttpStatusCodeException;
+import org.springframework.web.client.RequestCallback;
+import org.springframework.web.client.ResourceAccessException;
 import org.springframework.web.client.RestClientException;
 import org.springframework.web.client.RestTemplate;
 import org.springframework.web.util.UriComponentsBuilder;
@@ -13,29 +18,45 @@ import java.net.URI;
 import java.nio.charset.Charset;
 import java.util.Collections;
 import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Supplier;
 
 /**
- * This class handles all the GET, POST, PUT, DELETE requests to the API
+ * This class handles all the GET, POST, PUT, DELETE requests to the API.
+ * GET requests are retried with a jittered exponential backoff, and the latency of each endpoint
+ * is recorded in the "orfanbase.api.requests" timer.
  */
 @Slf4j
 public class RestCall {
 
+    private static final String REQUEST_TIMER = "orfanbase.api.requests";
+
     private final RestTemplate restTemplate;
     private final String baseUrl;
     private final String apiKeyName;
     private final String apiKeyValue;
     private final String appName;
+    private final int maxAttempts;
+    private final long initialBackoffMs;
+    private final long maxBackoffMs;
 
-    public RestCall(String baseUrl, String apiKeyName, String apiKeyValue, String appName) {
-        this.restTemplate = new RestTemplate();
+    public RestCall(String baseUrl, String apiKeyName, String apiKeyValue, String appName,
+                    ClientHttpRequestFactory requestFactory, int maxAttempts, long initialBackoffMs, long maxBackoffMs) {
+        this.restTemplate = new RestTemplate(requestFactory);
         this.restTemplate.getMessageConverters().add(0, new StringHttpMessageConverter(Charset.forName("UTF-8")));
         this.baseUrl = baseUrl;
         this.apiKeyName = apiKeyName;
         this.apiKeyValue = apiKeyValue;
         this.appName = appName;
+        this.maxAttempts = Math.max(1, maxAttempts);
+        this.initialBackoffMs = initialBackoffMs;
+        this.maxBackoffMs = maxBackoffMs;
     }
 
     public String sendPostRequest(String url, String payload) {
+        String path = url;
         url = baseUrl + url;
         ResponseEntity<String> response;
         try {
@@ -46,7 +67,9 @@ public class RestCall {
             HttpEntity<MultiValueMap<String, String>> requestEntity = new HttpEntity(payload, headers);
 
             log.info("POST Request : " + url);
-            response = restTemplate.exchange(url, HttpMethod.POST, requestEntity, String.class);
+            String requestUrl = url;
+            response = timed(HttpMethod.POST, path,
+                    () -> restTemplate.exchange(requestUrl, HttpMethod.POST, requestEntity, String.class));
 
             if (response.getStatusCode() != HttpStatus.OK) {
                 String errorMessage = "[POST] Received invalid response for : " + url + " : " + response;
@@ -62,7 +85,50 @@ public class RestCall {
         return response.getBody();
     }
 
+    /**
+     * Posts a payload that is written straight to the request body, e.g. by a streaming JSON writer,
+     * instead of being built as a String first. The body is written once, while it is sent; a POST is
+     * not retried, as a retry would have to write it again.
+     */
+    public String sendPostRequest(String url, StreamingHttpOutputMessage.Body payload) {
+        String path = url;
+        url = baseUrl + url;
+        ResponseEntity<String> response;
+        try {
+            //  create headers
+            HttpHeaders headers = createHeaders();
+
+            // write the request
+            String requestUrl = url;
+            AtomicBoolean written = new AtomicBoolean();
+            RequestCallback requestCallback = request -> {
+                if (!written.compareAndSet(false, true)) {
+                    throw new IllegalStateException("[POST] Request body already sent for : " + requestUrl);
+                }
+                request.getHeaders().putAll(headers);
+                payload.writeTo(request.getBody());
+            };
+
+            log.info("POST Request : " + url);
+            response = timed(HttpMethod.POST, path, () -> restTemplate.execute(requestUrl, HttpMethod.POST, requestCallback,
+                    restTemplate.<String>responseEntityExtractor(String.class)));
+
+            if (response == null || response.getStatusCode() != HttpStatus.OK) {
+                String errorMessage = "[POST] Received invalid response for : " + url + " : " + response;
+                log.error(errorMessage);
+                throw new IllegalStateException(errorMessage);
+            }
+        } catch (HttpStatusCodeException e) {
+            throw e;
+        } catch (RestClientException e) {
+            log.error(e.getMessage(), e);
+            throw e;
+        }
+        return response.getBody();
+    }
+
     public String sendDeleteRequest(String url, String payload) {
+        String path = url;
         url = baseUrl + url;
         ResponseEntity<String> response;
         try {
@@ -73,7 +139,9 @@ public class RestCall {
             HttpEntity<MultiValueMap<String, String>> requestEntity = new HttpEntity(payload, headers);
 
             log.info("DELETE Request : " + url);
-            response = restTemplate.exchange(url, HttpMethod.DELETE, requestEntity, String.class);
+            String requestUrl = url;
+            response = timed(HttpMethod.DELETE, path,
+                    () -> restTemplate.exchange(requestUrl, HttpMethod.DELETE, requestEntity, String.class));
 
             if (response.getStatusCode() != HttpStatus.OK) {
                 String errorMessage = "[DELETE] Received invalid response for : " + url + " : " + response;
@@ -92,8 +160,8 @@ public class RestCall {
 
     /**
      * This method construct the URL with URI parameters and Query parameters and
-     * perform a get call
-     * //TODO retry logics
+     * perform a get call. Server errors, throttling and connection failures are retried up to the
+     * configured number of attempts, waiting a jittered, exponentially growing time in between.
      *
      * @param url         Path after the base URL
      * @param uriParams   URI parameters
@@ -108,7 +176,42 @@ public class RestCall {
         }
         URI completeUrl = (uriParams != null) ? uriBuilder.buildAndExpand(uriParams).toUri() : uriBuilder.build().toUri();
 
-        return makeGetRequest(completeUrl);
+        for (int attempt = 1; ; attempt++) {
+            try {
+                return makeGetRequest(completeUrl, url);
+            } catch (RestClientException e) {
+                if (attempt >= maxAttempts || !isRetryable(e)) {
+                    throw e;
+                }
+                long backoff = getBackoff(attempt);
+                log.warn("GET Request failed (attempt " + attempt + " of " + maxAttempts + "), retrying in "
+                        + backoff + " ms : " + completeUrl + " : " + e.getMessage());
+                try {
+                    Thread.sleep(backoff);
+                } catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                    throw e;
+                }
+            }
+        }
+    }
+
+    private static boolean isRetryable(RestClientException e) {
+        if (e instanceof HttpStatusCodeException) {
+            int status = ((HttpStatusCodeException) e).getRawStatusCode();
+            return status >= 500 || status == HttpStatus.TOO_MANY_REQUESTS.value();
+        }
+        // connection refused, reset or timed out
+        return e instanceof ResourceAccessException;
+    }
+
+    /**
+     * Half of the exponential backoff plus a random share of the other half, so that clients
+     * failing together do not retry together
+     */
+    private long getBackoff(int attempt) {
+        long backoff = Math.min(maxBackoffMs, initialBackoffMs << Math.min(attempt - 1, 20));
+        return backoff / 2 + ThreadLocalRandom.current().nextLong(backoff / 2 + 1);
     }
 
 
@@ -116,9 +219,10 @@ public class RestCall {
      * This method sets HTTP headers, perform the rest call and returns results in String format
      *
      * @param uri constructed URL with URI and query parameters
+     * @param path path after the base URL, for the metrics
      * @return
      */
-    private String makeGetRequest(URI uri) {
+    private String makeGetRequest(URI uri, String path) {
         ResponseEntity<String> response;
         try {
             //  create headers
@@ -128,7 +232,7 @@ public class RestCall {
             HttpEntity entity = new HttpEntity(headers);
 
             log.info("GET Request : " + uri);
-            response = restTemplate.exchange(uri, HttpMethod.GET, entity, String.class);
+            response = timed(HttpMethod.GET, path, () -> restTemplate.exchange(uri, HttpMethod.GET, entity, String.class));
 
             if (response.getStatusCode() != HttpStatus.OK) {
                 String errorMessage = "[GET] Received invalid response for : " + uri + " : " + response;
@@ -144,6 +248,43 @@ public class RestCall {
         return response.getBody();
     }
 
+    /**
+     * Records the latency of the request by method, endpoint and response status
+     */
+    private ResponseEntity<String> timed(HttpMethod method, String path, Supplier<ResponseEntity<String>> request) {
+        long start = System.nanoTime();
+        String status = "IO_ERROR";
+        try {
+            ResponseEntity<String> response = request.get();
+            status = (response != null) ? String.valueOf(response.getStatusCodeValue()) : "NONE";
+            return response;
+        } catch (HttpStatusCodeException e) {
+            status = String.valueOf(e.getRawStatusCode());
+            throw e;
+        } finally {
+            Timer.builder(REQUEST_TIMER)
+                    .tag("method", method.name())
+                    .tag("endpoint", getEndpoint(path))
+                    .tag("status", status)
+                    .register(Metrics.globalRegistry)
+                    .record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+        }
+    }
+
+    /**
+     * Endpoint of the path with the identifiers (segments with digits) replaced, e.g.
+     * analysis/data/summary/{id}, so the metrics are not split per analysis
+     */
+    static String getEndpoint(String path) {
+        StringBuilder endpoint = new StringBuilder();
+        for (String segment : path.split("/")) {
+            if (!segment.isEmpty()) {
+                endpoint.append('/').append(segment.matches(".*\\d.*") ? "{id}" : segment);
+            }
+        }
+        return endpoint.toString();
+    }
+
     private HttpHeaders createHeaders() {
         HttpHeaders headers = new HttpHeaders();
         headers.setContentType(MediaType.APPLICATION_JSON);
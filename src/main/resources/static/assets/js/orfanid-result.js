@@ -5,6 +5,7 @@ $(document).ready(function() {
 
     var orfanLevels;
     var numberOfOrphanGenes;
+    var blastTreeNames;
 
     // Getting ORFanGenes Summary
     $.ajax({
@@ -51,165 +52,283 @@ $(document).ready(function() {
         }
     });
 
-    // Getting ORFanGenes Summary Chart
+    // the results are loaded once the analysis is completed, only its status is polled until then
+    pollStatus(sessionid, loadResults);
+
+    function loadResults() {
+        // Getting ORFanGenes Summary Chart
+        $.ajax({
+            type: "POST",
+            contentType: 'application/json',
+            dataType: "text",
+            url: "/data/summary/chart",
+            data: '{"sessionid":"' + sessionid + '"}',
+            success: function (result) {
+                var orfanGenesSummaryChart = JSON.parse(result);
+                orfanLevels = orfanGenesSummaryChart.x;
+                numberOfOrphanGenes = orfanGenesSummaryChart.y;
+
+                var data = [{
+                    x : orfanLevels,
+                    y : numberOfOrphanGenes,
+                    type : 'bar',
+                    marker : {
+                        color : '#ef6c00'
+                    }
+                }];
+                var layout = {
+                    yaxis: {
+                        title: 'Number of Orphan Genes'
+                    }};
+                Plotly.newPlot('genesummary', data, layout);
+            },
+            error: function (error) {
+                console.log("Error occured in ORFanGenes Summary Chart: "+ error);
+            }
+        });
+
+        //Getting ORFan Genes
+        $.ajax({
+            type: "POST",
+            contentType: 'application/json',
+            dataType: "text",
+            url: "/data/genes",
+            data: '{"sessionid":"' + sessionid + '"}',
+            success: function (result) {
+                var orfanGenes = JSON.parse(result);
+                var table = $('#orfanGenes').DataTable({
+                    "data":orfanGenes,
+                    "columns": [
+                        {"data" : "geneid",
+                            "render": function(data, type, row, meta){
+                                if(type === 'display'){
+                                    data = '<a href=https://www.ncbi.nlm.nih.gov/search/all/?term="' + data + '">' + data + '</a>';
+                                }
+                                return data;
+                            }
+                        },
+                        {"data" : "description"},
+                        {"data" : "orfanLevel"},
+                        {"data" : "homologyEvidence"}
+                    ],
+                    "oLanguage": {
+                        "sStripClasses": "",
+                        "sSearch": "",
+                        "sSearchPlaceholder": "Enter Search Term Here",
+                        "sInfo": "Showing _START_ -_END_ of _TOTAL_ genes",
+                        "sLengthMenu": '<span>Rows per page:</span>'+
+                        '<select class="browser-default">' +
+                        '<option value="5">5</option>' +
+                        '<option value="10">10</option>' +
+                        '<option value="20">20</option>' +
+                        '<option value="50">50</option>' +
+                        '<option value="100">100</option>' +
+                        '<option value="-1">All</option>' +
+                        '</select></div>'
+                    },
+                    dom: 'frt',
+                    "aaSorting": [],
+                    "columnDefs": [ {
+                        "targets": -1,
+                        "data": null,
+                        "defaultContent": "<a class=\"waves-effect waves-light btn modal-trigger\" href=\"#blastResultModal\"><i class=\"large material-icons\">insert_chart</i></a>"
+                    } ]
+                });
+
+                $('#orfanGenes tbody').on( 'click', 'a', function () {
+                    var data = table.row( $(this).parents('tr') ).data();
+                    console.log(data["geneid"]);
+                    // the name table of the compact trees is loaded with the first tree
+                    if (blastTreeNames === undefined) {
+                        $.ajax({
+                            type: "POST",
+                            contentType: 'application/json',
+                            dataType: "text",
+                            url: "/data/blast/names",
+                            data: '{"sessionid":"' + sessionid + '"}',
+                            success: function (result) {
+                                blastTreeNames = JSON.parse(result);
+                                showBlastTree(sessionid, data["geneid"], blastTreeNames);
+                            },
+                            error: function () {
+                                blastTreeNames = null;
+                                showBlastTree(sessionid, data["geneid"], blastTreeNames);
+                            }
+                        });
+                    } else {
+                        showBlastTree(sessionid, data["geneid"], blastTreeNames);
+                    }
+                });
+            }
+        });
+    }
+});
+
+var STATUS_POLL_INTERVAL_MS = 5000;
+
+/**
+ * Shows the status of the analysis until it is final and calls onCompleted once it is completed. The
+ * status is read once and then followed on the server-sent events of the analysis, or polled in browsers
+ * without EventSource and when the event stream fails.
+ */
+function pollStatus(sessionid, onCompleted, polling) {
     $.ajax({
         type: "POST",
         contentType: 'application/json',
         dataType: "text",
-        url: "/data/summary/chart",
+        url: "/data/status",
         data: '{"sessionid":"' + sessionid + '"}',
         success: function (result) {
-            var orfanGenesSummaryChart = JSON.parse(result);
-            orfanLevels = orfanGenesSummaryChart.x;
-            numberOfOrphanGenes = orfanGenesSummaryChart.y;
-
-            var data = [{
-                x : orfanLevels,
-                y : numberOfOrphanGenes,
-                type : 'bar',
-                marker : {
-                    color : '#ef6c00'
-                }
-            }];
-            var layout = {
-                yaxis: {
-                    title: 'Number of Orphan Genes'
-                }};
-            Plotly.newPlot('genesummary', data, layout);
+            var analysisStatus = result ? JSON.parse(result) : null;
+            if (showStatus(analysisStatus, onCompleted)) {
+                return;
+            }
+            if (!polling && window.EventSource) {
+                watchStatus(sessionid, onCompleted);
+            } else {
+                setTimeout(function () {
+                    pollStatus(sessionid, onCompleted, true);
+                }, STATUS_POLL_INTERVAL_MS);
+            }
         },
         error: function (error) {
-            console.log("Error occured in ORFanGenes Summary Chart: "+ error);
+            console.log("Error occurred while fetching the analysis status: " + error);
+            setTimeout(function () {
+                pollStatus(sessionid, onCompleted, polling);
+            }, STATUS_POLL_INTERVAL_MS);
+        }
+    });
+}
+
+function watchStatus(sessionid, onCompleted) {
+    var events = new EventSource("/data/events?analysisIds=" + encodeURIComponent(sessionid));
+    events.addEventListener("status", function (event) {
+        if (showStatus(JSON.parse(event.data), onCompleted)) {
+            events.close();
         }
     });
+    events.onerror = function () {
+        // the stream timed out or is not available, e.g. behind a buffering proxy
+        events.close();
+        setTimeout(function () {
+            pollStatus(sessionid, onCompleted, true);
+        }, STATUS_POLL_INTERVAL_MS);
+    };
+}
+
+// returns whether the status is final
+function showStatus(analysisStatus, onCompleted) {
+    if (analysisStatus === null || analysisStatus.status === "COMPLETED") {
+        $('#analysis_status').hide();
+        onCompleted();
+        return true;
+    }
+    if (analysisStatus.status === "ERRORED" || analysisStatus.status === "CANCELLED") {
+        $('#analysis_status').text("Analysis " + analysisStatus.status.toLowerCase()).show();
+        return true;
+    }
+    // the progress is left out of the events and -1 in the status while it is not known
+    var progress = analysisStatus.progress == null || analysisStatus.progress < 0 ? "" : ": " + analysisStatus.progress + "%";
+    $('#analysis_status').text(analysisStatus.status === "PENDING" ? "Analysis waiting" : "Analysis running" + progress).show();
+    return false;
+}
 
-    //Getting ORFan Genes
+function showBlastTree(sessionid, geneid, treeNames) {
+    //Getting BLAST Results
     $.ajax({
         type: "POST",
         contentType: 'application/json',
         dataType: "text",
-        url: "/data/genes",
-        data: '{"sessionid":"' + sessionid + '"}',
+        url: "/data/blast",
+        data: '{"sessionid":"' + sessionid + '", "geneid" : "' + geneid + '", "format" : "' + (treeNames ? "compact" : "json") + '"}',
         success: function (result) {
-            var orfanGenes = JSON.parse(result);
-            var table = $('#orfanGenes').DataTable({
-                "data":orfanGenes,
-                "columns": [
-                    {"data" : "geneid",
-                        "render": function(data, type, row, meta){
-                            if(type === 'display'){
-                                data = '<a href=https://www.ncbi.nlm.nih.gov/search/all/?term="' + data + '">' + data + '</a>';
-                            }
-                            return data;
-                        }
-                    },
-                    {"data" : "description"},
-                    {"data" : "orfanLevel"},
-                    {"data" : "homologyEvidence"}
-                ],
-                "oLanguage": {
-                    "sStripClasses": "",
-                    "sSearch": "",
-                    "sSearchPlaceholder": "Enter Search Term Here",
-                    "sInfo": "Showing _START_ -_END_ of _TOTAL_ genes",
-                    "sLengthMenu": '<span>Rows per page:</span>'+
-                    '<select class="browser-default">' +
-                    '<option value="5">5</option>' +
-                    '<option value="10">10</option>' +
-                    '<option value="20">20</option>' +
-                    '<option value="50">50</option>' +
-                    '<option value="100">100</option>' +
-                    '<option value="-1">All</option>' +
-                    '</select></div>'
+            var blastResult;
+            try {
+                blastResult = JSON.parse(result);
+            }
+            catch(err) {
+                console.error("blastResult passing error")
+            }
+            console.log(blastResult);
+            // analyses saved before the compact format only have the JSON tree
+            var treeData = (blastResult["tree"] !== undefined) ? blastResult["tree"] : decodeCompactTree(blastResult, treeNames);
+            console.log(treeData);
+
+            var myChart = echarts.init(document.getElementById('blastResults'));
+            myChart.showLoading();
+            myChart.hideLoading();
+            myChart.setOption(option = {
+                tooltip: {
+                    trigger: 'item',
+                    triggerOn: 'mousemove'
                 },
-                dom: 'frt',
-                "aaSorting": [],
-                "columnDefs": [ {
-                    "targets": -1,
-                    "data": null,
-                    "defaultContent": "<a class=\"waves-effect waves-light btn modal-trigger\" href=\"#blastResultModal\"><i class=\"large material-icons\">insert_chart</i></a>"
-                } ]
-            });
+                series: [
+                    {
+                        type: 'tree',
 
-            $('#orfanGenes tbody').on( 'click', 'a', function () {
-                var data = table.row( $(this).parents('tr') ).data();
-                console.log(data["geneid"]);
-                //Getting BLAST Results
-                $.ajax({
-                    type: "POST",
-                    contentType: 'application/json',
-                    dataType: "text",
-                    url: "/data/blast",
-                    data: '{"sessionid":"' + sessionid + '", "geneid" : "' + data["geneid"] + '"}',
-                    success: function (result) {
-                        var blastResult;
-                        try {
-                            blastResult = JSON.parse(result);
-                        }
-                        catch(err) {
-                            console.error("blastResult passing error")
-                        }
-                        console.log(blastResult);
-                        var treeData = blastResult["tree"];
-                        console.log(treeData);
-
-                        var myChart = echarts.init(document.getElementById('blastResults'));
-                        myChart.showLoading();
-                        myChart.hideLoading();
-                        myChart.setOption(option = {
-                            tooltip: {
-                                trigger: 'item',
-                                triggerOn: 'mousemove'
-                            },
-                            series: [
-                                {
-                                    type: 'tree',
-
-                                    data: [treeData],
-
-                                    top: '1%',
-                                    left: '7%',
-                                    bottom: '1%',
-                                    right: '20%',
-
-                                    symbolSize: 7,
-                                    initialTreeDepth: 9,
-
-                                    label: {
-                                        normal: {
-                                            position: 'left',
-                                            verticalAlign: 'middle',
-                                            align: 'right',
-                                            fontSize: 9
-                                        }
-                                    },
-
-                                    leaves: {
-                                        label: {
-                                            normal: {
-                                                position: 'right',
-                                                verticalAlign: 'middle',
-                                                align: 'left'
-                                            }
-                                        }
-                                    },
-
-                                    expandAndCollapse: true,
-                                    animationDuration: 550,
-                                    animationDurationUpdate: 750
+                        data: [treeData],
+
+                        top: '1%',
+                        left: '7%',
+                        bottom: '1%',
+                        right: '20%',
+
+                        symbolSize: 7,
+                        initialTreeDepth: 9,
+
+                        label: {
+                            normal: {
+                                position: 'left',
+                                verticalAlign: 'middle',
+                                align: 'right',
+                                fontSize: 9
+                            }
+                        },
+
+                        leaves: {
+                            label: {
+                                normal: {
+                                    position: 'right',
+                                    verticalAlign: 'middle',
+                                    align: 'left'
                                 }
-                            ]
-                        });
+                            }
+                        },
 
-                        $('#blastDescription').html(blastResult["description"]);
-                    },
-                    error: function (error) {
-                        console.log("error occurred in fetching blast results  for " + data["geneid"] + " : " + error.toString());
+                        expandAndCollapse: true,
+                        animationDuration: 550,
+                        animationDurationUpdate: 750
                     }
-                });
+                ]
             });
+
+            $('#blastDescription').html(blastResult["description"]);
+        },
+        error: function (error) {
+            console.log("error occurred in fetching blast results  for " + geneid + " : " + error.toString());
         }
     });
-});
+}
+
+/**
+ * Rebuilds the nested tree from a compact tree: parallel arrays of parent index, name id, rank and
+ * count in pre-order, with the names in the name table of the analysis
+ */
+function decodeCompactTree(compactTree, treeNames) {
+    var nodes = [];
+    for (var i = 0; i < compactTree.parent.length; i++) {
+        var node = {name: treeNames.names[compactTree.name[i]] + "(" + compactTree.count[i] + ")"};
+        nodes.push(node);
+        var parent = compactTree.parent[i];
+        if (parent >= 0) {
+            if (nodes[parent].children === undefined) {
+                nodes[parent].children = [];
+            }
+            nodes[parent].children.push(node);
+        }
+    }
+    return nodes[0];
+}
 
 function capitalizeFirstLetter(string) {
     return string.charAt(0).toUpperCase() + string.slice(1);
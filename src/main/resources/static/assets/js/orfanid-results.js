@@ -14,6 +14,7 @@ $(document).ready(function() {
                     {"data" : "email"},
                     {"data" : "organism"},
                     {"data" : "numberOfGenes"},
+                    {"data" : "status"},
                     {"data" : "view"}
                 ],
                 "oLanguage": {
@@ -45,9 +46,53 @@ $(document).ready(function() {
                 var sessionid = data.analysisId;
                 window.location.href = "/result?sessionid=" + sessionid;
             });
+
+            pollStatuses(table);
         },
         error: function (error) {
             console.log("Error occurred while fetching results: "+ error);
         }
     });
-});
\ No newline at end of file
+});
+
+var STATUS_POLL_INTERVAL_MS = 10000;
+
+/**
+ * Polls the statuses of the analyses waiting or running in one request, until all of them are final
+ */
+function pollStatuses(table) {
+    var rows = {};
+    table.rows().every(function () {
+        var data = this.data();
+        if (data.status === "PENDING" || data.status === "START_PROCESSING") {
+            rows[data.analysisId] = this;
+        }
+    });
+    var analysisIds = Object.keys(rows);
+    if (analysisIds.length === 0) {
+        return;
+    }
+    setTimeout(function () {
+        $.ajax({
+            type: "POST",
+            contentType: 'application/json',
+            dataType: "text",
+            url: "/data/status/list",
+            data: JSON.stringify(analysisIds),
+            success: function (result) {
+                JSON.parse(result).forEach(function (analysisStatus) {
+                    var row = rows[analysisStatus.analysisId];
+                    var data = row.data();
+                    data.status = analysisStatus.status;
+                    row.data(data);
+                });
+                table.draw(false);
+                pollStatuses(table);
+            },
+            error: function (error) {
+                console.log("Error occurred while fetching the analysis statuses: " + error);
+                pollStatuses(table);
+            }
+        });
+    }, STATUS_POLL_INTERVAL_MS);
+}
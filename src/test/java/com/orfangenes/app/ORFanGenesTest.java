@@ -40,7 +40,7 @@ import static org.junit.Assert.*;
  */
 //@Ignore
 @RunWith(SpringJUnit4ClassRunner.class)
-@ContextConfiguration(classes = {DatabaseApiConfig.class, DatabaseService.class})
+@ContextConfiguration(classes = {DatabaseApiConfig.class})
 public class ORFanGenesTest {
 
   @Autowired
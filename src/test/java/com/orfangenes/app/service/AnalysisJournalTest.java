@@ -0,0 +1,90 @@
+package com.orfangenes.app.service;
+
+import com.orfangenes.app.dto.AnalysisTask;
+import com.orfangenes.app.service.AnalysisScheduler.Lane;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class AnalysisJournalTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static AnalysisTask task(String analysisId) {
+        return new AnalysisTask(analysisId, "Homo sapiens", 9606, "protein", 3, 100, 60, null, 42, "user@example.com");
+    }
+
+    @Test
+    public void analysesNotDoneAreReplayed() throws IOException {
+        Path file = folder.getRoot().toPath().resolve("analysis-queue.journal");
+        AnalysisJournal journal = new AnalysisJournal(file);
+        assertTrue(journal.open().isEmpty());
+        assertTrue(journal.add(task("a1"), Lane.BULK));
+        assertTrue(journal.add(task("a2"), Lane.INTERACTIVE));
+        assertTrue(journal.add(task("a3"), Lane.BULK));
+        assertFalse(journal.add(task("a2"), Lane.BULK));
+        journal.remove("a1");
+        journal.close();
+
+        AnalysisJournal restarted = new AnalysisJournal(file);
+        List<AnalysisJournal.Entry> notDone = restarted.open();
+        assertEquals(2, notDone.size());
+        assertEquals("a2", notDone.get(0).getTask().getAnalysisId());
+        assertEquals(Lane.INTERACTIVE, notDone.get(0).getLane());
+        assertEquals(42, notDone.get(0).getTask().getEstimatedCost());
+        assertEquals("a3", notDone.get(1).getTask().getAnalysisId());
+        assertEquals(2, restarted.size());
+        restarted.close();
+    }
+
+    @Test
+    public void lineCutShortByACrashIsIgnored() throws IOException {
+        Path file = folder.getRoot().toPath().resolve("analysis-queue.journal");
+        AnalysisJournal journal = new AnalysisJournal(file);
+        journal.open();
+        journal.add(task("a1"), Lane.BULK);
+        journal.close();
+        Files.write(file, "Q\tBULK\t{\"analysisId\":\"a2\",\"orga".getBytes(StandardCharsets.UTF_8), StandardOpenOption.APPEND);
+
+        AnalysisJournal restarted = new AnalysisJournal(file);
+        List<AnalysisJournal.Entry> notDone = restarted.open();
+        assertEquals(1, notDone.size());
+        assertEquals("a1", notDone.get(0).getTask().getAnalysisId());
+        // appended after the rewritten journal, not after the cut line
+        restarted.add(task("a3"), Lane.BULK);
+        restarted.close();
+        assertEquals(2, new AnalysisJournal(file).open().size());
+    }
+
+    @Test
+    public void journalIsCompactedOnOpenAndEmptiedWhenAllDone() throws IOException {
+        Path file = folder.getRoot().toPath().resolve("analysis-queue.journal");
+        AnalysisJournal journal = new AnalysisJournal(file);
+        journal.open();
+        journal.add(task("a1"), Lane.BULK);
+        journal.add(task("a2"), Lane.BULK);
+        journal.remove("a1");
+        journal.close();
+        assertEquals(3, Files.readAllLines(file, StandardCharsets.UTF_8).size());
+
+        AnalysisJournal restarted = new AnalysisJournal(file);
+        restarted.open();
+        List<String> lines = Files.readAllLines(file, StandardCharsets.UTF_8);
+        assertEquals(1, lines.size());
+        assertTrue(lines.get(0).startsWith("Q\tBULK\t"));
+
+        restarted.remove("a2");
+        assertEquals(0, Files.size(file));
+        restarted.close();
+    }
+}
@@ -0,0 +1,122 @@
+package com.orfangenes.app.service;
+
+import com.orfangenes.app.model.BlastResult;
+import com.orfangenes.app.model.Gene;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.*;
+
+import static com.orfangenes.app.util.Constants.*;
+import static org.junit.Assert.*;
+
+/**
+ * Golden test of the integer-rank classification kernel against the original set based implementation.
+ */
+public class ClassificationServiceTest {
+
+    private static final int ORGANISM_TAX_ID = 1;
+    private static final int NUMBER_OF_TAXONOMIES = 300;
+    private static final int NUMBER_OF_GENES = 2000;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private String rankedLineageFilePath;
+    private Random random;
+
+    @Before
+    public void setUp() throws IOException {
+        random = new Random(42);
+        File rankedLineageFile = folder.newFile(FILE_RANK_LINEAGE);
+        try (PrintWriter writer = new PrintWriter(rankedLineageFile, "UTF-8")) {
+            for (int taxId = 1; taxId <= NUMBER_OF_TAXONOMIES; taxId++) {
+                StringBuilder line = new StringBuilder().append(taxId).append("\t|");
+                for (int columnNo = 1; columnNo < 10; columnNo++) {
+                    // few names per rank, with missing values, so that hits share taxonomies
+                    int name = random.nextInt(columnNo < 4 ? 6 : 3);
+                    line.append("\t").append(name == 0 ? "" : "rank" + columnNo + "_" + name).append("\t|");
+                }
+                writer.println(line);
+            }
+        }
+        rankedLineageFilePath = rankedLineageFile.getAbsolutePath();
+    }
+
+    @Test
+    public void classificationMatchesOriginalImplementation() {
+        List<BlastResult> blastResults = new ArrayList<>();
+        Set<Integer> blastHitsTaxIDs = new HashSet<>();
+        List<Gene> genes = new ArrayList<>();
+        for (int geneNo = 0; geneNo < NUMBER_OF_GENES; geneNo++) {
+            String geneId = "gene" + geneNo;
+            Gene gene = new Gene();
+            gene.setGeneId(geneId);
+            genes.add(gene);
+
+            // some genes have no hits at all
+            int numberOfHits = random.nextInt(8);
+            for (int hitNo = 0; hitNo < numberOfHits; hitNo++) {
+                // hits to taxonomies above NUMBER_OF_TAXONOMIES do not have a lineage
+                int taxId = 1 + random.nextInt(NUMBER_OF_TAXONOMIES + 20);
+                blastHitsTaxIDs.add(taxId);
+                blastResults.add(new BlastResult(geneId + "\tsubject\t90.0\t100\t1\t0\t1\t100\t1\t100\t1e-10\t200\t" + taxId));
+            }
+        }
+        blastHitsTaxIDs.add(ORGANISM_TAX_ID);
+
+        TaxTreeService taxTreeService = new TaxTreeService(rankedLineageFilePath, blastHitsTaxIDs, ORGANISM_TAX_ID);
+        ClassificationService classificationService = new ClassificationService(taxTreeService, ORGANISM_TAX_ID, blastResults);
+        Map<String, String> expected = classifyWithSets(classificationService.getTaxonomyTreeForGenes(),
+                taxTreeService.getInputRankedLineage());
+
+        List<Gene> classifiedGenes = classificationService.getGeneClassification(genes);
+
+        Set<String> levels = new HashSet<>();
+        for (Gene gene : classifiedGenes) {
+            String expectedLevel = expected.get(gene.getGeneId()) != null ? expected.get(gene.getGeneId()) : STRICT_ORFAN;
+            assertEquals(gene.getGeneId(), expectedLevel, gene.getOrfanLevel());
+            levels.add(gene.getOrfanLevel());
+        }
+        assertTrue("Test data should cover several ORFan levels", levels.size() > 3);
+    }
+
+    /**
+     * The classification loop as it was before the integer kernel
+     */
+    private static Map<String, String> classifyWithSets(Map<String, List<List<String>>> taxonomyTreeForGenes,
+                                                        List<String> inputRankedLineage) {
+        List<String> classificationLevels =
+                Arrays.asList(STRICT_ORFAN, ORFAN_GENE, GENUS_RESTRICTED_GENE, FAMILY_RESTRICTED_GENE,
+                        ORDER_RESTRICTED_GENE, CLASS_RESTRICTED_GENE, PHYLUM_RESTRICTED_GENE,
+                        KINGDOM_RESTRICTED_GENE, DOMAIN_RESTRICTED_GENE);
+        Map<String, String> classification = new HashMap<>();
+        for (Map.Entry<String, List<List<String>>> entry : taxonomyTreeForGenes.entrySet()) {
+            for (int columnNo = 9; columnNo > 0; columnNo--) {
+                if (columnNo == 2) { continue;}
+                Set<String> blastResultsCommonIds = new HashSet<>();
+                for (List<String> rankedLineage : entry.getValue()) {
+                    if (rankedLineage != null) {
+                        if(!rankedLineage.get(columnNo).equals("") || rankedLineage.get(columnNo).equals(NOT_AVAILABLE)){
+                            blastResultsCommonIds.add(rankedLineage.get(columnNo));
+                        }
+                    }
+                }
+                blastResultsCommonIds.add(inputRankedLineage.get(columnNo));
+                if (blastResultsCommonIds.size() > 1 ) {
+                    classification.put(entry.getKey(), classificationLevels.get(columnNo-1));
+                    break;
+                } else if (columnNo == 1) {
+                    classification.put(entry.getKey(), classificationLevels.get(columnNo));
+                    break;
+                }
+            }
+        }
+        return classification;
+    }
+}
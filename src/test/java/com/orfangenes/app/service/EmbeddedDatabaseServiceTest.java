@@ -0,0 +1,148 @@
+package com.orfangenes.app.service;
+
+import com.orfangenes.app.dto.AnalysisStatusDto;
+import com.orfangenes.app.model.Analysis;
+import com.orfangenes.app.model.Gene;
+import com.orfangenes.app.model.User;
+import com.orfangenes.app.util.Constants;
+import com.orfangenes.app.util.Constants.AnalysisStatus;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class EmbeddedDatabaseServiceTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private EmbeddedDatabaseService open() throws IOException {
+        return new EmbeddedDatabaseService(folder.getRoot().toPath(), new AnalysisReadCache(1000000, 10, 60));
+    }
+
+    private static Analysis analysis(String analysisId) {
+        Analysis analysis = new Analysis();
+        analysis.setAnalysisId(analysisId);
+        analysis.setOrganism("Homo sapiens");
+        analysis.setTaxonomyId(9606);
+        analysis.setSequenceType("protein");
+        analysis.setStatus(AnalysisStatus.PENDING);
+        analysis.setUser(new User(null, "Ada", "Lovelace", "ada@example.com"));
+        return analysis;
+    }
+
+    private static Gene gene(String geneId, String orfanLevel) {
+        Gene gene = new Gene();
+        gene.setGeneId(geneId);
+        gene.setSequence("MKV");
+        gene.setOrfanLevel(orfanLevel);
+        return gene;
+    }
+
+    @Test
+    public void savedAnalysisIsReadBack() throws IOException {
+        EmbeddedDatabaseService database = open();
+        Analysis analysis = analysis("a1");
+        analysis.setGeneList(Arrays.asList(gene("g1", Constants.STRICT_ORFAN), gene("g2", Constants.MULTI_DOMAIN_GENE)));
+        database.saveAnalysis(analysis);
+
+        Analysis saved = database.getAnalysisById("a1");
+        assertNotNull(saved.getId());
+        assertEquals("Homo sapiens", saved.getOrganism());
+        assertEquals(AnalysisStatus.PENDING, saved.getStatus());
+        assertEquals("ada@example.com", saved.getUser().getEmail());
+        assertNotNull(saved.getUser().getId());
+        assertEquals(2, saved.getGeneList().size());
+        assertNull(database.getAnalysisById("unknown"));
+    }
+
+    @Test
+    public void lastSavedGeneWins() throws IOException {
+        EmbeddedDatabaseService database = open();
+        database.savePendingAnalysis(analysis("a1"));
+        database.saveGenes("a1", Arrays.asList(gene("g1", Constants.STRICT_ORFAN), gene("g2", Constants.STRICT_ORFAN)));
+        database.saveGenes("a1", Arrays.asList(gene("g1", Constants.MULTI_DOMAIN_GENE)));
+
+        List<Gene> genes = database.getAnalysisById("a1").getGeneList();
+        assertEquals(2, genes.size());
+        assertEquals("g1", genes.get(0).getGeneId());
+        assertEquals(Constants.MULTI_DOMAIN_GENE, genes.get(0).getOrfanLevel());
+        assertTrue(database.getAllAnalysis().contains("\"a1\""));
+    }
+
+    @Test
+    public void restartIndexesTheStoredData() throws IOException {
+        EmbeddedDatabaseService database = open();
+        database.savePendingAnalysis(analysis("a1"));
+        database.saveGenes("a1", Arrays.asList(gene("g1", Constants.STRICT_ORFAN)));
+        database.saveGenes("a1", Arrays.asList(gene("g1", Constants.ORFAN_GENE), gene("g2", Constants.STRICT_ORFAN)));
+        database.updateStatus(new AnalysisStatusDto("a1", AnalysisStatus.START_PROCESSING, 40, 0));
+        Long analysisId = database.getAnalysisById("a1").getId();
+
+        EmbeddedDatabaseService restarted = open();
+        Analysis analysis = restarted.getAnalysisById("a1");
+        assertEquals(analysisId, analysis.getId());
+        assertEquals(2, analysis.getGeneList().size());
+        assertEquals(Constants.ORFAN_GENE, analysis.getGeneList().get(0).getOrfanLevel());
+        assertEquals(40, restarted.getAnalysisStatus("a1").getProgress());
+        assertEquals("ada@example.com", restarted.getUserByEmail("ada@example.com").getEmail());
+        // IDs go on from the stored ones
+        restarted.savePendingAnalysis(analysis("a2"));
+        assertTrue(restarted.getAnalysisById("a2").getId() > analysisId);
+    }
+
+    @Test
+    public void statusUpdatesAreRead() throws IOException {
+        EmbeddedDatabaseService database = open();
+        database.savePendingAnalysis(analysis("a1"));
+        database.savePendingAnalysis(analysis("a2"));
+        long version = database.getAnalysisStatus("a1").getVersion();
+
+        database.updateStatus(new AnalysisStatusDto("a1", AnalysisStatus.START_PROCESSING, 10, 0));
+        // a progress update leaves the status as it is
+        database.updateStatus(new AnalysisStatusDto("a1", null, 50, 0));
+        AnalysisStatusDto status = database.getAnalysisStatus("a1");
+        assertEquals(AnalysisStatus.START_PROCESSING, status.getStatus());
+        assertEquals(50, status.getProgress());
+        assertTrue(status.getVersion() > version);
+
+        database.updateStatus("a1", AnalysisStatus.COMPLETED);
+        assertEquals(100, database.getAnalysisStatus("a1").getProgress());
+        assertEquals(2, database.getAnalysisStatuses(Arrays.asList("a1", "a2", "unknown")).size());
+        assertNull(database.getAnalysisStatus("unknown"));
+    }
+
+    @Test
+    public void cancelledStatusIsFinal() throws IOException {
+        EmbeddedDatabaseService database = open();
+        database.savePendingAnalysis(analysis("a1"));
+        database.cancelAnalysis("a1");
+
+        database.updateStatus(new AnalysisStatusDto("a1", AnalysisStatus.START_PROCESSING, 10, 0));
+        database.updateStatus("a1", AnalysisStatus.COMPLETED);
+        assertEquals(AnalysisStatus.CANCELLED, database.getAnalysisStatus("a1").getStatus());
+    }
+
+    @Test
+    public void unchangedUserIsNotAppended() throws IOException {
+        EmbeddedDatabaseService database = open();
+        database.savePendingAnalysis(analysis("a1"));
+        database.savePendingAnalysis(analysis("a2"));
+        Path usersFile = folder.getRoot().toPath().resolve("users.jsonl");
+        assertEquals(1, Files.readAllLines(usersFile, StandardCharsets.UTF_8).size());
+
+        User renamed = database.getUserByEmail("ada@example.com");
+        renamed.setLastName("King");
+        database.saveUser(renamed);
+        assertEquals(2, Files.readAllLines(usersFile, StandardCharsets.UTF_8).size());
+        assertEquals("King", open().getUserByEmail("ada@example.com").getLastName());
+    }
+}
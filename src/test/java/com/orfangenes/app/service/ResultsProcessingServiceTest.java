@@ -0,0 +1,80 @@
+package com.orfangenes.app.service;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+public class ResultsProcessingServiceTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static List<String> lineage(String taxId, String name, String genus, String family) {
+        return new ArrayList<>(Arrays.asList(taxId, name, "", genus, family, "order", "class", "phylum", "kingdom", "Bacteria"));
+    }
+
+    @Test
+    public void buildTreeCountsLineagesPerNode() {
+        List<String> coli = lineage("562", "Escherichia coli", "Escherichia", "Enterobacteriaceae");
+        List<String> fergusonii = lineage("564", "Escherichia fergusonii", "Escherichia", "Enterobacteriaceae");
+        List<String> enterica = lineage("28901", "Salmonella enterica", "Salmonella", "Enterobacteriaceae");
+
+        // duplicate species and hits without a lineage are ignored
+        ResultsProcessingService.TreeNode luca =
+                ResultsProcessingService.buildTree(Arrays.asList(coli, fergusonii, coli, null, enterica));
+
+        assertEquals(1, luca.children.size());
+        ResultsProcessingService.TreeNode bacteria = luca.children.get("Bacteria");
+        assertEquals(1, bacteria.nodeCount);
+        ResultsProcessingService.TreeNode family = bacteria.children.get("kingdom").children.get("phylum")
+                .children.get("class").children.get("order").children.get("Enterobacteriaceae");
+        assertEquals(3, family.nodeCount);
+        assertEquals(2, family.children.get("Escherichia").nodeCount);
+        assertEquals(1, family.children.get("Salmonella").nodeCount);
+        assertEquals("species", family.children.get("Escherichia").children.get("Escherichia coli").rank);
+        assertTrue(family.children.get("Escherichia").children.get("Escherichia coli").children.isEmpty());
+    }
+
+    @Test
+    public void buildTreeDoesNotModifySharedLineages() {
+        // TaxTreeService hands the same lineage list to every gene hitting the taxonomy
+        List<String> coli = lineage("562", "Escherichia coli", "Escherichia", "Enterobacteriaceae");
+        List<String> original = new ArrayList<>(coli);
+
+        ResultsProcessingService.buildTree(Collections.singletonList(coli));
+        ResultsProcessingService.TreeNode secondGene = ResultsProcessingService.buildTree(Collections.singletonList(coli));
+
+        assertEquals(original, coli);
+        assertEquals(1, secondGene.children.size());
+    }
+
+    @Test
+    public void savedTreesAreReadBackPerGene() throws IOException {
+        Map<String, List<List<String>>> taxonomyTreeForGenes = new LinkedHashMap<>();
+        taxonomyTreeForGenes.put("gene1", Collections.singletonList(lineage("562", "Escherichia coli", "Escherichia", "Enterobacteriaceae")));
+        taxonomyTreeForGenes.put("gene2", Collections.singletonList(lineage("28901", "Salmonella enterica", "Salmonella", "Enterobacteriaceae")));
+        String outputDir = folder.getRoot().getAbsolutePath();
+
+        ResultsProcessingService.saveBlastTrees(taxonomyTreeForGenes, outputDir);
+
+        String gene1Tree = ResultsProcessingService.readBlastTree(outputDir, "gene1");
+        String gene2Tree = ResultsProcessingService.readBlastTree(outputDir, "gene2");
+        assertTrue(gene1Tree.startsWith("{\"id\":\"gene1\",\"tree\":{\"name\":\"LUCA(1)\""));
+        assertTrue(gene2Tree.contains("\"name\":\"Salmonella enterica(1)\""));
+        assertEquals("[" + gene1Tree + "," + gene2Tree + "]", ResultsProcessingService.generateBlastTree(taxonomyTreeForGenes));
+        assertNull(ResultsProcessingService.readBlastTree(outputDir, "gene3"));
+
+        // both trees share the names above the genus
+        assertEquals("{\"id\":\"gene2\",\"parent\":[-1,0,1,2,3,4,5,6,7],\"name\":[0,1,2,3,4,5,6,9,10],"
+                        + "\"rank\":[0,1,2,3,4,5,6,7,8],\"count\":[1,1,1,1,1,1,1,1,1]}",
+                ResultsProcessingService.readCompactBlastTree(outputDir, "gene2"));
+        assertTrue(ResultsProcessingService.readBlastTreeNames(outputDir).startsWith(
+                "{\"names\":[\"LUCA\",\"Bacteria\",\"kingdom\",\"phylum\",\"class\",\"order\",\"Enterobacteriaceae\","
+                        + "\"Escherichia\",\"Escherichia coli\",\"Salmonella\",\"Salmonella enterica\"],\"ranks\":[\"root\""));
+    }
+}
@@ -0,0 +1,114 @@
+package com.orfangenes.app.storage;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class LocalBlobStoreTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private Path write(String name, String content) throws IOException {
+        Path file = folder.getRoot().toPath().resolve(name);
+        Files.write(file, content.getBytes(StandardCharsets.UTF_8));
+        return file;
+    }
+
+    @Test
+    public void inputIsReadBackByReference() throws IOException {
+        LocalBlobStore blobStore = new LocalBlobStore(folder.newFolder("blobs").toPath());
+        String reference = blobStore.put(write("input.fasta", ">gene1 description\nMKV\n"));
+
+        Path copy = folder.getRoot().toPath().resolve("worker").resolve("input.fasta");
+        Files.createDirectories(copy.getParent());
+        blobStore.get(reference, copy);
+
+        assertTrue(reference.startsWith(ContentHash.PREFIX));
+        assertEquals(">gene1 description\nMKV\n", new String(Files.readAllBytes(copy), StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void sameContentHasSameReference() throws IOException {
+        LocalBlobStore blobStore = new LocalBlobStore(folder.newFolder("blobs").toPath());
+
+        String first = blobStore.put(write("first.fasta", ">gene1\nMKV\n"));
+        String second = blobStore.put(write("second.fasta", ">gene1\nMKV\n"));
+        String other = blobStore.put(write("other.fasta", ">gene2\nMKA\n"));
+
+        assertEquals(first, second);
+        assertFalse(first.equals(other));
+    }
+
+    @Test
+    public void changedBlobIsRejected() throws IOException {
+        Path blobs = folder.newFolder("blobs").toPath();
+        LocalBlobStore blobStore = new LocalBlobStore(blobs);
+        String reference = blobStore.put(write("input.fasta", ">gene1\nMKV\n"));
+        String hex = reference.substring(ContentHash.PREFIX.length());
+        Files.write(blobs.resolve(hex.substring(0, 2)).resolve(hex), ">gene1\nMKA\n".getBytes(StandardCharsets.UTF_8));
+
+        Path copy = folder.getRoot().toPath().resolve("copy.fasta");
+        try {
+            blobStore.get(reference, copy);
+            fail("changed blob was read");
+        } catch (IOException e) {
+            assertFalse(Files.exists(copy));
+        }
+    }
+
+    @Test
+    public void blobsNotPutAgainExpire() throws IOException {
+        Path blobs = folder.newFolder("blobs").toPath();
+        LocalBlobStore blobStore = new LocalBlobStore(blobs);
+        String old = blobStore.put(write("old.fasta", ">gene1\nMKV\n"));
+        String resubmitted = blobStore.put(write("resubmitted.fasta", ">gene2\nMKA\n"));
+        FileTime monthAgo = FileTime.fromMillis(System.currentTimeMillis() - TimeUnit.DAYS.toMillis(31));
+        for (String reference : new String[]{old, resubmitted}) {
+            String hex = reference.substring(ContentHash.PREFIX.length());
+            Files.setLastModifiedTime(blobs.resolve(hex.substring(0, 2)).resolve(hex), monthAgo);
+        }
+        blobStore.put(write("again.fasta", ">gene2\nMKA\n"));
+
+        assertEquals(1, blobStore.deleteOlderThan(TimeUnit.DAYS.toMillis(30)));
+        Path copy = folder.getRoot().toPath().resolve("copy.fasta");
+        blobStore.get(resubmitted, copy);
+        try {
+            blobStore.get(old, copy);
+            fail("expired blob was read");
+        } catch (IOException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void namedBlobIsReplacedAndNotExpired() throws IOException {
+        Path blobs = folder.newFolder("blobs").toPath();
+        LocalBlobStore blobStore = new LocalBlobStore(blobs);
+        blobStore.putNamed("a1/blastResults.bl", write("first.bl", "gene1\thit1\n"));
+        blobStore.putNamed("a1/blastResults.bl", write("second.bl", "gene1\thit2\n"));
+        Files.setLastModifiedTime(blobs.resolve("named").resolve("a1").resolve("blastResults.bl"),
+                FileTime.fromMillis(System.currentTimeMillis() - TimeUnit.DAYS.toMillis(31)));
+
+        assertEquals(0, blobStore.deleteOlderThan(TimeUnit.DAYS.toMillis(30)));
+        Path copy = folder.getRoot().toPath().resolve("copy.bl");
+        assertTrue(blobStore.getNamed("a1/blastResults.bl", copy));
+        assertEquals("gene1\thit2\n", new String(Files.readAllBytes(copy), StandardCharsets.UTF_8));
+        assertFalse(blobStore.getNamed("a2/blastResults.bl", copy));
+        try {
+            blobStore.getNamed("../a1/blastResults.bl", copy);
+            fail("name outside the named blobs was read");
+        } catch (IOException e) {
+            // expected
+        }
+    }
+}
@@ -0,0 +1,63 @@
+package com.orfangenes.app.util;
+
+import com.orfangenes.app.util.Checkpoints.Stage;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.junit.Assert.*;
+
+public class CheckpointsTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private Path write(String name, String content) throws IOException {
+        Path file = folder.getRoot().toPath().resolve(name);
+        Files.write(file, content.getBytes(StandardCharsets.UTF_8));
+        return file;
+    }
+
+    @Test
+    public void completedStagesAreDoneAfterRestart() throws IOException {
+        Path dir = folder.getRoot().toPath();
+        Checkpoints checkpoints = new Checkpoints(dir);
+        checkpoints.complete(Stage.INPUT_STAGED, write("input.fasta", ">gene1\nMKV\n"));
+        checkpoints.complete(Stage.BLAST_DONE, write("blastResults.bl", "gene1\thit1\n"));
+
+        Checkpoints restarted = new Checkpoints(dir);
+        assertTrue(restarted.isDone(Stage.BLAST_DONE));
+        assertFalse(restarted.isDone(Stage.HITS_PARSED));
+    }
+
+    @Test
+    public void changedFileInvalidatesLaterStages() throws IOException {
+        Path dir = folder.getRoot().toPath();
+        Checkpoints checkpoints = new Checkpoints(dir);
+        checkpoints.complete(Stage.INPUT_STAGED, write("input.fasta", ">gene1\nMKV\n"));
+        checkpoints.complete(Stage.BLAST_DONE, write("blastResults.bl", "gene1\thit1\n"));
+        write("input.fasta", ">gene1\nMKA\n");
+
+        Checkpoints restarted = new Checkpoints(dir);
+        assertFalse(restarted.isDone(Stage.INPUT_STAGED));
+        assertFalse(restarted.isDone(Stage.BLAST_DONE));
+    }
+
+    @Test
+    public void completingStageClearsLaterStages() throws IOException {
+        Path dir = folder.getRoot().toPath();
+        Checkpoints checkpoints = new Checkpoints(dir);
+        Path input = write("input.fasta", ">gene1\nMKV\n");
+        checkpoints.complete(Stage.INPUT_STAGED, input);
+        checkpoints.complete(Stage.BLAST_DONE, write("blastResults.bl", "gene1\thit1\n"));
+        checkpoints.complete(Stage.INPUT_STAGED, input);
+
+        assertTrue(checkpoints.isDone(Stage.INPUT_STAGED));
+        assertFalse(new Checkpoints(dir).isDone(Stage.BLAST_DONE));
+    }
+}
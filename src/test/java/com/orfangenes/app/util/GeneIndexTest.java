@@ -0,0 +1,115 @@
+package com.orfangenes.app.util;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+public class GeneIndexTest {
+
+    private static final String RESULTS =
+            "gene1\thit1\t98.5\n" +
+            "gene1\thit2\t87.0\n" +
+            "gene2\thit3\t75.2\n" +
+            "gene3\thit4\t66.6\n";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private Path write(String name, String content) throws IOException {
+        Path file = folder.getRoot().toPath().resolve(name);
+        Files.write(file, content.getBytes(StandardCharsets.UTF_8));
+        return file;
+    }
+
+    // the bytes of the gene's ranges in the data file
+    private static String rows(GeneIndex index, Path dataFile, String geneId) throws IOException {
+        byte[] data = Files.readAllBytes(dataFile);
+        long[] ranges = index.getRanges(geneId);
+        ByteArrayOutputStream rows = new ByteArrayOutputStream();
+        for (int i = 0; i < ranges.length; i += 2) {
+            rows.write(data, (int) ranges[i], (int) ranges[i + 1]);
+        }
+        return new String(rows.toByteArray(), StandardCharsets.UTF_8);
+    }
+
+    @Test
+    public void rowsAreReadByGene() throws IOException {
+        Path dataFile = write("blastResults.bl", RESULTS);
+        GeneIndex index = GeneIndex.build(dataFile);
+
+        assertEquals("gene1\thit1\t98.5\ngene1\thit2\t87.0\n", rows(index, dataFile, "gene1"));
+        assertEquals("gene2\thit3\t75.2\n", rows(index, dataFile, "gene2"));
+        assertEquals("gene3\thit4\t66.6\n", rows(index, dataFile, "gene3"));
+        assertEquals(Arrays.asList("gene1", "gene2", "gene3"), Arrays.asList(index.getGeneIds().toArray()));
+    }
+
+    @Test
+    public void savedIndexIsLoadedAgain() throws IOException {
+        Path dataFile = write("blastResults.bl", RESULTS);
+        Path indexFile = folder.getRoot().toPath().resolve("blastResults.idx");
+        GeneIndex built = GeneIndex.load(dataFile, indexFile);
+        assertTrue(Files.exists(indexFile));
+
+        GeneIndex loaded = GeneIndex.load(dataFile, indexFile);
+        for (String geneId : built.getGeneIds()) {
+            assertArrayEquals(built.getRanges(geneId), loaded.getRanges(geneId));
+        }
+        assertEquals(built.getGeneIds(), loaded.getGeneIds());
+    }
+
+    @Test
+    public void indexOlderThanTheDataIsRebuilt() throws IOException {
+        Path dataFile = write("blastResults.bl", RESULTS);
+        Path indexFile = folder.getRoot().toPath().resolve("blastResults.idx");
+        GeneIndex.load(dataFile, indexFile);
+
+        write("blastResults.bl", "gene4\thit5\t50.0\n");
+        Files.setLastModifiedTime(dataFile, FileTime.fromMillis(Files.getLastModifiedTime(indexFile).toMillis() + 1000));
+        GeneIndex index = GeneIndex.load(dataFile, indexFile);
+        assertNull(index.getRanges("gene1"));
+        assertEquals("gene4\thit5\t50.0\n", rows(index, dataFile, "gene4"));
+    }
+
+    @Test
+    public void missingGeneHasNoRows() throws IOException {
+        Path dataFile = write("blastResults.bl", RESULTS);
+        GeneIndex index = GeneIndex.build(dataFile);
+
+        assertNull(index.getRanges("gene9"));
+        assertEquals(0, index.getLength("gene9"));
+    }
+
+    @Test
+    public void lastGeneWithoutLineBreakIsIndexed() throws IOException {
+        Path dataFile = write("blastResults.bl", "gene1\thit1\t98.5\ngene2\thit2\t75.2");
+        GeneIndex index = GeneIndex.build(dataFile);
+
+        assertEquals("gene2\thit2\t75.2", rows(index, dataFile, "gene2"));
+        assertEquals(Files.size(dataFile), index.getLength("gene1") + index.getLength("gene2"));
+    }
+
+    @Test
+    public void offsetsCountBytesOfMultiByteCharacters() throws IOException {
+        // descriptions with non-ASCII characters, two and three bytes in UTF-8
+        Path dataFile = write("blastResults.bl",
+                "gene1\thit1\tprot\u00e9ine\n" +
+                "gene1\thit2\t\u86cb\u767d\u8d28\n" +
+                "g\u00e8ne2\thit3\tprotein\n");
+        GeneIndex index = GeneIndex.build(dataFile);
+
+        long[] ranges = index.getRanges("g\u00e8ne2");
+        assertEquals("gene1\thit1\tprot\u00e9ine\ngene1\thit2\t\u86cb\u767d\u8d28\n".getBytes(StandardCharsets.UTF_8).length, ranges[0]);
+        assertEquals("g\u00e8ne2\thit3\tprotein\n", rows(index, dataFile, "g\u00e8ne2"));
+        assertEquals("gene1\thit1\tprot\u00e9ine\ngene1\thit2\t\u86cb\u767d\u8d28\n", rows(index, dataFile, "gene1"));
+    }
+}